@@ -0,0 +1,179 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlUtil;
+import org.webrtc.TextureBufferImpl;
+import org.webrtc.VideoFrame;
+import org.webrtc.YuvConverter;
+
+/**
+ * Measures the time {@link GaussianBlurProcessor} takes per frame, at 720p and
+ * 1080p, with and without a mask. Meant to be run on a device, e.g. from a
+ * debug screen, to pick a radius and downsampling factor; the results are
+ * logged and returned. Only part of debug builds.
+ *
+ * Each measurement waits for the GPU to complete every frame, so it reflects
+ * the latency the effect adds rather than its throughput.
+ */
+public class GaussianBlurBenchmark {
+    private static final String TAG = GaussianBlurBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_FRAMES = 10;
+
+    private static final int[][] SIZES = { { 1280, 720 }, { 1920, 1080 } };
+
+    /**
+     * Runs the benchmark on a dedicated thread and waits for it to complete.
+     * Must not be called on the main thread.
+     *
+     * @param frames the number of frames measured per configuration
+     * @return the average milliseconds per frame for 720p, 720p with a mask,
+     * 1080p and 1080p with a mask
+     */
+    public static double[] run(int radius, int downsample, int frames) {
+        HandlerThread thread = new HandlerThread("GaussianBlurBenchmark");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+
+        EglBase eglBase = invoke(handler, () -> {
+            EglBase base = EglBase.create(null, EglBase.CONFIG_PIXEL_BUFFER);
+            base.createDummyPbufferSurface();
+            base.makeCurrent();
+            return base;
+        });
+        YuvConverter yuvConverter = invoke(handler, YuvConverter::new);
+        double[] results = new double[SIZES.length * 2];
+
+        try {
+            for (int i = 0; i < SIZES.length; i++) {
+                int width = SIZES[i][0];
+                int height = SIZES[i][1];
+
+                for (int masked = 0; masked < 2; masked++) {
+                    GaussianBlurProcessor processor = new GaussianBlurProcessor(radius, downsample);
+                    if (masked == 1) {
+                        processor.setMask(createMask(width / 4, height / 4), width / 4, height / 4);
+                    }
+
+                    double ms = measure(processor, width, height, frames, handler, yuvConverter);
+                    results[i * 2 + masked] = ms;
+                    Log.i(TAG, width + "x" + height + (masked == 1 ? " masked" : "")
+                        + ": " + String.format("%.2f", ms) + " ms/frame");
+
+                    invoke(handler, () -> {
+                        processor.onDetach();
+                        processor.onRelease();
+                        return null;
+                    });
+                }
+            }
+        } finally {
+            invoke(handler, () -> {
+                yuvConverter.release();
+                eglBase.release();
+                return null;
+            });
+            thread.quitSafely();
+        }
+
+        return results;
+    }
+
+    /**
+     * Processes the frames one task at a time, so the framebuffers of the
+     * released output frames are recycled in between as they would be during
+     * a capture.
+     */
+    private static double measure(
+            GaussianBlurProcessor processor,
+            int width,
+            int height,
+            int frames,
+            Handler handler,
+            YuvConverter yuvConverter) {
+        VideoFrame frame = invoke(handler, () -> {
+            int texture = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+            VideoFrame.TextureBuffer buffer = new TextureBufferImpl(
+                width, height, VideoFrame.TextureBuffer.Type.RGB, texture, new Matrix(), handler, yuvConverter,
+                () -> GLES20.glDeleteTextures(1, new int[] { texture }, 0));
+            return new VideoFrame(buffer, 0, 0);
+        });
+
+        long elapsedNs = 0;
+
+        for (int i = 0; i < WARMUP_FRAMES + frames; i++) {
+            long frameNs = invoke(handler, () -> {
+                long startNs = SystemClock.elapsedRealtimeNanos();
+                VideoFrame output = processor.process(frame, null);
+                GLES20.glFinish();
+                long durationNs = SystemClock.elapsedRealtimeNanos() - startNs;
+
+                output.release();
+                return durationNs;
+            });
+
+            if (i >= WARMUP_FRAMES) {
+                elapsedNs += frameNs;
+            }
+        }
+
+        invoke(handler, () -> {
+            frame.release();
+            return null;
+        });
+
+        return (double) elapsedNs / TimeUnit.MILLISECONDS.toNanos(1) / frames;
+    }
+
+    /**
+     * Runs a task on the benchmark thread, after the tasks already posted,
+     * and waits for its result.
+     */
+    private static <T> T invoke(Handler handler, Callable<T> callable) {
+        FutureTask<T> task = new FutureTask<>(callable);
+        handler.post(task);
+
+        try {
+            return task.get();
+        } catch (ExecutionException | InterruptedException e) {
+            throw new RuntimeException("Benchmark failed", e);
+        }
+    }
+
+    /**
+     * A mask keeping an ellipse in the middle of the frame, roughly where a
+     * person would be.
+     */
+    private static ByteBuffer createMask(int width, int height) {
+        ByteBuffer mask = ByteBuffer.allocateDirect(width * height);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                float dx = (x - width / 2f) / (width / 4f);
+                float dy = (y - height / 2f) / (height / 2.5f);
+                mask.put(dx * dx + dy * dy <= 1 ? (byte) 255 : 0);
+            }
+        }
+        mask.rewind();
+
+        return mask;
+    }
+}
@@ -1,18 +1,30 @@
 package com.oney.WebRTCModule;
 
+import android.content.Context;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
 
 public abstract class AbstractVideoCaptureController {
 
-    private final int width;
-    private final int height;
-    private final int fps;
+    private int width;
+    private int height;
+    private int fps;
 
     /**
      * {@link VideoCapturer} which this controller manages.
      */
     protected VideoCapturer videoCapturer;
 
+    /**
+     * What {@link #videoCapturer} was initialized with, so that it can be
+     * replaced by a new one feeding the same observer.
+     */
+    private SurfaceTextureHelper surfaceTextureHelper;
+    private Context context;
+    private CapturerObserver capturerObserver;
+
     public AbstractVideoCaptureController(int width, int height, int fps) {
         this.width = width;
         this.height = height;
@@ -23,6 +35,53 @@ public abstract class AbstractVideoCaptureController {
         videoCapturer = createVideoCapturer();
     }
 
+    /**
+     * Initializes the capturer created by {@link #initializeVideoCapturer()}
+     * to deliver its frames to the given observer.
+     */
+    public void attachVideoCapturer(
+            SurfaceTextureHelper surfaceTextureHelper,
+            Context context,
+            CapturerObserver capturerObserver) {
+        this.surfaceTextureHelper = surfaceTextureHelper;
+        this.context = context;
+        this.capturerObserver = capturerObserver;
+
+        videoCapturer.initialize(surfaceTextureHelper, context, capturerObserver);
+    }
+
+    /**
+     * Disposes of the capturer and creates and attaches a new one in its
+     * place. It has to be started again.
+     *
+     * @return {@code true} if a new capturer was created
+     */
+    protected boolean recreateVideoCapturer() {
+        if (videoCapturer != null) {
+            try {
+                videoCapturer.stopCapture();
+            } catch (InterruptedException e) {
+                // Disposing stops it regardless.
+            }
+            videoCapturer.dispose();
+        }
+
+        videoCapturer = createVideoCapturer();
+        if (videoCapturer == null) {
+            return false;
+        }
+
+        videoCapturer.initialize(surfaceTextureHelper, context, capturerObserver);
+        return true;
+    }
+
+    /**
+     * Called for every frame delivered by the capturer, on the capturer's
+     * thread.
+     */
+    void onFrameCaptured() {
+    }
+
     public void dispose() {
         if (videoCapturer != null) {
             videoCapturer.dispose();
@@ -42,6 +101,30 @@ public abstract class AbstractVideoCaptureController {
         return fps;
     }
 
+    /**
+     * Updates the format with which the capturer is (to be) started, for
+     * example once the format actually supported by the device is known.
+     */
+    protected void setCaptureFormat(int width, int height, int fps) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+    }
+
+    /**
+     * Changes the format of a running capturer.
+     */
+    public void changeCaptureFormat(int width, int height, int fps) {
+        if (width == this.width && height == this.height && fps == this.fps) {
+            return;
+        }
+
+        setCaptureFormat(width, height, fps);
+        if (videoCapturer != null) {
+            videoCapturer.changeCaptureFormat(width, height, fps);
+        }
+    }
+
     public VideoCapturer getVideoCapturer() {
         return videoCapturer;
     }
@@ -57,6 +140,11 @@ public abstract class AbstractVideoCaptureController {
     }
 
     public boolean stopCapture() {
+        if (videoCapturer == null) {
+            // Failed to be recreated, nothing is running.
+            return true;
+        }
+
         try {
             videoCapturer.stopCapture();
             return true;
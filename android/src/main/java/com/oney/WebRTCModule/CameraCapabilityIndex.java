@@ -0,0 +1,263 @@
+package com.oney.WebRTCModule;
+
+import android.content.Context;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.webrtc.Camera2Enumerator;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
+import org.webrtc.CameraEnumerator;
+
+/**
+ * Caches the camera devices, their facing and their supported capture formats.
+ * Querying those through {@link CameraEnumerator} is slow (especially with the
+ * Camera2 API) so it is done once, the first time it is needed, and again only
+ * when the set of cameras changes.
+ */
+class CameraCapabilityIndex {
+    /**
+     * The {@link Log} tag with which {@code CameraCapabilityIndex} is to log.
+     */
+    private static final String TAG = WebRTCModule.TAG;
+
+    /**
+     * A camera device as seen by {@link CameraEnumerator}.
+     */
+    static class Device {
+        final String name;
+        final boolean isFrontFacing;
+        final List<CaptureFormat> formats;
+
+        Device(String name, boolean isFrontFacing, List<CaptureFormat> formats) {
+            this.name = name;
+            this.isFrontFacing = isFrontFacing;
+            this.formats = formats;
+        }
+    }
+
+    private final CameraEnumerator cameraEnumerator;
+
+    /**
+     * The devices mapped by name, in enumeration order. {@code null} until
+     * built or after being invalidated.
+     */
+    private Map<String, Device> devices;
+
+    /**
+     * Registered with {@link #cameraManager} to learn about new cameras, until
+     * {@link #release()}.
+     */
+    private CameraManager cameraManager;
+    private CameraManager.AvailabilityCallback availabilityCallback;
+
+    CameraCapabilityIndex(Context context, CameraEnumerator cameraEnumerator) {
+        this.cameraEnumerator = cameraEnumerator;
+
+        if (cameraEnumerator instanceof Camera2Enumerator
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            registerAvailabilityCallback(context);
+        }
+    }
+
+    CameraEnumerator getCameraEnumerator() {
+        return cameraEnumerator;
+    }
+
+    /**
+     * Returns all devices, in enumeration order, building the index if needed.
+     */
+    synchronized List<Device> getDevices() {
+        return new ArrayList<>(getDevicesMap().values());
+    }
+
+    /**
+     * Returns the device with the given name or {@code null}.
+     */
+    synchronized Device getDevice(String name) {
+        return getDevicesMap().get(name);
+    }
+
+    /**
+     * Returns the device with the given name or, failing that, the device at
+     * the given enumeration index as reported by {@code enumerateDevices}.
+     */
+    synchronized Device findDevice(String deviceId) {
+        Device device = getDevicesMap().get(deviceId);
+
+        if (device == null) {
+            try {
+                int index = Integer.parseInt(deviceId);
+                List<Device> devices = getDevices();
+
+                if (index >= 0 && index < devices.size()) {
+                    device = devices.get(index);
+                }
+            } catch (NumberFormatException e) {
+                // Not an index either.
+            }
+        }
+
+        return device;
+    }
+
+    /**
+     * Returns the id {@code enumerateDevices} reports for the device with the
+     * given name, i.e. its enumeration index, or {@code null} if there is no
+     * such device.
+     */
+    synchronized String getDeviceId(String name) {
+        int index = 0;
+
+        for (String deviceName : getDevicesMap().keySet()) {
+            if (deviceName.equals(name)) {
+                return String.valueOf(index);
+            }
+            index++;
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops the cached data, it will be rebuilt the next time it is needed.
+     */
+    synchronized void invalidate() {
+        devices = null;
+    }
+
+    /**
+     * Stops watching for new cameras. The index keeps working, but isn't
+     * invalidated anymore when one shows up.
+     */
+    void release() {
+        if (availabilityCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            cameraManager.unregisterAvailabilityCallback(availabilityCallback);
+            availabilityCallback = null;
+            cameraManager = null;
+        }
+    }
+
+    private Map<String, Device> getDevicesMap() {
+        if (devices == null) {
+            devices = build();
+        }
+
+        return devices;
+    }
+
+    private Map<String, Device> build() {
+        long start = System.nanoTime();
+        Map<String, Device> result = new LinkedHashMap<>();
+
+        for (String name : cameraEnumerator.getDeviceNames()) {
+            boolean isFrontFacing;
+            List<CaptureFormat> formats;
+
+            try {
+                // This can throw an exception when using the Camera 1 API.
+                isFrontFacing = cameraEnumerator.isFrontFacing(name);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to check the facing mode of camera " + name, e);
+                continue;
+            }
+
+            try {
+                formats = cameraEnumerator.getSupportedFormats(name);
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to get the supported formats of camera " + name, e);
+                formats = null;
+            }
+
+            result.put(
+                name,
+                new Device(
+                    name,
+                    isFrontFacing,
+                    formats == null
+                        ? Collections.<CaptureFormat>emptyList()
+                        : Collections.unmodifiableList(new ArrayList<>(formats))));
+        }
+
+        Log.d(TAG, "Built camera capability index with " + result.size() + " devices in "
+            + (System.nanoTime() - start) / 1000000 + "ms");
+
+        return result;
+    }
+
+    private void registerAvailabilityCallback(Context context) {
+        cameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+
+        if (cameraManager == null) {
+            return;
+        }
+
+        // Availability also changes whenever a camera is opened or closed, by
+        // us or by anybody else. Only a device we haven't seen before means
+        // the set of cameras changed. Removed devices fail to open and are
+        // handled by the fallback logic in CameraCaptureController.
+        availabilityCallback = new CameraManager.AvailabilityCallback() {
+            @Override
+            public void onCameraAvailable(@NonNull String cameraId) {
+                synchronized (CameraCapabilityIndex.this) {
+                    if (devices != null && !devices.containsKey(cameraId)) {
+                        Log.d(TAG, "New camera " + cameraId + ", invalidating capability index");
+                        devices = null;
+                    }
+                }
+            }
+        };
+        cameraManager.registerAvailabilityCallback(availabilityCallback, new Handler(Looper.getMainLooper()));
+    }
+
+    /**
+     * Picks the supported format closest to the requested one. Sizes are
+     * compared regardless of orientation, formats at least as large as the
+     * request and frame rate ranges reaching the requested rate are preferred.
+     *
+     * @return The best format or {@code null} if there are no known formats.
+     */
+    static CaptureFormat selectFormat(List<CaptureFormat> formats, int width, int height, int frameRate) {
+        int reqLong = Math.max(width, height);
+        int reqShort = Math.max(1, Math.min(width, height));
+        float reqAspectRatio = reqLong / (float) reqShort;
+        float reqArea = reqLong * (float) reqShort;
+
+        CaptureFormat best = null;
+        float bestScore = Float.MAX_VALUE;
+
+        for (CaptureFormat format : formats) {
+            int fmtLong = Math.max(format.width, format.height);
+            int fmtShort = Math.max(1, Math.min(format.width, format.height));
+            // Frame rates are expressed in fps * 1000 by both enumerators.
+            int maxFrameRate = (format.framerate.max + 999) / 1000;
+
+            float score = Math.abs(fmtLong * (float) fmtShort - reqArea) / reqArea;
+            score += Math.abs(fmtLong / (float) fmtShort - reqAspectRatio);
+            if (fmtLong < reqLong || fmtShort < reqShort) {
+                // Upscaling looks worse than downscaling.
+                score += 0.5f;
+            }
+            if (frameRate > 0 && maxFrameRate < frameRate) {
+                score += 2f * (frameRate - maxFrameRate) / frameRate;
+            }
+
+            if (score < bestScore) {
+                bestScore = score;
+                best = format;
+            }
+        }
+
+        return best;
+    }
+}
@@ -1,9 +1,11 @@
 package com.oney.WebRTCModule;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.facebook.react.bridge.ReadableMap;
 
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat;
 import org.webrtc.CameraEnumerator;
 import org.webrtc.CameraVideoCapturer;
 import org.webrtc.VideoCapturer;
@@ -20,95 +22,288 @@ public class CameraCaptureController extends AbstractVideoCaptureController {
 
     private boolean isFrontFacing;
 
+    /**
+     * The camera device being captured from.
+     */
+    private CameraCapabilityIndex.Device device;
+
+    private final CameraCapabilityIndex cameraCapabilityIndex;
     private final CameraEnumerator cameraEnumerator;
     private final ReadableMap constraints;
 
+    /**
+     * Restarts or reopens the camera when its frames stop.
+     */
+    private final CameraStallWatchdog watchdog = new CameraStallWatchdog(this::recover);
+
+    /**
+     * Whether the capturer is being recreated by {@link #recover(int)}.
+     */
+    private boolean reopening;
+
+    /**
+     * Whether the capture is meant to be running, i.e. started and neither
+     * stopped nor disposed since. Recovery attempts which were already queued
+     * when it was stopped must not bring the camera back. Only accessed on the
+     * WebRTC executor.
+     */
+    private boolean capturing;
+    private boolean disposed;
+
     /**
      * The {@link CameraEventsHandler} used with
-     * {@link CameraEnumerator#createCapturer}. Cached because the
-     * implementation does not do anything but logging unspecific to the camera
-     * device's name anyway.
+     * {@link CameraEnumerator#createCapturer}. Besides logging, it hands the
+     * camera's failures to the {@link #watchdog}.
      */
-    private final CameraEventsHandler cameraEventsHandler = new CameraEventsHandler();
+    private final CameraEventsHandler cameraEventsHandler = new CameraEventsHandler() {
+        @Override
+        public void onCameraDisconnected() {
+            super.onCameraDisconnected();
+            watchdog.onCameraFailure();
+        }
+
+        @Override
+        public void onCameraError(String errorDescription) {
+            super.onCameraError(errorDescription);
+            watchdog.onCameraFailure();
+        }
+
+        @Override
+        public void onCameraFreezed(String errorDescription) {
+            super.onCameraFreezed(errorDescription);
+            watchdog.onCameraFailure();
+        }
+    };
 
-    public CameraCaptureController(CameraEnumerator cameraEnumerator, ReadableMap constraints) {
+    public CameraCaptureController(CameraCapabilityIndex cameraCapabilityIndex, ReadableMap constraints) {
         super(
              constraints.getInt("width"),
              constraints.getInt("height"), 
              constraints.getInt("frameRate"));
 
-        this.cameraEnumerator = cameraEnumerator;
+        this.cameraCapabilityIndex = cameraCapabilityIndex;
+        this.cameraEnumerator = cameraCapabilityIndex.getCameraEnumerator();
         this.constraints = constraints;
     }
 
-    public void switchCamera() {
-        if (videoCapturer instanceof CameraVideoCapturer) {
-            CameraVideoCapturer capturer = (CameraVideoCapturer) videoCapturer;
-            String[] deviceNames = cameraEnumerator.getDeviceNames();
-            int deviceCount = deviceNames.length;
-
-            // Nothing to switch to.
-            if (deviceCount < 2) {
-                return;
-            }
-
-            // The usual case.
-            if (deviceCount == 2) {
-                capturer.switchCamera(new CameraVideoCapturer.CameraSwitchHandler() {
-                    @Override
-                    public void onCameraSwitchDone(boolean b) {
-                        isFrontFacing = b;
-                    }
+    public boolean isFrontFacing() {
+        return isFrontFacing;
+    }
 
-                    @Override
-                    public void onCameraSwitchError(String s) {
-                        Log.e(TAG, "Error switching camera: " + s);
-                    }
-                });
-                return;
-            }
+    /**
+     * Sets the listener notified, on the main thread, when the capture stalls
+     * and when it recovers.
+     */
+    public void setStallListener(CameraStallWatchdog.Listener listener) {
+        watchdog.setListener(listener);
+    }
 
-            // If we are here the device has more than 2 cameras. Cycle through them
-            // and switch to the first one of the desired facing mode.
-            switchCamera(!isFrontFacing, deviceCount);
+    @Override
+    public void startCapture() {
+        if (disposed) {
+            return;
         }
+
+        capturing = true;
+        super.startCapture();
+        watchdog.start();
     }
 
     @Override
-    protected VideoCapturer createVideoCapturer() {
-        String deviceId = ReactBridgeUtil.getMapStrValue(this.constraints, "deviceId");
-        String facingMode = ReactBridgeUtil.getMapStrValue(this.constraints, "facingMode");
+    public boolean stopCapture() {
+        capturing = false;
+        watchdog.stop();
+        return super.stopCapture();
+    }
 
-        return createVideoCapturer(deviceId, facingMode);
+    @Override
+    public void dispose() {
+        capturing = false;
+        disposed = true;
+        watchdog.stop();
+        super.dispose();
+    }
+
+    @Override
+    void onFrameCaptured() {
+        watchdog.onFrame();
+    }
+
+    /**
+     * Returns the name of the camera device being captured from, or
+     * {@code null} if none was opened.
+     */
+    public String getDeviceName() {
+        return device == null ? null : device.name;
+    }
+
+    /**
+     * Changes the capture format to the format the device supports which is
+     * closest to the given one.
+     */
+    @Override
+    public void changeCaptureFormat(int width, int height, int fps) {
+        int[] format = device == null ? new int[] { width, height, fps } : negotiateCaptureFormat(width, height, fps);
+
+        super.changeCaptureFormat(format[0], format[1], format[2]);
     }
 
     /**
-     * Helper function which tries to switch cameras until the desired facing mode is found.
+     * Notified of the outcome of {@link #switchCamera(String, SwitchCameraCallback)},
+     * on the camera thread.
+     */
+    public interface SwitchCameraCallback {
+        void onSwitchDone(String deviceName, boolean isFrontFacing, long switchLatencyMs);
+
+        void onSwitchError(String error);
+    }
+
+    public void switchCamera() {
+        switchCamera(null, null);
+    }
+
+    /**
+     * Switches directly to the given camera. Unlike cycling through the
+     * cameras until the facing matches, this opens a single camera no matter
+     * how many lenses the device exposes.
      *
-     * @param desiredFrontFacing - The desired front facing value.
-     * @param tries - How many times to try switching.
+     * @param deviceId the name or the enumeration index of the camera to
+     * switch to, or {@code null} for the first camera facing the other way
+     * @param callback notified of the outcome, may be {@code null}
      */
-    private void switchCamera(boolean desiredFrontFacing, int tries) {
+    public void switchCamera(String deviceId, SwitchCameraCallback callback) {
+        if (!(videoCapturer instanceof CameraVideoCapturer)) {
+            if (callback != null) {
+                callback.onSwitchError("Not capturing from a camera");
+            }
+            return;
+        }
+
+        CameraCapabilityIndex.Device target = deviceId == null
+            ? getAlternateDevice()
+            : cameraCapabilityIndex.findDevice(deviceId);
+
+        if (target == null) {
+            if (callback != null) {
+                callback.onSwitchError("No camera to switch to");
+            }
+            return;
+        }
+
+        if (device != null && device.name.equals(target.name)) {
+            if (callback != null) {
+                callback.onSwitchDone(target.name, target.isFrontFacing, 0);
+            }
+            return;
+        }
+
+        // Frames pause while the other camera opens.
+        watchdog.reset();
+
+        long start = SystemClock.elapsedRealtime();
         CameraVideoCapturer capturer = (CameraVideoCapturer) videoCapturer;
 
         capturer.switchCamera(new CameraVideoCapturer.CameraSwitchHandler() {
             @Override
             public void onCameraSwitchDone(boolean b) {
-                if (b != desiredFrontFacing) {
-                    int newTries = tries-1;
-                    if (newTries > 0) {
-                        switchCamera(desiredFrontFacing, newTries);
-                    }
-                } else {
-                    isFrontFacing = desiredFrontFacing;
+                long latency = SystemClock.elapsedRealtime() - start;
+                Log.d(TAG, "Switched to camera " + target.name + " in " + latency + "ms");
+
+                isFrontFacing = b;
+                ThreadUtils.runOnExecutor(() -> {
+                    device = target;
+
+                    // The capturer kept the requested format and picked the
+                    // closest the new camera supports, so should we.
+                    int[] format = negotiateCaptureFormat(getWidth(), getHeight(), getFrameRate());
+                    setCaptureFormat(format[0], format[1], format[2]);
+                });
+
+                if (callback != null) {
+                    callback.onSwitchDone(target.name, b, latency);
                 }
             }
 
             @Override
             public void onCameraSwitchError(String s) {
                 Log.e(TAG, "Error switching camera: " + s);
+                if (callback != null) {
+                    callback.onSwitchError(s);
+                }
             }
-        });
+        }, target.name);
+    }
+
+    @Override
+    protected VideoCapturer createVideoCapturer() {
+        String deviceId = ReactBridgeUtil.getMapStrValue(this.constraints, "deviceId");
+        String facingMode = ReactBridgeUtil.getMapStrValue(this.constraints, "facingMode");
+
+        if (reopening) {
+            // Stick to the camera in use.
+            if (device != null) {
+                deviceId = device.name;
+                facingMode = device.isFrontFacing ? "user" : "environment";
+            }
+        }
+
+        return createVideoCapturer(deviceId, facingMode);
+    }
+
+    /**
+     * Attempts to get a stalled capturer going again while keeping the
+     * {@code VideoSource}s it feeds, so tracks and peer connections are left
+     * untouched. The first attempts restart the capture, the following ones
+     * reopen the camera. Runs on the WebRTC executor.
+     */
+    private void recover(int attempt) {
+        if (!capturing || disposed) {
+            Log.d(TAG, "Not recovering a stopped camera capture");
+            return;
+        }
+
+        if (attempt <= 2 && videoCapturer != null) {
+            Log.d(TAG, "Restarting stalled camera capture");
+            super.stopCapture();
+            super.startCapture();
+            return;
+        }
+
+        Log.d(TAG, "Reopening stalled camera");
+        int width = getWidth();
+        int height = getHeight();
+        int frameRate = getFrameRate();
+        String deviceName = getDeviceName();
+
+        reopening = true;
+        boolean recreated = recreateVideoCapturer();
+        reopening = false;
+
+        if (!recreated) {
+            Log.w(TAG, "Failed to reopen stalled camera");
+            return;
+        }
+
+        if (deviceName != null && deviceName.equals(getDeviceName())) {
+            // Keep capturing in the format the capture source asked for.
+            setCaptureFormat(width, height, frameRate);
+        }
+        super.startCapture();
+    }
+
+    /**
+     * Returns the first camera, in enumeration order, facing the other way
+     * than the current one. The first camera of each facing is usually its
+     * main lens. If there is none, returns the current camera.
+     */
+    private CameraCapabilityIndex.Device getAlternateDevice() {
+        for (CameraCapabilityIndex.Device candidate : cameraCapabilityIndex.getDevices()) {
+            if (candidate.isFrontFacing != isFrontFacing) {
+                return candidate;
+            }
+        }
+
+        return device;
     }
 
     /**
@@ -125,23 +320,18 @@ public class CameraCaptureController extends AbstractVideoCaptureController {
      * {@code deviceId} constraint
      */
     private VideoCapturer createVideoCapturer(String deviceId, String facingMode) {
-        String[] deviceNames = cameraEnumerator.getDeviceNames();
+        List<CameraCapabilityIndex.Device> devices = cameraCapabilityIndex.getDevices();
         List<String> failedDevices = new ArrayList<>();
 
         // If deviceId is specified, then it takes precedence over facingMode.
         if (deviceId != null) {
-            for (String name : deviceNames) {
-                if (name.equals(deviceId)) {
-                    VideoCapturer videoCapturer
-                        = cameraEnumerator.createCapturer(name, cameraEventsHandler);
-                    String message = "Create user-specified camera " + name;
+            for (CameraCapabilityIndex.Device device : devices) {
+                if (device.name.equals(deviceId)) {
+                    VideoCapturer videoCapturer = createVideoCapturer(device, "Create user-specified camera ");
                     if (videoCapturer != null) {
-                        Log.d(TAG, message + " succeeded");
-                        this.isFrontFacing = cameraEnumerator.isFrontFacing(name);
                         return videoCapturer;
                     } else {
-                        Log.d(TAG, message + " failed");
-                        failedDevices.add(name);
+                        failedDevices.add(device.name);
                         break; // fallback to facingMode
                     }
                 }
@@ -151,49 +341,26 @@ public class CameraCaptureController extends AbstractVideoCaptureController {
         // Otherwise, use facingMode (defaulting to front/user facing).
         final boolean isFrontFacing
             = facingMode == null || !facingMode.equals("environment");
-        for (String name : deviceNames) {
-            if (failedDevices.contains(name)) {
+        for (CameraCapabilityIndex.Device device : devices) {
+            if (failedDevices.contains(device.name) || device.isFrontFacing != isFrontFacing) {
                 continue;
             }
-            try {
-                // This can throw an exception when using the Camera 1 API.
-                if (cameraEnumerator.isFrontFacing(name) != isFrontFacing) {
-                    continue;
-                }
-            } catch (Exception e) {
-                Log.e(
-                    TAG,
-                    "Failed to check the facing mode of camera " + name,
-                    e);
-                failedDevices.add(name);
-                continue;
-            }
-            VideoCapturer videoCapturer
-                = cameraEnumerator.createCapturer(name, cameraEventsHandler);
-            String message = "Create camera " + name;
+            VideoCapturer videoCapturer = createVideoCapturer(device, "Create camera ");
             if (videoCapturer != null) {
-                Log.d(TAG, message + " succeeded");
-                this.isFrontFacing = cameraEnumerator.isFrontFacing(name);
                 return videoCapturer;
             } else {
-                Log.d(TAG, message + " failed");
-                failedDevices.add(name);
+                failedDevices.add(device.name);
             }
         }
 
         // Fallback to any available camera.
-        for (String name : deviceNames) {
-            if (!failedDevices.contains(name)) {
-                VideoCapturer videoCapturer
-                    = cameraEnumerator.createCapturer(name, cameraEventsHandler);
-                String message = "Create fallback camera " + name;
+        for (CameraCapabilityIndex.Device device : devices) {
+            if (!failedDevices.contains(device.name)) {
+                VideoCapturer videoCapturer = createVideoCapturer(device, "Create fallback camera ");
                 if (videoCapturer != null) {
-                    Log.d(TAG, message + " succeeded");
-                    this.isFrontFacing = cameraEnumerator.isFrontFacing(name);
                     return videoCapturer;
                 } else {
-                    Log.d(TAG, message + " failed");
-                    failedDevices.add(name);
+                    failedDevices.add(device.name);
                     // fallback to the next device.
                 }
             }
@@ -201,6 +368,70 @@ public class CameraCaptureController extends AbstractVideoCaptureController {
 
         Log.w(TAG, "Unable to identify a suitable camera.");
 
+        if (!failedDevices.isEmpty()) {
+            // The set of cameras may have changed behind our back.
+            cameraCapabilityIndex.invalidate();
+        }
+
         return null;
     }
+
+    /**
+     * Creates a {@code VideoCapturer} for a specific device and, on success,
+     * negotiates the capture format closest to the constraints among the
+     * formats the device supports.
+     *
+     * @param device the camera device
+     * @param message the log message prefix
+     * @return the {@code VideoCapturer} or {@code null} if it could not be
+     * created
+     */
+    private VideoCapturer createVideoCapturer(CameraCapabilityIndex.Device device, String message) {
+        VideoCapturer videoCapturer
+            = cameraEnumerator.createCapturer(device.name, cameraEventsHandler);
+        message += device.name;
+        if (videoCapturer == null) {
+            Log.d(TAG, message + " failed");
+            return null;
+        }
+
+        Log.d(TAG, message + " succeeded");
+        this.device = device;
+        this.isFrontFacing = device.isFrontFacing;
+
+        int[] format = negotiateCaptureFormat(
+            constraints.getInt("width"),
+            constraints.getInt("height"),
+            constraints.getInt("frameRate"));
+        setCaptureFormat(format[0], format[1], format[2]);
+
+        return videoCapturer;
+    }
+
+    /**
+     * Finds the format closest to the given one among the formats
+     * {@link #device} natively supports, so the capturer doesn't need to search
+     * for it and the track reports what is actually being captured.
+     *
+     * @return the width, height and frame rate to capture with
+     */
+    private int[] negotiateCaptureFormat(int width, int height, int frameRate) {
+        CaptureFormat format = CameraCapabilityIndex.selectFormat(device.formats, width, height, frameRate);
+
+        if (format == null) {
+            return new int[] { width, height, frameRate };
+        }
+
+        // Formats are listed in the sensor's (landscape) orientation, keep the
+        // orientation that was asked for.
+        boolean portrait = height > width;
+        int formatWidth = portrait ? Math.min(format.width, format.height) : Math.max(format.width, format.height);
+        int formatHeight = portrait ? Math.max(format.width, format.height) : Math.min(format.width, format.height);
+        int formatFrameRate = Math.min(frameRate, (format.framerate.max + 999) / 1000);
+
+        Log.d(TAG, "Negotiated capture format " + formatWidth + "x" + formatHeight + "@" + formatFrameRate
+            + " for requested " + width + "x" + height + "@" + frameRate);
+
+        return new int[] { formatWidth, formatHeight, formatFrameRate };
+    }
 }
@@ -0,0 +1,203 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches the frames of a running camera capturer. When none arrive for
+ * {@link #STALL_TIMEOUT_MS}, or the camera reports an error, the capture is
+ * considered stalled and recovery attempts are made with exponential backoff
+ * until frames flow again or {@link #MAX_ATTEMPTS} are exhausted.
+ *
+ * The checks run on the main thread, recovery attempts on the WebRTC executor.
+ */
+class CameraStallWatchdog {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final long CHECK_INTERVAL_MS = 500;
+
+    /**
+     * How long without frames counts as a stall once frames flowed.
+     */
+    private static final long STALL_TIMEOUT_MS = 2000;
+
+    /**
+     * How long to wait for the first frame after the capture started, opening
+     * a camera takes longer than keeping it running.
+     */
+    private static final long FIRST_FRAME_TIMEOUT_MS = 5000;
+
+    private static final long INITIAL_BACKOFF_MS = 500;
+
+    private static final long MAX_BACKOFF_MS = 8000;
+
+    private static final int MAX_ATTEMPTS = 6;
+
+    /**
+     * Notified of stalls and recoveries, on the main thread.
+     */
+    interface Listener {
+        void onCaptureStalled();
+
+        void onCaptureRecovered(long stallDurationMs, long recoveryDurationMs, int attempts);
+
+        void onCaptureRecoveryFailed(long stallDurationMs, int attempts);
+    }
+
+    /**
+     * Performs recovery attempts, on the WebRTC executor.
+     */
+    interface Recovery {
+        /**
+         * @param attempt the number of the attempt, starting at 1
+         */
+        void recover(int attempt);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Recovery recovery;
+    private Listener listener;
+
+    private volatile long lastFrameMs;
+    private volatile boolean gotFirstFrame;
+    private final AtomicBoolean stalled = new AtomicBoolean();
+
+    // The following are only accessed on the main thread.
+    private boolean running;
+    private boolean gaveUp;
+    private long stallStartMs;
+    private long firstAttemptMs;
+    private long nextAttemptMs;
+    private long backoffMs;
+    private int attempts;
+
+    private final Runnable check = this::check;
+
+    CameraStallWatchdog(Recovery recovery) {
+        this.recovery = recovery;
+    }
+
+    void setListener(Listener listener) {
+        handler.post(() -> this.listener = listener);
+    }
+
+    void start() {
+        handler.post(() -> {
+            if (running) {
+                return;
+            }
+
+            running = true;
+            gaveUp = false;
+            stalled.set(false);
+            gotFirstFrame = false;
+            lastFrameMs = SystemClock.elapsedRealtime();
+            handler.postDelayed(check, CHECK_INTERVAL_MS);
+        });
+    }
+
+    void stop() {
+        handler.post(() -> {
+            running = false;
+            handler.removeCallbacks(check);
+        });
+    }
+
+    /**
+     * Gives the capturer a fresh timeout, e.g. because it is switching
+     * cameras which legitimately pauses the frames.
+     */
+    void reset() {
+        lastFrameMs = SystemClock.elapsedRealtime();
+        gotFirstFrame = false;
+    }
+
+    /**
+     * Called for every captured frame, on the capturer's thread.
+     */
+    void onFrame() {
+        lastFrameMs = SystemClock.elapsedRealtime();
+        gotFirstFrame = true;
+
+        if (stalled.compareAndSet(true, false)) {
+            long now = lastFrameMs;
+            handler.post(() -> onRecovered(now));
+        }
+    }
+
+    /**
+     * Called when the camera reports an error, it is handled as a stall right
+     * away instead of waiting for the timeout.
+     */
+    void onCameraFailure() {
+        handler.post(() -> {
+            if (running && !stalled.get()) {
+                onStalled(SystemClock.elapsedRealtime());
+                check();
+            }
+        });
+    }
+
+    private void check() {
+        handler.removeCallbacks(check);
+
+        if (!running) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long timeout = gotFirstFrame ? STALL_TIMEOUT_MS : FIRST_FRAME_TIMEOUT_MS;
+
+        if (!stalled.get() && now - lastFrameMs > timeout) {
+            onStalled(lastFrameMs);
+        }
+
+        if (stalled.get() && now >= nextAttemptMs) {
+            if (attempts < MAX_ATTEMPTS) {
+                attempts++;
+                if (attempts == 1) {
+                    firstAttemptMs = now;
+                }
+                nextAttemptMs = now + backoffMs;
+                backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+
+                int attempt = attempts;
+                Log.d(TAG, "Camera capture stalled, recovery attempt " + attempt);
+                ThreadUtils.runOnExecutor(() -> recovery.recover(attempt));
+            } else if (!gaveUp) {
+                gaveUp = true;
+                Log.w(TAG, "Camera capture stalled, giving up after " + attempts + " attempts");
+                if (listener != null) {
+                    listener.onCaptureRecoveryFailed(now - stallStartMs, attempts);
+                }
+            }
+        }
+
+        handler.postDelayed(check, CHECK_INTERVAL_MS);
+    }
+
+    private void onStalled(long stallStartMs) {
+        stalled.set(true);
+        this.stallStartMs = stallStartMs;
+        attempts = 0;
+        backoffMs = INITIAL_BACKOFF_MS;
+        nextAttemptMs = 0;
+
+        if (listener != null) {
+            listener.onCaptureStalled();
+        }
+    }
+
+    private void onRecovered(long now) {
+        Log.d(TAG, "Camera capture recovered after " + attempts + " attempts");
+        gaveUp = false;
+
+        if (listener != null) {
+            listener.onCaptureRecovered(now - stallStartMs, attempts == 0 ? 0 : now - firstAttemptMs, attempts);
+        }
+    }
+}
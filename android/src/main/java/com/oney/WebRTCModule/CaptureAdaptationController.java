@@ -0,0 +1,357 @@
+package com.oney.WebRTCModule;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+/**
+ * Makes the capture format of local video tracks follow what their encoders
+ * actually send. When bandwidth or CPU is short, libwebrtc scales frames down
+ * inside the encoder while the capturer keeps producing full size frames.
+ * This periodically reads the outbound-rtp stats of all peer connections and,
+ * once a track has been limited for a while, limits its capture branch to the
+ * size being sent, which lets the shared capturer drop to a smaller format.
+ * Once the limitation is gone and the target bitrate allows it, the limit is
+ * raised again one step at a time.
+ *
+ * Decisions require several consecutive samples and are spaced by a minimum
+ * dwell time, so that the format does not flap with the bandwidth estimate.
+ */
+class CaptureAdaptationController {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final long SAMPLE_INTERVAL_MS = 2000;
+
+    /**
+     * The number of consecutive limited samples after which a track is
+     * scaled down.
+     */
+    private static final int DOWN_SAMPLES = 3;
+
+    /**
+     * The number of consecutive unlimited samples after which a track is
+     * scaled up.
+     */
+    private static final int UP_SAMPLES = 5;
+
+    /**
+     * The minimum time between two changes of the same track.
+     */
+    private static final long MIN_DWELL_MS = 10000;
+
+    /**
+     * Scale down only if the encoder sends at most this fraction of the
+     * current long side, scale up by its inverse.
+     */
+    private static final float STEP = 2f / 3f;
+
+    /**
+     * Never limit the long side below this.
+     */
+    private static final int MIN_LONG_SIDE = 320;
+
+    /**
+     * The bits per pixel the target bitrate needs to cover before scaling up.
+     */
+    private static final float MIN_BITS_PER_PIXEL = 0.05f;
+
+    /**
+     * What the encoders of one track report in one sample, merged over all
+     * the peer connections and simulcast layers it is sent with.
+     */
+    private static class Sample {
+        boolean limited = true;
+        int sentLongSide;
+        int sentShortSide;
+        double targetBitrate;
+        double framesPerSecond;
+    }
+
+    /**
+     * The adaptation state of one track.
+     */
+    private static class TrackState {
+        int limitedSamples;
+        int clearSamples;
+        long lastChangeMs;
+
+        /**
+         * The format of the track before it got limited, {@code null} while
+         * not limited.
+         */
+        int[] unlimitedFormat;
+        int maxLongSide;
+        int maxShortSide;
+    }
+
+    private final WebRTCModule webRTCModule;
+    private final GetUserMediaImpl getUserMediaImpl;
+
+    /**
+     * The adaptation state mapped by track id. Only accessed on the WebRTC
+     * executor.
+     */
+    private final Map<String, TrackState> trackStates = new HashMap<>();
+
+    private Timer timer;
+
+    CaptureAdaptationController(WebRTCModule webRTCModule, GetUserMediaImpl getUserMediaImpl) {
+        this.webRTCModule = webRTCModule;
+        this.getUserMediaImpl = getUserMediaImpl;
+    }
+
+    synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        timer = new Timer("CaptureAdaptationTimer");
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                ThreadUtils.runOnExecutor(CaptureAdaptationController.this::sample);
+            }
+        }, SAMPLE_INTERVAL_MS, SAMPLE_INTERVAL_MS);
+    }
+
+    synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Requests the stats of all peer connections and processes them once all
+     * have been delivered. Runs on the WebRTC executor.
+     */
+    private void sample() {
+        List<PeerConnection> peerConnections = webRTCModule.getPeerConnections();
+
+        if (peerConnections.isEmpty()) {
+            trackStates.clear();
+            return;
+        }
+
+        List<RTCStatsReport> reports = new ArrayList<>();
+        AtomicInteger pending = new AtomicInteger(peerConnections.size());
+
+        for (PeerConnection peerConnection : peerConnections) {
+            peerConnection.getStats(report -> {
+                synchronized (reports) {
+                    reports.add(report);
+                }
+                if (pending.decrementAndGet() == 0) {
+                    ThreadUtils.runOnExecutor(() -> process(reports));
+                }
+            });
+        }
+    }
+
+    private void process(List<RTCStatsReport> reports) {
+        Map<String, Sample> samples = new HashMap<>();
+
+        for (RTCStatsReport report : reports) {
+            // A track may be sent by more than one peer connection. It has to
+            // be captured as large as the least limited one needs.
+            for (Map.Entry<String, Sample> entry : collectSamples(report).entrySet()) {
+                Sample sample = samples.get(entry.getKey());
+                Sample other = entry.getValue();
+
+                if (sample == null) {
+                    samples.put(entry.getKey(), other);
+                } else {
+                    sample.limited &= other.limited;
+                    sample.sentLongSide = Math.max(sample.sentLongSide, other.sentLongSide);
+                    sample.sentShortSide = Math.max(sample.sentShortSide, other.sentShortSide);
+                    sample.targetBitrate = Math.max(sample.targetBitrate, other.targetBitrate);
+                    sample.framesPerSecond = Math.max(sample.framesPerSecond, other.framesPerSecond);
+                }
+            }
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, Sample> entry : samples.entrySet()) {
+            String trackId = entry.getKey();
+            TrackState state = trackStates.get(trackId);
+
+            if (state == null) {
+                state = new TrackState();
+                trackStates.put(trackId, state);
+            }
+
+            adapt(trackId, state, entry.getValue(), now);
+        }
+
+        // Forget tracks which are no longer sent. Their limits stay in place
+        // until they are sent again or disposed.
+        for (Iterator<String> i = trackStates.keySet().iterator(); i.hasNext();) {
+            if (!samples.containsKey(i.next())) {
+                i.remove();
+            }
+        }
+    }
+
+    private void adapt(String trackId, TrackState state, Sample sample, long now) {
+        if (sample.sentLongSide <= 0) {
+            // Nothing sent yet.
+            return;
+        }
+
+        if (sample.limited) {
+            state.limitedSamples++;
+            state.clearSamples = 0;
+        } else {
+            state.clearSamples++;
+            state.limitedSamples = 0;
+        }
+
+        if (now - state.lastChangeMs < MIN_DWELL_MS) {
+            return;
+        }
+
+        if (state.limitedSamples >= DOWN_SAMPLES) {
+            scaleDown(trackId, state, sample, now);
+        } else if (state.clearSamples >= UP_SAMPLES && state.unlimitedFormat != null) {
+            scaleUp(trackId, state, sample, now);
+        }
+    }
+
+    private void scaleDown(String trackId, TrackState state, Sample sample, long now) {
+        int[] format = state.unlimitedFormat != null
+            ? state.unlimitedFormat
+            : getUserMediaImpl.getTrackCaptureFormat(trackId);
+
+        if (format == null) {
+            return;
+        }
+
+        int currentLongSide = state.unlimitedFormat != null
+            ? state.maxLongSide
+            : Math.max(format[0], format[1]);
+        int longSide = Math.max(sample.sentLongSide, MIN_LONG_SIDE);
+
+        if (longSide > currentLongSide * STEP) {
+            // The encoder doesn't scale down enough to be worth following.
+            return;
+        }
+
+        int shortSide = Math.round(longSide * (float) sample.sentShortSide / sample.sentLongSide);
+
+        if (getUserMediaImpl.setTrackCaptureLimit(trackId, longSide, shortSide)) {
+            Log.d(TAG, "Limiting capture of " + trackId + " to " + longSide + "x" + shortSide);
+            state.unlimitedFormat = format;
+            state.maxLongSide = longSide;
+            state.maxShortSide = shortSide;
+            state.lastChangeMs = now;
+            state.limitedSamples = 0;
+        }
+    }
+
+    private void scaleUp(String trackId, TrackState state, Sample sample, long now) {
+        int[] format = state.unlimitedFormat;
+        int unlimitedLongSide = Math.max(format[0], format[1]);
+        int unlimitedShortSide = Math.min(format[0], format[1]);
+        int longSide = Math.min(Math.round(state.maxLongSide / STEP), unlimitedLongSide);
+        int shortSide = Math.min(Math.round(state.maxShortSide / STEP), unlimitedShortSide);
+
+        double frameRate = sample.framesPerSecond > 0 ? sample.framesPerSecond : format[2];
+        if (sample.targetBitrate < (double) longSide * shortSide * frameRate * MIN_BITS_PER_PIXEL) {
+            // The larger format would be scaled down by the encoder anyway.
+            return;
+        }
+
+        boolean lift = longSide >= unlimitedLongSide;
+
+        if (lift
+                ? getUserMediaImpl.setTrackCaptureLimit(trackId, 0, 0)
+                : getUserMediaImpl.setTrackCaptureLimit(trackId, longSide, shortSide)) {
+            Log.d(TAG, lift
+                ? "Lifting capture limit of " + trackId
+                : "Raising capture limit of " + trackId + " to " + longSide + "x" + shortSide);
+            state.unlimitedFormat = lift ? null : format;
+            state.maxLongSide = lift ? 0 : longSide;
+            state.maxShortSide = lift ? 0 : shortSide;
+            state.lastChangeMs = now;
+            state.clearSamples = 0;
+        }
+    }
+
+    /**
+     * Collects the outbound video samples of a single report, mapped by track
+     * id.
+     */
+    private static Map<String, Sample> collectSamples(RTCStatsReport report) {
+        Map<String, RTCStats> statsMap = report.getStatsMap();
+        Map<String, Sample> samples = new HashMap<>();
+
+        for (RTCStats stats : statsMap.values()) {
+            if (!"outbound-rtp".equals(stats.getType())) {
+                continue;
+            }
+
+            Map<String, Object> members = stats.getMembers();
+            Object kind = members.containsKey("kind") ? members.get("kind") : members.get("mediaType");
+
+            if (!"video".equals(kind)) {
+                continue;
+            }
+
+            String trackId = getTrackIdentifier(statsMap, members);
+            Number frameWidth = (Number) members.get("frameWidth");
+            Number frameHeight = (Number) members.get("frameHeight");
+
+            if (trackId == null || frameWidth == null || frameHeight == null) {
+                continue;
+            }
+
+            Sample sample = samples.get(trackId);
+            if (sample == null) {
+                sample = new Sample();
+                samples.put(trackId, sample);
+            }
+
+            // Simulcast layers are limited only if all of them are.
+            Object reason = members.get("qualityLimitationReason");
+            sample.limited &= "bandwidth".equals(reason) || "cpu".equals(reason);
+
+            int width = frameWidth.intValue();
+            int height = frameHeight.intValue();
+            sample.sentLongSide = Math.max(sample.sentLongSide, Math.max(width, height));
+            sample.sentShortSide = Math.max(sample.sentShortSide, Math.min(width, height));
+
+            Number targetBitrate = (Number) members.get("targetBitrate");
+            if (targetBitrate != null) {
+                sample.targetBitrate += targetBitrate.doubleValue();
+            }
+
+            Number framesPerSecond = (Number) members.get("framesPerSecond");
+            if (framesPerSecond != null) {
+                sample.framesPerSecond = Math.max(sample.framesPerSecond, framesPerSecond.doubleValue());
+            }
+        }
+
+        return samples;
+    }
+
+    static String getTrackIdentifier(Map<String, RTCStats> statsMap, Map<String, Object> members) {
+        // Current stats reference the media-source, older ones the track.
+        Object sourceId = members.containsKey("mediaSourceId") ? members.get("mediaSourceId") : members.get("trackId");
+        RTCStats source = sourceId == null ? null : statsMap.get(sourceId);
+        Object trackIdentifier = source == null ? null : source.getMembers().get("trackIdentifier");
+
+        return trackIdentifier instanceof String ? (String) trackIdentifier : null;
+    }
+}
@@ -0,0 +1,297 @@
+package com.oney.WebRTCModule;
+
+import android.content.Context;
+import android.os.Build;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.webrtc.PeerConnection;
+import org.webrtc.RtcCertificatePem;
+
+/**
+ * Keeps DTLS certificates generated ahead of time, so creating a peer
+ * connection doesn't wait for libwebrtc to generate one. That is slow for RSA
+ * keys in particular, on low-end devices it takes seconds.
+ *
+ * Each certificate is handed out once. When a pool drops to its low watermark
+ * it is refilled to its size on a background thread. The certificates are
+ * persisted in a private file, which is excluded from backups as it holds
+ * private keys, so the pools are full right away on the next launch. They are
+ * discarded some time before they expire. A pool is kept for ECDSA keys, the
+ * default, and for RSA keys once they have been asked for.
+ *
+ * The pool is process-wide, as the certificates don't depend on the
+ * {@link org.webrtc.PeerConnectionFactory}. It may only be used once the
+ * native library is loaded.
+ */
+class DtlsCertificatePool {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final String FILE_NAME = "com.oney.WebRTCModule.DtlsCertificatePool.json";
+
+    /**
+     * The lifetime of the generated certificates, libwebrtc's default.
+     */
+    private static final long EXPIRES_SECONDS = TimeUnit.DAYS.toSeconds(30);
+
+    /**
+     * The minimum lifetime left for a certificate to be handed out, so it
+     * outlives the connection using it.
+     */
+    private static final long MIN_REMAINING_MS = TimeUnit.DAYS.toMillis(1);
+
+    private static DtlsCertificatePool instance;
+
+    private static class Entry {
+        final RtcCertificatePem certificate;
+        final long expiresAtMs;
+
+        Entry(RtcCertificatePem certificate, long expiresAtMs) {
+            this.certificate = certificate;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    private final AtomicFile file;
+    private final Map<PeerConnection.KeyType, Deque<Entry>> pools = new EnumMap<>(PeerConnection.KeyType.class);
+    private final Map<PeerConnection.KeyType, Boolean> refilling = new EnumMap<>(PeerConnection.KeyType.class);
+    private final ExecutorService generatorExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Writes {@link #file}, in order, off the threads taking certificates.
+     */
+    private final ExecutorService storageExecutor = Executors.newSingleThreadExecutor();
+
+    private int size;
+    private int lowWatermark;
+
+    /**
+     * Returns the pool, creating it and loading the persisted certificates if
+     * needed. The pools are refilled to {@code size} whenever they drop to
+     * {@code lowWatermark}; the latest values apply.
+     */
+    static synchronized DtlsCertificatePool getInstance(Context context, int size, int lowWatermark) {
+        if (instance == null) {
+            instance = new DtlsCertificatePool(context.getApplicationContext());
+        }
+
+        instance.setSize(size, lowWatermark);
+
+        return instance;
+    }
+
+    private DtlsCertificatePool(Context context) {
+        // Auto Backup only exists since Android 6, the no backup directory
+        // since 5.
+        File dir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+            ? context.getNoBackupFilesDir()
+            : context.getFilesDir();
+        file = new AtomicFile(new File(dir, FILE_NAME));
+
+        pools.put(PeerConnection.KeyType.ECDSA, new ArrayDeque<>());
+        load();
+    }
+
+    private synchronized void setSize(int size, int lowWatermark) {
+        this.size = size;
+        this.lowWatermark = Math.min(lowWatermark, size - 1);
+
+        for (PeerConnection.KeyType keyType : pools.keySet()) {
+            refillIfNeeded(keyType);
+        }
+    }
+
+    /**
+     * Takes a certificate for the given key type out of the pool.
+     *
+     * @return the certificate or {@code null} if none is ready, in which case
+     * libwebrtc generates one as usual
+     */
+    @Nullable
+    synchronized RtcCertificatePem take(PeerConnection.KeyType keyType) {
+        Deque<Entry> pool = pools.get(keyType);
+        if (pool == null) {
+            pool = new ArrayDeque<>();
+            pools.put(keyType, pool);
+        }
+
+        long minExpiresAtMs = System.currentTimeMillis() + MIN_REMAINING_MS;
+        Entry entry;
+        do {
+            entry = pool.pollFirst();
+        } while (entry != null && entry.expiresAtMs < minExpiresAtMs);
+
+        refillIfNeeded(keyType);
+        save();
+
+        if (entry == null) {
+            Log.d(TAG, "No pooled " + keyType + " DTLS certificate");
+            return null;
+        }
+
+        return entry.certificate;
+    }
+
+    private void refillIfNeeded(PeerConnection.KeyType keyType) {
+        if (pools.get(keyType).size() > lowWatermark || Boolean.TRUE.equals(refilling.get(keyType))) {
+            return;
+        }
+
+        refilling.put(keyType, true);
+        generatorExecutor.execute(() -> refill(keyType));
+    }
+
+    /**
+     * Generates certificates until the pool is full. Runs on the generator
+     * thread, one certificate at a time so they're available as soon as
+     * possible.
+     */
+    private void refill(PeerConnection.KeyType keyType) {
+        while (true) {
+            synchronized (this) {
+                Deque<Entry> pool = pools.get(keyType);
+                removeExpired(pool);
+
+                if (pool.size() >= size) {
+                    refilling.put(keyType, false);
+                    save();
+                    return;
+                }
+            }
+
+            long startMs = System.currentTimeMillis();
+            RtcCertificatePem certificate;
+
+            try {
+                certificate = RtcCertificatePem.generateCertificate(keyType, EXPIRES_SECONDS);
+            } catch (Throwable tr) {
+                Log.e(TAG, "Failed to generate a " + keyType + " DTLS certificate", tr);
+                synchronized (this) {
+                    refilling.put(keyType, false);
+                }
+                return;
+            }
+
+            long endMs = System.currentTimeMillis();
+            Log.d(TAG, "Generated a " + keyType + " DTLS certificate in " + (endMs - startMs) + " ms");
+
+            synchronized (this) {
+                pools.get(keyType).addLast(new Entry(certificate, startMs + TimeUnit.SECONDS.toMillis(EXPIRES_SECONDS)));
+            }
+        }
+    }
+
+    private void removeExpired(Deque<Entry> pool) {
+        long minExpiresAtMs = System.currentTimeMillis() + MIN_REMAINING_MS;
+
+        for (Iterator<Entry> i = pool.iterator(); i.hasNext();) {
+            if (i.next().expiresAtMs < minExpiresAtMs) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Loads the persisted certificates, along with the key types which have
+     * been asked for. If anything can't be read, all of them are discarded.
+     */
+    private void load() {
+        String json;
+
+        try {
+            json = new String(file.readFully(), StandardCharsets.UTF_8);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the persisted DTLS certificates", e);
+            file.delete();
+            return;
+        }
+
+        Map<PeerConnection.KeyType, Deque<Entry>> loaded = new EnumMap<>(PeerConnection.KeyType.class);
+
+        try {
+            JSONObject keyTypes = new JSONObject(json);
+
+            for (PeerConnection.KeyType keyType : PeerConnection.KeyType.values()) {
+                JSONArray entries = keyTypes.optJSONArray(keyType.name());
+                if (entries == null) {
+                    continue;
+                }
+
+                Deque<Entry> pool = new ArrayDeque<>();
+                for (int i = 0; i < entries.length(); i++) {
+                    JSONObject entry = entries.getJSONObject(i);
+                    RtcCertificatePem certificate = new RtcCertificatePem(
+                        entry.getString("privateKey"), entry.getString("certificate"));
+                    pool.addLast(new Entry(certificate, entry.getLong("expiresAt")));
+                }
+
+                removeExpired(pool);
+                loaded.put(keyType, pool);
+            }
+        } catch (JSONException e) {
+            Log.w(TAG, "Discarding the persisted DTLS certificates", e);
+            file.delete();
+            return;
+        }
+
+        pools.putAll(loaded);
+    }
+
+    private void save() {
+        JSONObject keyTypes = new JSONObject();
+
+        try {
+            for (Map.Entry<PeerConnection.KeyType, Deque<Entry>> pool : pools.entrySet()) {
+                JSONArray entries = new JSONArray();
+                for (Entry entry : pool.getValue()) {
+                    entries.put(new JSONObject()
+                        .put("privateKey", entry.certificate.privateKey)
+                        .put("certificate", entry.certificate.certificate)
+                        .put("expiresAt", entry.expiresAtMs));
+                }
+                keyTypes.put(pool.getKey().name(), entries);
+            }
+        } catch (JSONException e) {
+            // Not reached, the values are strings and numbers.
+            throw new RuntimeException(e);
+        }
+
+        byte[] bytes = keyTypes.toString().getBytes(StandardCharsets.UTF_8);
+
+        storageExecutor.execute(() -> {
+            FileOutputStream out = null;
+
+            try {
+                out = file.startWrite();
+                out.write(bytes);
+                file.finishWrite(out);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to persist the DTLS certificates", e);
+                if (out != null) {
+                    file.failWrite(out);
+                }
+            }
+        });
+    }
+}
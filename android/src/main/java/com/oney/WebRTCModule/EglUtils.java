@@ -1,11 +1,32 @@
 package com.oney.WebRTCModule;
 
+import android.opengl.GLES20;
 import android.util.Log;
 import android.os.Build.VERSION;
 
+import javax.microedition.khronos.egl.EGL10;
+
 import org.webrtc.EglBase;
 
 public class EglUtils {
+    /**
+     * {@code EGL_OPENGL_ES3_BIT_KHR}, from {@code EGL_KHR_create_context}.
+     */
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
+
+    /**
+     * Same as {@link EglBase#CONFIG_PIXEL_BUFFER} for a GLES 3 context, which
+     * {@link EglBase#create} requests because of the renderable type.
+     */
+    public static final int[] CONFIG_PIXEL_BUFFER_ES3 = {
+        EGL10.EGL_RED_SIZE, 8,
+        EGL10.EGL_GREEN_SIZE, 8,
+        EGL10.EGL_BLUE_SIZE, 8,
+        EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES3_BIT_KHR,
+        EGL10.EGL_SURFACE_TYPE, EGL10.EGL_PBUFFER_BIT,
+        EGL10.EGL_NONE
+    };
+
     /**
      * The root {@link EglBase} instance shared by the entire application for
      * the sake of reducing the utilization of system resources (such as EGL
@@ -63,4 +84,13 @@ public class EglUtils {
 
         return eglBase == null ? null : eglBase.getEglBaseContext();
     }
+
+    /**
+     * Whether the context current on the calling thread is a GLES 3 one.
+     */
+    public static boolean isCurrentContextEs3() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+
+        return version != null && version.startsWith("OpenGL ES 3");
+    }
 }
@@ -0,0 +1,549 @@
+package com.oney.WebRTCModule;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.Promise;
+import com.facebook.react.bridge.WritableMap;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.RendererCommon;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+
+/**
+ * Takes still snapshots of video tracks. The next frame of the track is scaled
+ * on the GPU into an offscreen framebuffer and read back asynchronously through
+ * a pixel buffer object, so neither the track's capture / render thread nor the
+ * snapshot thread ever blocks on the GPU. The pixels are then encoded on a
+ * worker thread and written to a file in the cache directory.
+ *
+ * The files belong to the caller, who should delete them once done with them.
+ * Whatever is left of them is deleted when the next snapshotter is created,
+ * i.e. in the next session of the app or after a reload.
+ */
+class FrameSnapshotter {
+    private static final String TAG = WebRTCModule.TAG;
+
+    /**
+     * How long to wait for the next frame of a track before giving up.
+     */
+    private static final long FRAME_TIMEOUT_MS = 5000;
+
+    /**
+     * How often the PBO fence is polled until the readback completes.
+     */
+    private static final long FENCE_POLL_INTERVAL_MS = 2;
+
+    private static final String FILE_PREFIX = "snapshot-";
+
+    private final Context context;
+
+    /**
+     * The thread owning the offscreen EGL context, created lazily.
+     */
+    private HandlerThread snapshotThread;
+    private Handler snapshotHandler;
+
+    /**
+     * The requests which haven't reached the encoder yet, rejected if the
+     * snapshotter is disposed before. Guarded by {@code this}, as are
+     * {@link #snapshotThread} and {@link #snapshotHandler}.
+     */
+    private final Set<SnapshotSink> pendingSinks = new HashSet<>();
+    private boolean disposed;
+
+    /**
+     * The worker which encodes the read back pixels.
+     */
+    private final ExecutorService encoderExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * The GL state, only accessed on {@link #snapshotThread}.
+     */
+    private EglBase eglBase;
+    private RendererCommon.GlDrawer drawer;
+    private VideoFrameDrawer frameDrawer;
+    private GlTextureFrameBuffer frameBuffer;
+    private boolean pboSupported;
+
+    FrameSnapshotter(Context context) {
+        this.context = context;
+
+        encoderExecutor.execute(this::deleteStaleSnapshots);
+    }
+
+    /**
+     * Captures the next frame of the given track.
+     *
+     * @param videoTrack The track to take a snapshot of.
+     * @param maxWidth The maximum width of the snapshot, 0 to keep the frame's
+     * size. The aspect ratio is always preserved.
+     * @param format Either "jpeg" or "webp".
+     * @param quality The compression quality in the [0, 100] range.
+     * @param promise Resolved with the path, width and height of the snapshot.
+     */
+    void captureFrame(VideoTrack videoTrack, int maxWidth, String format, int quality, Promise promise) {
+        SnapshotSink sink = new SnapshotSink(videoTrack, maxWidth, format, quality, promise);
+
+        synchronized (this) {
+            if (disposed) {
+                promise.reject("E_INVALID", "The snapshotter has been disposed");
+                return;
+            }
+            pendingSinks.add(sink);
+        }
+
+        try {
+            videoTrack.addSink(sink);
+        } catch (Throwable tr) {
+            if (sink.settle()) {
+                promise.reject("E_INVALID", "The track has been released", tr);
+            }
+            return;
+        }
+
+        if (!postToSnapshotThread(sink.timeoutRunnable, FRAME_TIMEOUT_MS)) {
+            sink.finish();
+            sink.reject("The snapshotter has been disposed");
+        }
+    }
+
+    void dispose() {
+        synchronized (this) {
+            if (disposed) {
+                return;
+            }
+            disposed = true;
+
+            // Anything queued so far runs first. What's left behind, timeouts
+            // and readbacks in progress, is dropped when the thread quits so
+            // their requests are rejected here.
+            if (snapshotHandler != null) {
+                snapshotHandler.post(() -> {
+                    releaseEgl();
+                    rejectPendingSinks();
+                });
+                snapshotThread.quitSafely();
+                snapshotThread = null;
+                snapshotHandler = null;
+            }
+        }
+        encoderExecutor.shutdown();
+    }
+
+    /**
+     * Posts the given task to {@link #snapshotThread}, starting it if needed.
+     *
+     * @return {@code false} if the snapshotter is disposed, the task will
+     * never run
+     */
+    private synchronized boolean postToSnapshotThread(Runnable task, long delayMs) {
+        if (disposed) {
+            return false;
+        }
+
+        if (snapshotHandler == null) {
+            snapshotThread = new HandlerThread("FrameSnapshotThread");
+            snapshotThread.start();
+            snapshotHandler = new Handler(snapshotThread.getLooper());
+        }
+
+        return snapshotHandler.postDelayed(task, delayMs);
+    }
+
+    private synchronized void removeFromSnapshotThread(Runnable task) {
+        if (snapshotHandler != null) {
+            snapshotHandler.removeCallbacks(task);
+        }
+    }
+
+    private void rejectPendingSinks() {
+        List<SnapshotSink> sinks;
+
+        synchronized (this) {
+            sinks = new ArrayList<>(pendingSinks);
+        }
+
+        for (SnapshotSink sink : sinks) {
+            sink.finish();
+            sink.reject("The snapshotter has been disposed");
+        }
+    }
+
+    private boolean ensureEgl() {
+        if (eglBase != null) {
+            return true;
+        }
+
+        EglBase.Context sharedContext = EglUtils.getRootEglBaseContext();
+        if (sharedContext == null) {
+            return false;
+        }
+
+        // PBOs are a GLES 3 feature, so ask for a GLES 3 context and fall
+        // back to GLES 2 and a synchronous glReadPixels without one.
+        boolean es3 = createEgl(sharedContext, EglUtils.CONFIG_PIXEL_BUFFER_ES3);
+        if (!es3 && !createEgl(sharedContext, EglBase.CONFIG_PIXEL_BUFFER)) {
+            return false;
+        }
+
+        drawer = new GlRectDrawer();
+        frameDrawer = new VideoFrameDrawer();
+        frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+
+        pboSupported = es3 && EglUtils.isCurrentContextEs3();
+
+        return true;
+    }
+
+    private boolean createEgl(EglBase.Context sharedContext, int[] configAttributes) {
+        try {
+            eglBase = EglBase.create(sharedContext, configAttributes);
+            eglBase.createDummyPbufferSurface();
+            eglBase.makeCurrent();
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to create the snapshot EGL context", e);
+            releaseEgl();
+            return false;
+        }
+    }
+
+    private void releaseEgl() {
+        if (frameBuffer != null) {
+            frameBuffer.release();
+            frameBuffer = null;
+        }
+        if (drawer != null) {
+            drawer.release();
+            drawer = null;
+        }
+        if (frameDrawer != null) {
+            frameDrawer.release();
+            frameDrawer = null;
+        }
+        if (eglBase != null) {
+            eglBase.release();
+            eglBase = null;
+        }
+    }
+
+    /**
+     * Draws the given frame, scaled to the given size, into
+     * {@link #frameBuffer} and starts reading it back. Runs on
+     * {@link #snapshotThread}.
+     */
+    private void drawAndRead(VideoFrame frame, int width, int height, SnapshotSink sink) {
+        if (!ensureEgl()) {
+            sink.reject("Failed to initialize EGL");
+            return;
+        }
+
+        frameBuffer.setSize(width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+
+        // glReadPixels() returns rows bottom-up, draw flipped so that the read
+        // back image is the right way up.
+        Matrix drawMatrix = new Matrix();
+        drawMatrix.preTranslate(0.5f, 0.5f);
+        drawMatrix.preScale(1f, -1f);
+        drawMatrix.preTranslate(-0.5f, -0.5f);
+        frameDrawer.drawFrame(frame, drawer, drawMatrix, 0, 0, width, height);
+
+        int size = width * height * 4;
+
+        if (!pboSupported) {
+            ByteBuffer pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            encode(pixels, width, height, sink);
+            return;
+        }
+
+        int[] pbo = new int[1];
+        GLES30.glGenBuffers(1, pbo, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[0]);
+        GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+        GLES30.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        long fence = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GLES20.glFlush();
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        pollReadback(pbo[0], fence, width, height, sink);
+    }
+
+    /**
+     * Maps the PBO once the GPU is done writing it, otherwise checks back
+     * later without blocking {@link #snapshotThread}.
+     */
+    private void pollReadback(int pbo, long fence, int width, int height, SnapshotSink sink) {
+        if (eglBase == null) {
+            sink.reject("The snapshotter has been disposed");
+            return;
+        }
+
+        int status = GLES30.glClientWaitSync(fence, 0, 0);
+
+        if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+            // If disposed, the request is rejected once the queue is drained.
+            postToSnapshotThread(
+                () -> pollReadback(pbo, fence, width, height, sink),
+                FENCE_POLL_INTERVAL_MS);
+            return;
+        }
+
+        GLES30.glDeleteSync(fence);
+
+        int size = width * height * 4;
+        ByteBuffer pixels = null;
+
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo);
+        if (status != GLES30.GL_WAIT_FAILED) {
+            ByteBuffer mapped
+                = (ByteBuffer) GLES30.glMapBufferRange(
+                    GLES30.GL_PIXEL_PACK_BUFFER, 0, size, GLES30.GL_MAP_READ_BIT);
+            if (mapped != null) {
+                pixels = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+                pixels.put(mapped);
+                pixels.rewind();
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+            }
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES30.glDeleteBuffers(1, new int[] { pbo }, 0);
+
+        if (pixels == null) {
+            sink.reject("Failed to read back the frame");
+            return;
+        }
+
+        encode(pixels, width, height, sink);
+    }
+
+    private void encode(ByteBuffer pixels, int width, int height, SnapshotSink sink) {
+        synchronized (this) {
+            pendingSinks.remove(sink);
+        }
+
+        try {
+            encoderExecutor.execute(() -> encodeAndWrite(pixels, width, height, sink));
+        } catch (RejectedExecutionException e) {
+            sink.reject("The snapshotter has been disposed");
+        }
+    }
+
+    private void encodeAndWrite(ByteBuffer pixels, int width, int height, SnapshotSink sink) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        bitmap.copyPixelsFromBuffer(pixels);
+
+        boolean webp = "webp".equals(sink.format);
+        File file = new File(
+            context.getCacheDir(),
+            FILE_PREFIX + UUID.randomUUID().toString() + (webp ? ".webp" : ".jpg"));
+        boolean compressed;
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            compressed = bitmap.compress(
+                webp ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG,
+                sink.quality,
+                out);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write snapshot", e);
+            file.delete();
+            sink.reject("Failed to write snapshot: " + e.getMessage());
+            return;
+        } finally {
+            bitmap.recycle();
+        }
+
+        if (!compressed) {
+            Log.e(TAG, "Failed to encode snapshot");
+            file.delete();
+            sink.reject("Failed to encode snapshot");
+            return;
+        }
+
+        WritableMap result = Arguments.createMap();
+        result.putString("path", file.getAbsolutePath());
+        result.putInt("width", width);
+        result.putInt("height", height);
+        if (sink.settle()) {
+            sink.promise.resolve(result);
+        }
+    }
+
+    /**
+     * Deletes the snapshots of earlier snapshotters, on the encoder thread so
+     * it precedes any snapshot of this one.
+     */
+    private void deleteStaleSnapshots() {
+        File[] files = context.getCacheDir().listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.getName().startsWith(FILE_PREFIX) && !file.delete()) {
+                Log.w(TAG, "Failed to delete stale snapshot " + file.getName());
+            }
+        }
+    }
+
+    /**
+     * One-shot {@link VideoSink} which detaches itself from the track after
+     * the first frame.
+     */
+    private class SnapshotSink implements VideoSink {
+        final VideoTrack videoTrack;
+        final int maxWidth;
+        final String format;
+        final int quality;
+        final Promise promise;
+
+        /**
+         * Whether a frame was taken or the request timed out. Guarded by
+         * {@code this}.
+         */
+        private boolean done;
+
+        /**
+         * Whether the promise was resolved or rejected. Guarded by
+         * {@code this}.
+         */
+        private boolean settled;
+
+        final Runnable timeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (finish() && settle()) {
+                    promise.reject("E_TIMEOUT", "No frame received from the track");
+                }
+            }
+        };
+
+        SnapshotSink(VideoTrack videoTrack, int maxWidth, String format, int quality, Promise promise) {
+            this.videoTrack = videoTrack;
+            this.maxWidth = maxWidth;
+            this.format = format;
+            this.quality = Math.max(0, Math.min(100, quality));
+            this.promise = promise;
+        }
+
+        @Override
+        public void onFrame(VideoFrame frame) {
+            if (!finish()) {
+                return;
+            }
+
+            int frameWidth = frame.getRotatedWidth();
+            int frameHeight = frame.getRotatedHeight();
+            int width = frameWidth;
+            int height = frameHeight;
+
+            if (maxWidth > 0 && frameWidth > maxWidth) {
+                width = maxWidth;
+                height = Math.max(1, Math.round(frameHeight * (maxWidth / (float) frameWidth)));
+            }
+
+            int targetWidth = width;
+            int targetHeight = height;
+
+            frame.retain();
+            removeFromSnapshotThread(timeoutRunnable);
+            boolean posted = postToSnapshotThread(() -> {
+                try {
+                    drawAndRead(frame, targetWidth, targetHeight, this);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to capture frame", e);
+                    reject(e.getMessage());
+                } finally {
+                    frame.release();
+                }
+            }, 0);
+
+            if (!posted) {
+                frame.release();
+                reject("The snapshotter has been disposed");
+            }
+        }
+
+        /**
+         * Marks this request as done and detaches from the track.
+         *
+         * @return {@code true} if the request was not done yet.
+         */
+        private boolean finish() {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+            }
+
+            // Removing the sink from within onFrame is fine, but do it off the
+            // frame delivery path anyway.
+            ThreadUtils.runOnExecutor(() -> {
+                try {
+                    videoTrack.removeSink(this);
+                } catch (Throwable tr) {
+                    // The track may have been released in the meantime.
+                }
+            });
+
+            return true;
+        }
+
+        /**
+         * Marks the promise as settled and forgets this request.
+         *
+         * @return {@code true} if the promise was not settled yet.
+         */
+        boolean settle() {
+            synchronized (FrameSnapshotter.this) {
+                pendingSinks.remove(this);
+            }
+
+            synchronized (this) {
+                if (settled) {
+                    return false;
+                }
+                settled = true;
+            }
+
+            return true;
+        }
+
+        void reject(String message) {
+            if (settle()) {
+                promise.reject("E_OPERATION_ERROR", message);
+            }
+        }
+    }
+}
@@ -3,7 +3,10 @@ package com.oney.WebRTCModule;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.RectF;
 import android.media.projection.MediaProjectionManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
@@ -14,17 +17,21 @@ import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
 import com.facebook.react.bridge.UiThreadUtil;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 
+import com.oney.WebRTCModule.videoEffects.AsyncVideoEffectProcessor;
 import com.oney.WebRTCModule.videoEffects.ProcessorProvider;
 import com.oney.WebRTCModule.videoEffects.VideoEffectProcessor;
 import com.oney.WebRTCModule.videoEffects.VideoFrameProcessor;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
 
 import org.webrtc.*;
@@ -41,7 +48,17 @@ class GetUserMediaImpl {
 
     private static final int PERMISSION_REQUEST_CODE = (int) (Math.random() * Short.MAX_VALUE);
 
-    private final CameraEnumerator cameraEnumerator;
+    /**
+     * How long a prewarmed camera is kept open by default if no
+     * {@code getUserMedia} call adopts it.
+     */
+    private static final int DEFAULT_PREWARM_IDLE_TIMEOUT_MS = 10000;
+
+    /**
+     * Created on first use, so that audio-only apps don't pay for the camera
+     * enumeration. Only accessed on the executor.
+     */
+    private CameraCapabilityIndex cameraCapabilityIndex;
     private final ReactApplicationContext reactContext;
 
     /**
@@ -55,29 +72,34 @@ class GetUserMediaImpl {
 
     private Promise displayMediaPromise;
     private Intent mediaProjectionPermissionResultData;
+
+    /**
+     * The region of the screen requested by the pending getDisplayMedia, in
+     * fractions of the display size, or {@code null} for the whole screen.
+     */
+    private RectF displayMediaRegion;
+    private int displayMediaMaxWidth;
+    private int displayMediaMaxHeight;
+
     private RawVideoCaptureController rawVideoCaptureController;
 
-    GetUserMediaImpl(WebRTCModule webRTCModule, ReactApplicationContext reactContext) {
-        this.webRTCModule = webRTCModule;
-        this.reactContext = reactContext;
+    /**
+     * The camera opened by {@link #prewarmCamera}, if any. Only accessed on the
+     * WebRTC executor.
+     */
+    private PrewarmedCamera prewarmedCamera;
 
-        boolean camera2supported = false;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
-        try {
-            camera2supported = Camera2Enumerator.isSupported(reactContext);
-        } catch (Throwable tr) {
-            // Some devices will crash here with: Fatal Exception: java.lang.AssertionError: Supported FPS ranges cannot be null.
-            // Make sure we don't.
-            Log.w(TAG, "Error checking for Camera2 API support.", tr);
-        }
+    /**
+     * The running camera capture sources, shared by all the tracks which
+     * capture from the same camera. Only accessed on the WebRTC executor.
+     */
+    private final List<VideoCaptureSource> cameraSources = new ArrayList<>();
 
-        if (camera2supported) {
-            Log.d(TAG, "Creating video capturer using Camera2 API.");
-            cameraEnumerator = new Camera2Enumerator(reactContext);
-        } else {
-            Log.d(TAG, "Creating video capturer using Camera1 API.");
-            cameraEnumerator = new Camera1Enumerator(false);
-        }
+    GetUserMediaImpl(WebRTCModule webRTCModule, ReactApplicationContext reactContext) {
+        this.webRTCModule = webRTCModule;
+        this.reactContext = reactContext;
 
         reactContext.addActivityEventListener(new BaseActivityEventListener() {
             @Override
@@ -113,10 +135,10 @@ class GetUserMediaImpl {
         AudioSource audioSource = pcFactory.createAudioSource(peerConstraints);
         AudioTrack track = pcFactory.createAudioTrack(id, audioSource);
         
-        // surfaceTextureHelper is initialized for videoTrack only, so its null here.
+        // captureSource is for videoTrack only, so its null here.
         tracks.put(
             id,
-            new TrackPrivate(track, audioSource, /* videoCapturer */ null, /* surfaceTextureHelper */ null));
+            new TrackPrivate(track, audioSource, /* captureSource */ null));
 
         return track;
     }
@@ -137,25 +159,46 @@ class GetUserMediaImpl {
         peerConstraints.mandatory.addAll(valid);
     }
 
+    private CameraCapabilityIndex getCameraCapabilityIndex() {
+        if (cameraCapabilityIndex != null) {
+            return cameraCapabilityIndex;
+        }
+
+        CameraEnumerator cameraEnumerator;
+        boolean camera2supported = false;
+
+        try {
+            camera2supported = Camera2Enumerator.isSupported(reactContext);
+        } catch (Throwable tr) {
+            // Some devices will crash here with: Fatal Exception: java.lang.AssertionError: Supported FPS ranges cannot be null.
+            // Make sure we don't.
+            Log.w(TAG, "Error checking for Camera2 API support.", tr);
+        }
+
+        if (camera2supported) {
+            Log.d(TAG, "Creating video capturer using Camera2 API.");
+            cameraEnumerator = new Camera2Enumerator(reactContext);
+        } else {
+            Log.d(TAG, "Creating video capturer using Camera1 API.");
+            cameraEnumerator = new Camera1Enumerator(false);
+        }
+
+        cameraCapabilityIndex = new CameraCapabilityIndex(reactContext, cameraEnumerator);
+
+        return cameraCapabilityIndex;
+    }
+
     ReadableArray enumerateDevices() {
         WritableArray array = Arguments.createArray();
-        String[] devices = cameraEnumerator.getDeviceNames();
-
-        for (int i = 0; i < devices.length; ++i) {
-            String deviceName = devices[i];
-            boolean isFrontFacing;
-            try {
-                // This can throw an exception when using the Camera 1 API.
-                isFrontFacing = cameraEnumerator.isFrontFacing(deviceName);
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to check the facing mode of camera");
-                continue;
-            }
+        List<CameraCapabilityIndex.Device> devices = getCameraCapabilityIndex().getDevices();
+
+        for (int i = 0; i < devices.size(); ++i) {
+            CameraCapabilityIndex.Device device = devices.get(i);
             WritableMap params = Arguments.createMap();
-            params.putString("facing", isFrontFacing ? "front" : "environment");
+            params.putString("facing", device.isFrontFacing ? "front" : "environment");
             params.putString("deviceId", "" + i);
             params.putString("groupId", "");
-            params.putString("label", deviceName);
+            params.putString("label", device.name);
             params.putString("kind", "videoinput");
             array.pushMap(params);
         }
@@ -200,11 +243,31 @@ class GetUserMediaImpl {
 
             Log.d(TAG, "getUserMedia(video): " + videoConstraintsMap);
 
-            CameraCaptureController cameraCaptureController = new CameraCaptureController(
-                cameraEnumerator,
-                videoConstraintsMap);
+            VideoCaptureSource captureSource = findCameraSource(videoConstraintsMap);
 
-            videoTrack = createVideoTrack(cameraCaptureController);
+            if (captureSource != null) {
+                Log.d(TAG, "Sharing the running capturer of camera "
+                    + ((CameraCaptureController) captureSource.getVideoCaptureController()).getDeviceName());
+                videoTrack = createVideoTrack(
+                    captureSource,
+                    videoConstraintsMap.getInt("width"),
+                    videoConstraintsMap.getInt("height"),
+                    videoConstraintsMap.getInt("frameRate"));
+            } else {
+                captureSource = adoptPrewarmedCamera(videoConstraintsMap);
+
+                if (captureSource == null) {
+                    CameraCaptureController cameraCaptureController
+                        = createCameraCaptureController(videoConstraintsMap);
+
+                    captureSource = VideoCaptureSource.create(cameraCaptureController, reactContext);
+                }
+
+                if (captureSource != null) {
+                    cameraSources.add(captureSource);
+                    videoTrack = createVideoTrack(captureSource);
+                }
+            }
         }
 
         if (audioTrack == null && videoTrack == null) {
@@ -227,12 +290,10 @@ class GetUserMediaImpl {
 
     void mediaStreamTrackSetEnabled(String trackId, final boolean enabled) {
         TrackPrivate track = tracks.get(trackId);
-        if (track != null && track.videoCaptureController != null) {
-            if (enabled) {
-                track.videoCaptureController.startCapture();
-            } else {
-                track.videoCaptureController.stopCapture();
-            }
+        if (track != null && track.captureSource != null) {
+            // The capturer keeps running as long as any track sharing it is
+            // enabled.
+            track.captureSource.setBranchEnabled((VideoSource) track.mediaSource, enabled);
         }
     }
 
@@ -240,18 +301,180 @@ class GetUserMediaImpl {
         TrackPrivate track = tracks.remove(id);
         if (track != null) {
             track.dispose();
+
+            VideoCaptureSource captureSource = track.captureSource;
+            if (captureSource != null && captureSource.getBranchCount() == 0) {
+                // That was the last track over this capturer.
+                cameraSources.remove(captureSource);
+                captureSource.dispose();
+            }
+        }
+    }
+
+    /**
+     * Disposes all the local tracks, and their capturers, as well as the
+     * prewarmed camera, when the module is invalidated.
+     */
+    void dispose() {
+        releasePrewarmedCamera();
+
+        for (String id : new ArrayList<>(tracks.keySet())) {
+            disposeTrack(id);
+        }
+
+        if (cameraCapabilityIndex != null) {
+            cameraCapabilityIndex.release();
+            cameraCapabilityIndex = null;
+        }
+    }
+
+    /**
+     * Returns the format the given local video track is delivered in or
+     * {@code null} if it is not a captured video track.
+     */
+    int[] getTrackCaptureFormat(String trackId) {
+        TrackPrivate track = tracks.get(trackId);
+        if (track == null || track.captureSource == null) {
+            return null;
+        }
+
+        return track.captureSource.getBranchFormat((VideoSource) track.mediaSource);
+    }
+
+    /**
+     * Limits the size the given local video track is captured in, or lifts
+     * the limit if either side is 0.
+     *
+     * @return {@code true} if the limit changed
+     */
+    boolean setTrackCaptureLimit(String trackId, int maxWidth, int maxHeight) {
+        TrackPrivate track = tracks.get(trackId);
+        if (track == null || track.captureSource == null) {
+            return false;
         }
+
+        return track.captureSource.setBranchLimit((VideoSource) track.mediaSource, maxWidth, maxHeight);
     }
 
-    void switchCamera(String trackId) {
+    /**
+     * Switches the camera of the given track, and of all the tracks sharing
+     * its capturer.
+     *
+     * @param deviceId the camera to switch to or {@code null} for the first
+     * one facing the other way
+     * @param promise resolved with the "deviceId" and "facingMode" switched
+     * to and the "switchLatencyMs"
+     */
+    void switchCamera(String trackId, String deviceId, Promise promise) {
         TrackPrivate track = tracks.get(trackId);
-        if (track != null && track.videoCaptureController instanceof CameraCaptureController) {
-            CameraCaptureController cameraCaptureController = (CameraCaptureController) track.videoCaptureController;
-            cameraCaptureController.switchCamera();
+        if (track == null || !(track.getVideoCaptureController() instanceof CameraCaptureController)) {
+            promise.reject(new RuntimeException("Not a camera track."));
+            return;
         }
+
+        CameraCaptureController cameraCaptureController = (CameraCaptureController) track.getVideoCaptureController();
+        CameraCapabilityIndex cameraCapabilityIndex = getCameraCapabilityIndex();
+        cameraCaptureController.switchCamera(deviceId, new CameraCaptureController.SwitchCameraCallback() {
+            @Override
+            public void onSwitchDone(String deviceName, boolean isFrontFacing, long switchLatencyMs) {
+                WritableMap result = Arguments.createMap();
+                // The same id enumerateDevices reports.
+                String deviceId = cameraCapabilityIndex.getDeviceId(deviceName);
+                result.putString("deviceId", deviceId != null ? deviceId : deviceName);
+                result.putString("facingMode", isFrontFacing ? "user" : "environment");
+                result.putDouble("switchLatencyMs", switchLatencyMs);
+                promise.resolve(result);
+            }
+
+            @Override
+            public void onSwitchError(String error) {
+                promise.reject(new RuntimeException(error));
+            }
+        });
+    }
+
+    private CameraCaptureController createCameraCaptureController(ReadableMap videoConstraints) {
+        CameraCaptureController cameraCaptureController
+            = new CameraCaptureController(getCameraCapabilityIndex(), videoConstraints);
+        cameraCaptureController.setStallListener(new CameraStallListener(cameraCaptureController));
+
+        return cameraCaptureController;
     }
 
-    void getDisplayMedia(Promise promise) {
+    /**
+     * Emits the stalls and recoveries of a camera capturer for every track it
+     * feeds.
+     */
+    private class CameraStallListener implements CameraStallWatchdog.Listener {
+        private final CameraCaptureController cameraCaptureController;
+
+        CameraStallListener(CameraCaptureController cameraCaptureController) {
+            this.cameraCaptureController = cameraCaptureController;
+        }
+
+        @Override
+        public void onCaptureStalled() {
+            sendEvent("mediaStreamTrackCaptureStalled", Arguments.createMap());
+        }
+
+        @Override
+        public void onCaptureRecovered(long stallDurationMs, long recoveryDurationMs, int attempts) {
+            WritableMap params = Arguments.createMap();
+            params.putBoolean("recovered", true);
+            params.putDouble("stallDurationMs", stallDurationMs);
+            params.putDouble("recoveryDurationMs", recoveryDurationMs);
+            params.putInt("attempts", attempts);
+            sendEvent("mediaStreamTrackCaptureRecovered", params);
+        }
+
+        @Override
+        public void onCaptureRecoveryFailed(long stallDurationMs, int attempts) {
+            WritableMap params = Arguments.createMap();
+            params.putBoolean("recovered", false);
+            params.putDouble("stallDurationMs", stallDurationMs);
+            params.putInt("attempts", attempts);
+            sendEvent("mediaStreamTrackCaptureRecovered", params);
+        }
+
+        private void sendEvent(String eventName, WritableMap params) {
+            ThreadUtils.runOnExecutor(() -> {
+                for (Map.Entry<String, TrackPrivate> entry : tracks.entrySet()) {
+                    if (entry.getValue().getVideoCaptureController() == cameraCaptureController) {
+                        WritableMap trackParams = Arguments.createMap();
+                        trackParams.merge(params);
+                        trackParams.putString("trackId", entry.getKey());
+                        webRTCModule.sendEvent(eventName, trackParams);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds a running camera capture source which can serve the given video
+     * constraints, that is, one capturing from the requested device or with
+     * the requested facing mode.
+     */
+    private VideoCaptureSource findCameraSource(ReadableMap videoConstraints) {
+        String deviceId = ReactBridgeUtil.getMapStrValue(videoConstraints, "deviceId");
+        String facingMode = ReactBridgeUtil.getMapStrValue(videoConstraints, "facingMode");
+        boolean isFrontFacing = facingMode == null || !facingMode.equals("environment");
+
+        for (VideoCaptureSource captureSource : cameraSources) {
+            CameraCaptureController cameraCaptureController
+                = (CameraCaptureController) captureSource.getVideoCaptureController();
+
+            if (deviceId != null
+                    ? deviceId.equals(cameraCaptureController.getDeviceName())
+                    : cameraCaptureController.isFrontFacing() == isFrontFacing) {
+                return captureSource;
+            }
+        }
+
+        return null;
+    }
+
+    void getDisplayMedia(ReadableMap options, Promise promise) {
         if (this.displayMediaPromise != null) {
             promise.reject(new RuntimeException("Another operation is pending."));
             return;
@@ -263,6 +486,27 @@ class GetUserMediaImpl {
             return;
         }
 
+        RectF region = null;
+        if (options != null && options.hasKey("region") && options.getType("region") == ReadableType.Map) {
+            ReadableMap regionMap = options.getMap("region");
+            DisplayMetrics displayMetrics = DisplayUtils.getDisplayMetrics(currentActivity);
+            float displayWidth = displayMetrics.widthPixels;
+            float displayHeight = displayMetrics.heightPixels;
+            float x = regionMap.hasKey("x") ? (float) regionMap.getDouble("x") : 0f;
+            float y = regionMap.hasKey("y") ? (float) regionMap.getDouble("y") : 0f;
+            float width = regionMap.hasKey("width") ? (float) regionMap.getDouble("width") : displayWidth - x;
+            float height = regionMap.hasKey("height") ? (float) regionMap.getDouble("height") : displayHeight - y;
+
+            region = new RectF(x / displayWidth, y / displayHeight, (x + width) / displayWidth, (y + height) / displayHeight);
+            if (!region.intersect(0f, 0f, 1f, 1f) || region.isEmpty()) {
+                promise.reject("TypeError", "The capture region is outside of the screen.");
+                return;
+            }
+        }
+
+        this.displayMediaRegion = region;
+        this.displayMediaMaxWidth = getOptionalInt(options, "maxWidth");
+        this.displayMediaMaxHeight = getOptionalInt(options, "maxHeight");
         this.displayMediaPromise = promise;
 
         MediaProjectionManager mediaProjectionManager =
@@ -327,6 +571,7 @@ class GetUserMediaImpl {
         // Cleanup
         mediaProjectionPermissionResultData = null;
         displayMediaPromise = null;
+        displayMediaRegion = null;
     }
 
     private void createStream(MediaStreamTrack[] tracks, BiConsumer<String, ArrayList<WritableMap>> successCallback) {
@@ -358,11 +603,17 @@ class GetUserMediaImpl {
 
             if (track instanceof VideoTrack) {
                 TrackPrivate tp = this.tracks.get(trackId);
-                AbstractVideoCaptureController vcc = tp.videoCaptureController;
+                AbstractVideoCaptureController vcc = tp.getVideoCaptureController();
+                int[] format = tp.captureSource.getBranchFormat((VideoSource) tp.mediaSource);
                 WritableMap settings = Arguments.createMap();
-                settings.putInt("height", vcc.getHeight());
-                settings.putInt("width", vcc.getWidth());
-                settings.putInt("frameRate", vcc.getFrameRate());
+                settings.putInt("height", format[1]);
+                settings.putInt("width", format[0]);
+                settings.putInt("frameRate", format[2]);
+                if (vcc instanceof CameraCaptureController) {
+                    settings.putString(
+                        "facingMode",
+                        ((CameraCaptureController) vcc).isFrontFacing() ? "user" : "environment");
+                }
                 trackInfo.putMap("settings", settings);
             }
 
@@ -381,7 +632,7 @@ class GetUserMediaImpl {
 
     private VideoTrack createRawTrack(int width, int height) {
         if (this.rawVideoCaptureController == null) {
-            this.rawVideoCaptureController = new RawVideoCaptureController(width, height);
+            this.rawVideoCaptureController = new RawVideoCaptureController(width, height, webRTCModule.mVideoCodecPolicy);
         } else {
             Log.w(TAG, "Raw video captureController already created, you can't create two of them");
         }
@@ -393,72 +644,237 @@ class GetUserMediaImpl {
         int width = displayMetrics.widthPixels;
         int height = displayMetrics.heightPixels;
         ScreenCaptureController screenCaptureController
-            = new ScreenCaptureController(reactContext.getCurrentActivity(), width, height, mediaProjectionPermissionResultData);
-        return createVideoTrack(screenCaptureController);
+            = new ScreenCaptureController(
+                reactContext.getCurrentActivity(),
+                width,
+                height,
+                mediaProjectionPermissionResultData,
+                displayMediaRegion,
+                displayMediaMaxWidth,
+                displayMediaMaxHeight);
+
+        VideoCaptureSource captureSource = VideoCaptureSource.create(screenCaptureController, reactContext);
+        if (captureSource == null) {
+            return null;
+        }
+
+        // The track is delivered in the size of the captured region.
+        int[] outputSize = screenCaptureController.getOutputSize();
+        return createVideoTrack(
+            captureSource, outputSize[0], outputSize[1], screenCaptureController.getFrameRate());
+    }
+
+    private static int getOptionalInt(ReadableMap map, String key) {
+        return map != null && map.hasKey(key) && map.getType(key) == ReadableType.Number ? map.getInt(key) : 0;
     }
 
     private VideoTrack createVideoTrack(AbstractVideoCaptureController videoCaptureController) {
-        videoCaptureController.initializeVideoCapturer();
+        VideoCaptureSource captureSource = VideoCaptureSource.create(videoCaptureController, reactContext);
 
-        VideoCapturer videoCapturer = videoCaptureController.videoCapturer;
-        if (videoCapturer == null) {
-            return null;
-        }
+        return captureSource == null ? null : createVideoTrack(captureSource);
+    }
 
+    /**
+     * Creates a track over the given capture source, in the format it is
+     * currently capturing.
+     */
+    private VideoTrack createVideoTrack(VideoCaptureSource captureSource) {
+        AbstractVideoCaptureController videoCaptureController = captureSource.getVideoCaptureController();
+
+        return createVideoTrack(
+            captureSource,
+            videoCaptureController.getWidth(),
+            videoCaptureController.getHeight(),
+            videoCaptureController.getFrameRate());
+    }
+
+    /**
+     * Creates a track over the given capture source, delivering frames in the
+     * given format.
+     */
+    private VideoTrack createVideoTrack(VideoCaptureSource captureSource, int width, int height, int frameRate) {
         PeerConnectionFactory pcFactory = webRTCModule.mFactory;
-        EglBase.Context eglContext = EglUtils.getRootEglBaseContext();
-        SurfaceTextureHelper surfaceTextureHelper =
-            SurfaceTextureHelper.create("CaptureThread", eglContext);
+        VideoSource videoSource = captureSource.addBranch(pcFactory, width, height, frameRate);
+        String id = UUID.randomUUID().toString();
+        VideoTrack track = pcFactory.createVideoTrack(id, videoSource);
 
-        if (surfaceTextureHelper == null) {
-            Log.d(TAG, "Error creating SurfaceTextureHelper");
-            return null;
+        track.setEnabled(true);
+        tracks.put(id, new TrackPrivate(track, videoSource, captureSource));
+
+        return track;
+    }
+
+    /**
+     * Opens the camera matching the given video constraints ahead of a
+     * {@code getUserMedia} call, so that a matching {@code getUserMedia} can
+     * adopt the already running capturer instead of opening the camera from
+     * cold. Replaces any previously prewarmed camera.
+     *
+     * @param videoConstraints normalized video constraints, as passed to
+     * {@code getUserMedia}
+     * @param idleTimeoutMs how long to keep the camera open if it doesn't get
+     * adopted, or 0 for the default
+     */
+    void prewarmCamera(ReadableMap videoConstraints, int idleTimeoutMs, Promise promise) {
+        releasePrewarmedCamera();
+
+        Log.d(TAG, "prewarmCamera(): " + videoConstraints);
+
+        long start = System.currentTimeMillis();
+        CameraCaptureController cameraCaptureController = createCameraCaptureController(videoConstraints);
+        VideoCaptureSource captureSource = VideoCaptureSource.create(cameraCaptureController, reactContext);
+
+        if (captureSource == null) {
+            promise.reject(new RuntimeException("Failed to open the camera."));
+            return;
         }
 
-        VideoSource videoSource = pcFactory.createVideoSource(videoCapturer.isScreencast());
-        videoCapturer.initialize(surfaceTextureHelper, reactContext, videoSource.getCapturerObserver());
+        PrewarmedCamera camera = new PrewarmedCamera(captureSource, videoConstraints);
+        prewarmedCamera = camera;
+        mainHandler.postDelayed(
+            camera.idleTimeoutRunnable,
+            idleTimeoutMs > 0 ? idleTimeoutMs : DEFAULT_PREWARM_IDLE_TIMEOUT_MS);
 
-        String id = UUID.randomUUID().toString();
-        VideoTrack track = pcFactory.createVideoTrack(id, videoSource);
+        Log.d(TAG, "Camera prewarmed in " + (System.currentTimeMillis() - start) + "ms");
+        promise.resolve(null);
+    }
 
-        track.setEnabled(true);
-        tracks.put(id, new TrackPrivate(track, videoSource, videoCaptureController, surfaceTextureHelper));
+    /**
+     * Stops and releases the prewarmed camera, if any.
+     */
+    void releasePrewarmedCamera() {
+        PrewarmedCamera camera = prewarmedCamera;
+
+        if (camera != null) {
+            prewarmedCamera = null;
+            mainHandler.removeCallbacks(camera.idleTimeoutRunnable);
+            camera.captureSource.dispose();
+            Log.d(TAG, "Released prewarmed camera");
+        }
+    }
 
-        videoCaptureController.startCapture();
+    /**
+     * Hands over the prewarmed camera if it was opened with the same
+     * constraints, otherwise releases it so the camera can be opened again.
+     *
+     * @return the prewarmed {@code VideoCaptureSource} or {@code null}
+     */
+    private VideoCaptureSource adoptPrewarmedCamera(ReadableMap videoConstraints) {
+        PrewarmedCamera camera = prewarmedCamera;
 
-        return track;
+        if (camera == null) {
+            return null;
+        }
+
+        if (!camera.matches(videoConstraints)) {
+            releasePrewarmedCamera();
+            return null;
+        }
+
+        prewarmedCamera = null;
+        mainHandler.removeCallbacks(camera.idleTimeoutRunnable);
+        Log.d(TAG, "Adopting prewarmed camera");
+
+        return camera.captureSource;
     }
 
     /**
-     * Set video effect to the TrackPrivate corresponding to the trackId with the help of VideoEffectProcessor
-     * corresponding to the name.
+     * Sets a chain of video effects on the TrackPrivate corresponding to the trackId. The
+     * VideoFrameProcessors corresponding to the names are applied in order by a
+     * VideoEffectProcessor, on the capture thread of the track whichever its source.
      * @param trackId TrackPrivate id
-     * @param name VideoEffectProcessor name
+     * @param names VideoFrameProcessor names, {@code null} or empty to remove the effects
+     * @param options {@code async} to run the effects on a worker thread, with the optional
+     * {@code maxQueueSize} and {@code deadlineMs} of an AsyncVideoEffectProcessor
+     * @return false if the track is not a local video track
      */
-    void setVideoEffect(String trackId, String name) {
+    boolean setVideoEffects(String trackId, List<String> names, ReadableMap options) {
         TrackPrivate track = tracks.get(trackId);
 
-        if (track != null && track.videoCaptureController instanceof CameraCaptureController) {
-            VideoSource videoSource = (VideoSource) track.mediaSource;
-            SurfaceTextureHelper surfaceTextureHelper = track.surfaceTextureHelper;
+        if (track == null || track.captureSource == null) {
+            return false;
+        }
 
-            if (name != null) {
-                VideoFrameProcessor videoFrameProcessor = ProcessorProvider.getProcessor(name);
+        VideoSource videoSource = (VideoSource) track.mediaSource;
+        SurfaceTextureHelper surfaceTextureHelper = track.captureSource.getSurfaceTextureHelper();
+        VideoEffectProcessor videoEffectProcessor = null;
 
-                if (videoFrameProcessor == null) {
-                    Log.e(TAG, "no videoFrameProcessor associated with this name");
-                    return;
-                }
+        if (names != null && !names.isEmpty()) {
+            videoEffectProcessor = createVideoEffectProcessor(names, options, surfaceTextureHelper);
+            if (videoEffectProcessor == null) {
+                return true;
+            }
+        }
 
-                VideoEffectProcessor videoEffectProcessor = new VideoEffectProcessor(videoFrameProcessor,
-                        surfaceTextureHelper);
-                videoSource.setVideoProcessor(videoEffectProcessor);
+        videoSource.setVideoProcessor(videoEffectProcessor);
+        track.setVideoEffectProcessor(videoEffectProcessor);
 
-            } else {
-                videoSource.setVideoProcessor(null);
+        return true;
+    }
+
+    /**
+     * Creates a VideoEffectProcessor applying the VideoFrameProcessors corresponding to the
+     * names in order.
+     * @param options see {@link #setVideoEffects}
+     * @param surfaceTextureHelper the helper whose thread the effects run on
+     * @return null if a name has no VideoFrameProcessor associated
+     */
+    static VideoEffectProcessor createVideoEffectProcessor(
+            List<String> names, ReadableMap options, SurfaceTextureHelper surfaceTextureHelper) {
+        List<VideoFrameProcessor> videoFrameProcessors = new ArrayList<>();
+
+        for (String name : names) {
+            VideoFrameProcessor videoFrameProcessor = ProcessorProvider.getProcessor(name);
+
+            if (videoFrameProcessor == null) {
+                Log.e(TAG, "no videoFrameProcessor associated with the name " + name);
+                for (VideoFrameProcessor processor : videoFrameProcessors) {
+                    ProcessorProvider.recycleProcessor(processor);
+                }
+                return null;
             }
 
+            videoFrameProcessors.add(videoFrameProcessor);
+        }
+
+        boolean async = options != null
+            && options.hasKey("async")
+            && options.getType("async") == ReadableType.Boolean
+            && options.getBoolean("async");
+
+        if (async) {
+            return new AsyncVideoEffectProcessor(
+                videoFrameProcessors,
+                surfaceTextureHelper,
+                getOptionalInt(options, "maxQueueSize"),
+                getOptionalInt(options, "deadlineMs"));
         }
+
+        return new VideoEffectProcessor(videoFrameProcessors, surfaceTextureHelper);
+    }
+
+    /**
+     * Returns the frame counters of the video effects of a track, or
+     * {@code null} if it has none.
+     */
+    ReadableMap getVideoEffectStats(String trackId) {
+        TrackPrivate track = tracks.get(trackId);
+
+        if (track == null || track.videoEffectProcessor == null) {
+            return null;
+        }
+
+        return serializeVideoEffectStats(track.videoEffectProcessor);
+    }
+
+    static ReadableMap serializeVideoEffectStats(VideoEffectProcessor videoEffectProcessor) {
+        long[] counters = videoEffectProcessor.getCounters();
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("processed", counters[0]);
+        stats.putDouble("dropped", counters[1]);
+        stats.putDouble("bypassed", counters[2]);
+
+        return stats;
     }
 
     /**
@@ -474,12 +890,16 @@ class GetUserMediaImpl {
         public final MediaStreamTrack track;
 
         /**
-         * The {@code VideoCapturer} from which {@link #mediaSource} was created
-         * if {@link #track} is a {@link VideoTrack}.
+         * The {@code VideoCaptureSource} feeding {@link #mediaSource} if
+         * {@link #track} is a {@link VideoTrack}. It may be shared with other
+         * tracks.
          */
-        public final AbstractVideoCaptureController videoCaptureController;
-        
-        private final SurfaceTextureHelper surfaceTextureHelper;
+        public final VideoCaptureSource captureSource;
+
+        /**
+         * The effects applied to {@link #mediaSource}, if any.
+         */
+        private VideoEffectProcessor videoEffectProcessor;
 
         /**
          * Whether this object has been disposed or not.
@@ -490,43 +910,49 @@ class GetUserMediaImpl {
          * Initializes a new {@code TrackPrivate} instance.
          *
          * @param track
-         * @param mediaSource            the {@code MediaSource} from which the specified
-         *                               {@code code} was created
-         * @param videoCaptureController the {@code AbstractVideoCaptureController} from which the
-         *                               specified {@code mediaSource} was created if the specified
-         *                               {@code track} is a {@link VideoTrack}
+         * @param mediaSource   the {@code MediaSource} from which the specified
+         *                      {@code code} was created
+         * @param captureSource the {@code VideoCaptureSource} feeding the
+         *                      specified {@code mediaSource} if the specified
+         *                      {@code track} is a {@link VideoTrack}
          */
         public TrackPrivate(
             MediaStreamTrack track,
             MediaSource mediaSource,
-            AbstractVideoCaptureController videoCaptureController,
-            SurfaceTextureHelper surfaceTextureHelper) {
+            VideoCaptureSource captureSource) {
             this.track = track;
             this.mediaSource = mediaSource;
-            this.videoCaptureController = videoCaptureController;
-            this.surfaceTextureHelper = surfaceTextureHelper;
+            this.captureSource = captureSource;
             this.disposed = false;
         }
 
+        public AbstractVideoCaptureController getVideoCaptureController() {
+            return captureSource == null ? null : captureSource.getVideoCaptureController();
+        }
+
+        /**
+         * Replaces the effects applied to the track, releasing the previous
+         * ones.
+         */
+        public void setVideoEffectProcessor(VideoEffectProcessor videoEffectProcessor) {
+            if (this.videoEffectProcessor != null) {
+                this.videoEffectProcessor.release();
+            }
+            this.videoEffectProcessor = videoEffectProcessor;
+        }
+
+        /**
+         * Disposes the track and its source. The {@link #captureSource}, if
+         * any, is only detached from; disposing it once no track uses it
+         * anymore is up to the caller.
+         */
         public void dispose() {
             if (!disposed) {
-                if (videoCaptureController != null) {
-                    if (videoCaptureController.stopCapture()) {
-                        videoCaptureController.dispose();
-                    }
-                }
-                
-                /*
-                 * As per webrtc library documentation - The caller still has ownership of {@code
-                 * surfaceTextureHelper} and is responsible for making sure surfaceTextureHelper.dispose() is
-                 * called. This also means that the caller can reuse the SurfaceTextureHelper to initialize a new
-                 * VideoCapturer once the previous VideoCapturer has been disposed. */
-                
-                if(surfaceTextureHelper != null) {
-                    surfaceTextureHelper.stopListening();
-                    surfaceTextureHelper.dispose();
+                if (captureSource != null) {
+                    captureSource.removeBranch((VideoSource) mediaSource);
                 }
-                
+                setVideoEffectProcessor(null);
+
                 mediaSource.dispose();
                 track.dispose();
                 disposed = true;
@@ -534,6 +960,43 @@ class GetUserMediaImpl {
         }
     }
 
+    /**
+     * A camera opened by {@link #prewarmCamera} and not adopted yet.
+     */
+    private class PrewarmedCamera {
+        final VideoCaptureSource captureSource;
+        final ReadableMap constraints;
+
+        final Runnable idleTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                ThreadUtils.runOnExecutor(() -> {
+                    if (prewarmedCamera == PrewarmedCamera.this) {
+                        Log.d(TAG, "Prewarmed camera idle timeout");
+                        releasePrewarmedCamera();
+                    }
+                });
+            }
+        };
+
+        PrewarmedCamera(VideoCaptureSource captureSource, ReadableMap constraints) {
+            this.captureSource = captureSource;
+            this.constraints = constraints;
+        }
+
+        boolean matches(ReadableMap other) {
+            for (String key : new String[] { "deviceId", "facingMode", "width", "height", "frameRate" }) {
+                if (!Objects.equals(
+                        ReactBridgeUtil.getMapStrValue(constraints, key),
+                        ReactBridgeUtil.getMapStrValue(other, key))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
     private interface BiConsumer<T, U> {
         void accept(T t, U u);
     }
@@ -0,0 +1,253 @@
+package com.oney.WebRTCModule;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.webrtc.*;
+import org.webrtc.audio.AudioDeviceModule;
+import org.webrtc.audio.JavaAudioDeviceModule;
+
+/**
+ * Holds the process-wide {@link PeerConnectionFactory}, along with its codec
+ * factories and audio device module, so that the {@link WebRTCModule}
+ * instances of successive React contexts, e.g. across JS bundle reloads, share
+ * one instead of each creating its own.
+ *
+ * The holder is reference counted. When the last module releases it, the
+ * factory is kept for {@link #DISPOSE_DELAY_MS} in case a new module comes
+ * along, as it does on a reload, and disposed otherwise. The options of the
+ * module which created the factory apply for as long as it lives.
+ *
+ * All methods are called on the WebRTC executor.
+ */
+class PeerConnectionFactoryHolder {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final long DISPOSE_DELAY_MS = 30000;
+
+    private static PeerConnectionFactoryHolder instance;
+
+    private static boolean initialized;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    final PeerConnectionFactory factory;
+    final VideoEncoderFactory videoEncoderFactory;
+    final VideoDecoderFactory videoDecoderFactory;
+    final AudioDeviceModule audioDeviceModule;
+    final VideoCodecPolicy videoCodecPolicy;
+
+    /**
+     * Whether {@link #audioDeviceModule} was created here rather than passed
+     * in the options, in which case it's up to the app to release it.
+     */
+    private final boolean ownsAudioDeviceModule;
+
+    /**
+     * The time taken by each step of the creation, in milliseconds.
+     */
+    private final WritableMap timing;
+
+    private int refCount;
+
+    /**
+     * The codecs supported by the codec factories, which never change.
+     * Computed on the executor as soon as the factory is created and read
+     * from any thread afterwards.
+     */
+    private volatile List<VideoCodecInfo> senderCodecs;
+    private volatile List<VideoCodecInfo> receiverCodecs;
+
+    private final Runnable disposeRunnable
+        = () -> ThreadUtils.runOnExecutor(this::disposeIfUnused);
+
+    /**
+     * Whether a factory exists, i.e. {@link #acquire} will reuse it.
+     */
+    static boolean isCreated() {
+        return instance != null;
+    }
+
+    /**
+     * Returns the current holder with an additional reference, creating it if
+     * needed. Each call must be balanced by a call to {@link #release}.
+     */
+    static PeerConnectionFactoryHolder acquire(Context context, WebRTCModule.Options options) {
+        if (instance == null) {
+            instance = new PeerConnectionFactoryHolder(context.getApplicationContext(), options);
+        } else {
+            Log.d(TAG, "Reusing the PeerConnectionFactory");
+        }
+
+        instance.retain();
+
+        return instance;
+    }
+
+    private PeerConnectionFactoryHolder(Context context, WebRTCModule.Options options) {
+        AudioDeviceModule adm = options.audioDeviceModule;
+        VideoEncoderFactory encoderFactory = options.videoEncoderFactory;
+        VideoDecoderFactory decoderFactory = options.videoDecoderFactory;
+
+        VideoCodecPolicy codecPolicy = new VideoCodecPolicy(options.videoCodecQuirks, options.enableH264HighProfile);
+
+        long startMs = SystemClock.elapsedRealtime();
+
+        // Loading the native library and initializing it is only done once
+        // per process.
+        if (!initialized) {
+            PeerConnectionFactory.initialize(
+                PeerConnectionFactory.InitializationOptions.builder(context)
+                    .setNativeLibraryLoader(new LibraryLoader())
+                    .setInjectableLogger(options.injectableLogger, options.loggingSeverity)
+                    .createInitializationOptions());
+            initialized = true;
+        }
+
+        long initializedMs = SystemClock.elapsedRealtime();
+
+        if (encoderFactory == null || decoderFactory == null) {
+            // Initialize EGL context required for HW acceleration, unless
+            // video is not expected.
+            EglBase.Context eglContext = options.audioOnly ? null : EglUtils.getRootEglBaseContext();
+
+            if (eglContext != null) {
+                encoderFactory = codecPolicy.createVideoEncoderFactory(eglContext);
+                decoderFactory = codecPolicy.createVideoDecoderFactory(eglContext);
+            } else {
+                encoderFactory = new SoftwareVideoEncoderFactory();
+                decoderFactory = new SoftwareVideoDecoderFactory();
+            }
+        }
+
+        long videoFactoriesMs = SystemClock.elapsedRealtime();
+
+        ownsAudioDeviceModule = adm == null;
+        if (adm == null) {
+            adm = JavaAudioDeviceModule.builder(context)
+                .setEnableVolumeLogger(false)
+                .createAudioDeviceModule();
+        }
+
+        long audioDeviceModuleMs = SystemClock.elapsedRealtime();
+
+        factory
+            = PeerConnectionFactory.builder()
+                .setAudioDeviceModule(adm)
+                .setVideoEncoderFactory(encoderFactory)
+                .setVideoDecoderFactory(decoderFactory)
+                .createPeerConnectionFactory();
+
+        long peerConnectionFactoryMs = SystemClock.elapsedRealtime();
+
+        videoEncoderFactory = encoderFactory;
+        videoDecoderFactory = decoderFactory;
+        audioDeviceModule = adm;
+        videoCodecPolicy = codecPolicy;
+
+        timing = Arguments.createMap();
+        timing.putDouble("initializeMs", initializedMs - startMs);
+        timing.putDouble("videoFactoriesMs", videoFactoriesMs - initializedMs);
+        timing.putDouble("audioDeviceModuleMs", audioDeviceModuleMs - videoFactoriesMs);
+        timing.putDouble("peerConnectionFactoryMs", peerConnectionFactoryMs - audioDeviceModuleMs);
+
+        // After the task creating the factory, so it isn't delayed.
+        ThreadUtils.runOnExecutor(() -> {
+            getSenderCodecs();
+            getReceiverCodecs();
+        });
+    }
+
+    /**
+     * Returns the codecs of the encoder factory, querying them if not done
+     * yet. Called on the executor.
+     */
+    List<VideoCodecInfo> getSenderCodecs() {
+        if (senderCodecs == null) {
+            senderCodecs = Collections.unmodifiableList(Arrays.asList(videoEncoderFactory.getSupportedCodecs()));
+        }
+
+        return senderCodecs;
+    }
+
+    /**
+     * Returns the codecs of the decoder factory, querying them if not done
+     * yet. Called on the executor.
+     */
+    List<VideoCodecInfo> getReceiverCodecs() {
+        if (receiverCodecs == null) {
+            receiverCodecs = Collections.unmodifiableList(Arrays.asList(videoDecoderFactory.getSupportedCodecs()));
+        }
+
+        return receiverCodecs;
+    }
+
+    /**
+     * Returns the codecs of the encoder factory if already queried, from any
+     * thread.
+     */
+    @Nullable
+    List<VideoCodecInfo> getCachedSenderCodecs() {
+        return senderCodecs;
+    }
+
+    /**
+     * Returns the codecs of the decoder factory if already queried, from any
+     * thread.
+     */
+    @Nullable
+    List<VideoCodecInfo> getCachedReceiverCodecs() {
+        return receiverCodecs;
+    }
+
+    /**
+     * Returns the time taken by each step of the creation of the factory, in
+     * milliseconds.
+     */
+    WritableMap getTiming() {
+        return timing.copy();
+    }
+
+    private void retain() {
+        refCount++;
+        mainHandler.removeCallbacks(disposeRunnable);
+    }
+
+    /**
+     * Releases a reference obtained from {@link #acquire}. The caller must have
+     * closed its peer connections and disposed its tracks.
+     */
+    void release() {
+        if (--refCount > 0) {
+            return;
+        }
+
+        mainHandler.postDelayed(disposeRunnable, DISPOSE_DELAY_MS);
+    }
+
+    private void disposeIfUnused() {
+        if (refCount > 0 || instance != this) {
+            return;
+        }
+
+        Log.d(TAG, "Disposing the unused PeerConnectionFactory");
+
+        instance = null;
+        factory.dispose();
+        if (ownsAudioDeviceModule) {
+            audioDeviceModule.release();
+        }
+    }
+}
@@ -12,6 +12,7 @@ import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.ReadableArray;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
+import com.oney.WebRTCModule.videoEffects.VideoEffectSink;
 
 import org.webrtc.AudioTrack;
 import org.webrtc.DataChannel;
@@ -19,6 +20,8 @@ import org.webrtc.IceCandidate;
 import org.webrtc.MediaStream;
 import org.webrtc.MediaStreamTrack;
 import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RtcCertificatePem;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
 import org.webrtc.RtpTransceiver;
@@ -44,6 +47,29 @@ class PeerConnectionObserver implements PeerConnection.Observer {
     private int transceiverNextId = 0;
 
     private PeerConnection peerConnection;
+    private RtcCertificatePem certificate;
+
+    /**
+     * The rules applied to the descriptions created, by media kind, and the
+     * codec preferences, by transceiver id. Only accessed on the executor.
+     */
+    private final Map<String, SdpShaper.Rules> sdpRules = new HashMap<>();
+    private final Map<String, List<SdpShaper.CodecPreference>> codecPreferences = new HashMap<>();
+
+    /**
+     * The last description created by createOffer or createAnswer, so JS can
+     * set it as the local one without sending it back. The descriptions
+     * created by negotiateLocal are set right away and not kept by JS.
+     */
+    private SessionDescription lastCreatedDescription;
+
+    /**
+     * Run once ICE gathering completes, or the connection is closed. Also
+     * guards {@link #iceGatheringComplete}, which is updated on the
+     * signaling thread.
+     */
+    private final List<Runnable> iceGatheringCompleteListeners = new ArrayList<>();
+    private boolean iceGatheringComplete;
     final Map<String, MediaStream> remoteStreams;
     final Map<String, MediaStreamTrack> remoteTracks;
     private final VideoTrackAdapter videoTrackAdapters;
@@ -66,16 +92,37 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         this.peerConnection = peerConnection;
     }
 
+    /**
+     * Returns the DTLS certificate the connection was created with, if it
+     * was given one rather than letting libwebrtc generate it.
+     */
+    RtcCertificatePem getCertificate() {
+        return certificate;
+    }
+
+    void setCertificate(RtcCertificatePem certificate) {
+        this.certificate = certificate;
+    }
+
     void close() {
         Log.d(TAG, "PeerConnection.close() for " + id);
 
+        for (Runnable listener : takeIceGatheringCompleteListeners()) {
+            listener.run();
+        }
+
         // Close the PeerConnection first to stop any events.
         peerConnection.close();
 
-        // Remove video track adapters
+        // Remove video track adapters and effect sinks
         for (MediaStreamTrack track : this.remoteTracks.values()) {
             if (track instanceof VideoTrack) {
                 videoTrackAdapters.removeAdapter((VideoTrack) track);
+
+                VideoEffectSink videoEffectSink = webRTCModule.remoteVideoEffectSinks.remove(track.id());
+                if (videoEffectSink != null) {
+                    videoEffectSink.dispose();
+                }
             }
         }
 
@@ -131,6 +178,98 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         return null;
     }
 
+    void setSdpRules(String kind, @Nullable SdpShaper.Rules rules) {
+        if (rules != null) {
+            sdpRules.put(kind, rules);
+        } else {
+            sdpRules.remove(kind);
+        }
+    }
+
+    void setCodecPreferences(String transceiverId, List<SdpShaper.CodecPreference> codecs) {
+        if (codecs.isEmpty()) {
+            codecPreferences.remove(transceiverId);
+        } else {
+            codecPreferences.put(transceiverId, codecs);
+        }
+    }
+
+    /**
+     * Applies the SDP rules and codec preferences to a description just
+     * created.
+     */
+    SessionDescription shapeDescription(SessionDescription description) {
+        if (!sdpRules.isEmpty() || !codecPreferences.isEmpty()) {
+            description = new SessionDescription(
+                description.type, SdpShaper.shape(description.description, createRulesProvider()));
+        }
+
+        return description;
+    }
+
+    /**
+     * Returns the last description passed to JS by createOffer or
+     * createAnswer, which JS keeps as well.
+     */
+    SessionDescription getLastCreatedDescription() {
+        return lastCreatedDescription;
+    }
+
+    /**
+     * Keeps the given description as the last one created, only to be called
+     * with the descriptions JS keeps as its last created one.
+     */
+    void setLastCreatedDescription(SessionDescription description) {
+        lastCreatedDescription = description;
+    }
+
+    /**
+     * Maps the media sections to the transceivers: by mid, and in order for
+     * the sections of the transceivers which don't have a mid yet, as
+     * libwebrtc appends those.
+     */
+    private SdpShaper.RulesProvider createRulesProvider() {
+        Map<String, RtpTransceiver> transceiversByMid = new HashMap<>();
+        List<RtpTransceiver> transceiversWithoutMid = new ArrayList<>();
+
+        for (RtpTransceiver transceiver : peerConnection.getTransceivers()) {
+            if (transceiver.isStopped()) {
+                continue;
+            }
+
+            if (transceiver.getMid() != null) {
+                transceiversByMid.put(transceiver.getMid(), transceiver);
+            } else {
+                transceiversWithoutMid.add(transceiver);
+            }
+        }
+
+        return (index, kind, mid) -> {
+            RtpTransceiver transceiver = mid != null ? transceiversByMid.get(mid) : null;
+
+            if (transceiver == null) {
+                for (Iterator<RtpTransceiver> i = transceiversWithoutMid.iterator(); i.hasNext();) {
+                    RtpTransceiver candidate = i.next();
+                    if (candidate.getMediaType() == SerializeUtils.parseMediaType(kind)) {
+                        transceiver = candidate;
+                        i.remove();
+                        break;
+                    }
+                }
+            }
+
+            SdpShaper.Rules rules = sdpRules.get(kind);
+            List<SdpShaper.CodecPreference> codecs
+                = transceiver != null ? codecPreferences.get(transceiver.getSender().id()) : null;
+
+            if (codecs == null) {
+                return rules;
+            }
+
+            return new SdpShaper.Rules(codecs, rules != null ? rules.maxBitrate : 0);
+        };
+    }
+
     RtpTransceiver getTransceiver(String id) {
         if (this.peerConnection == null) {
             return null;
@@ -239,6 +378,56 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         });
     }
 
+    /**
+     * Resolves with the codec implementation used by each video stream, from
+     * the stats: its direction, track id, codec, implementation name and
+     * whether it is a hardware codec.
+     */
+    void getCodecImplementations(Promise promise) {
+        peerConnection.getStats(rtcStatsReport -> {
+            Map<String, RTCStats> statsMap = rtcStatsReport.getStatsMap();
+            WritableArray implementations = Arguments.createArray();
+
+            for (RTCStats stats : statsMap.values()) {
+                boolean outbound = "outbound-rtp".equals(stats.getType());
+                if (!outbound && !"inbound-rtp".equals(stats.getType())) {
+                    continue;
+                }
+
+                Map<String, Object> members = stats.getMembers();
+                Object kind = members.containsKey("kind") ? members.get("kind") : members.get("mediaType");
+                if (!"video".equals(kind)) {
+                    continue;
+                }
+
+                Object implementation = members.get(outbound ? "encoderImplementation" : "decoderImplementation");
+                if (!(implementation instanceof String)) {
+                    // Nothing encoded or decoded yet.
+                    continue;
+                }
+
+                Object trackId = members.get("trackIdentifier");
+                if (!(trackId instanceof String)) {
+                    trackId = CaptureAdaptationController.getTrackIdentifier(statsMap, members);
+                }
+
+                Object codecId = members.get("codecId");
+                RTCStats codec = codecId == null ? null : statsMap.get(codecId);
+                Object mimeType = codec == null ? null : codec.getMembers().get("mimeType");
+
+                WritableMap params = Arguments.createMap();
+                params.putString("direction", outbound ? "outbound" : "inbound");
+                params.putString("trackId", (String) trackId);
+                params.putString("mimeType", mimeType instanceof String ? (String) mimeType : null);
+                params.putString("implementation", (String) implementation);
+                params.putBoolean("hardware", VideoCodecPolicy.isHardwareImplementation((String) implementation));
+                implementations.pushMap(params);
+            }
+
+            promise.resolve(implementations);
+        });
+    }
+
     @Override
     public void onIceCandidate(final IceCandidate candidate) {
         Log.d(TAG, "onIceCandidate");
@@ -290,7 +479,15 @@ class PeerConnectionObserver implements PeerConnection.Observer {
         WritableMap params = Arguments.createMap();
         params.putInt("pcId", id);
         params.putString("iceGatheringState", iceGatheringStateString(iceGatheringState));
-        if (iceGatheringState == PeerConnection.IceGatheringState.COMPLETE) {
+
+        List<Runnable> listeners;
+        synchronized (iceGatheringCompleteListeners) {
+            iceGatheringComplete = iceGatheringState == PeerConnection.IceGatheringState.COMPLETE;
+            listeners = iceGatheringComplete ? takeIceGatheringCompleteListeners() : new ArrayList<>();
+        }
+
+        // The description is left out when a listener passes it along.
+        if (iceGatheringComplete && listeners.isEmpty()) {
             SessionDescription newSdp = peerConnection.getLocalDescription();
             WritableMap newSdpMap = Arguments.createMap();
             newSdpMap.putString("type", newSdp.type.canonicalForm());
@@ -298,6 +495,52 @@ class PeerConnectionObserver implements PeerConnection.Observer {
             params.putMap("sdp", newSdpMap);
         }
         webRTCModule.sendEvent("peerConnectionIceGatheringChanged", params);
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Runs the given listener once ICE gathering is complete, right away if
+     * it already is. It is run on the signaling thread, or on the executor
+     * if the connection is closed first.
+     */
+    void whenIceGatheringComplete(Runnable listener) {
+        synchronized (iceGatheringCompleteListeners) {
+            if (!iceGatheringComplete) {
+                iceGatheringCompleteListeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+    /**
+     * Forgets that ICE gathering completed, so that the listeners only run
+     * once it completes again. Called before setting a local description,
+     * which may restart the gathering: the gathering state only follows after
+     * the description is set.
+     */
+    void resetIceGatheringComplete() {
+        synchronized (iceGatheringCompleteListeners) {
+            iceGatheringComplete = false;
+        }
+    }
+
+    void removeIceGatheringCompleteListener(Runnable listener) {
+        synchronized (iceGatheringCompleteListeners) {
+            iceGatheringCompleteListeners.remove(listener);
+        }
+    }
+
+    private List<Runnable> takeIceGatheringCompleteListeners() {
+        synchronized (iceGatheringCompleteListeners) {
+            List<Runnable> listeners = new ArrayList<>(iceGatheringCompleteListeners);
+            iceGatheringCompleteListeners.clear();
+            return listeners;
+        }
     }
 
     @Override
@@ -375,6 +618,7 @@ class PeerConnectionObserver implements PeerConnection.Observer {
             if (!existingTrack) {
                 if (track.kind().equals(MediaStreamTrack.VIDEO_TRACK_KIND)){
                     videoTrackAdapters.addAdapter((VideoTrack) track);
+                    webRTCModule.remoteVideoEffectSinks.put(track.id(), new VideoEffectSink((VideoTrack) track));
                 }
                 remoteTracks.put(track.id(), track);
             }
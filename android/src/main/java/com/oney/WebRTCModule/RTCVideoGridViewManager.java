@@ -0,0 +1,87 @@
+package com.oney.WebRTCModule;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.uimanager.annotations.ReactProp;
+import com.facebook.react.uimanager.SimpleViewManager;
+import com.facebook.react.uimanager.ThemedReactContext;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class RTCVideoGridViewManager extends SimpleViewManager<WebRTCGridView> {
+  private static final String REACT_CLASS = "RTCVideoGridView";
+
+  @Override
+  public String getName() {
+    return REACT_CLASS;
+  }
+
+  @Override
+  public WebRTCGridView createViewInstance(ThemedReactContext context) {
+    return new WebRTCGridView(context);
+  }
+
+  @Override
+  public void onDropViewInstance(@NonNull WebRTCGridView view) {
+    view.release();
+    super.onDropViewInstance(view);
+  }
+
+  /**
+   * Sets the number of columns of the grid. For more details, refer to the
+   * documentation of the {@code columns} property of the JavaScript
+   * counterpart of {@code WebRTCGridView} i.e. {@code RTCGridView}.
+   *
+   * @param view The {@code WebRTCGridView} on which the specified
+   * {@code columns} is to be set.
+   * @param columns The number of columns or 0 to derive it from the number of
+   * streams.
+   */
+  @ReactProp(name = "columns", defaultInt = 0)
+  public void setColumns(WebRTCGridView view, int columns) {
+    view.setColumns(columns);
+  }
+
+  /**
+   * Sets the maximum frame rate at which each tile of a specific
+   * {@link WebRTCGridView} is redrawn.
+   *
+   * @param view The {@code WebRTCGridView} on which the specified
+   * {@code maxFrameRate} is to be set.
+   * @param maxFrameRate The maximum frame rate of each tile, 0 for uncapped.
+   */
+  @ReactProp(name = "maxFrameRate", defaultInt = 30)
+  public void setMaxFrameRate(WebRTCGridView view, int maxFrameRate) {
+    view.setMaxFrameRate(maxFrameRate);
+  }
+
+  @ReactProp(name = "mirror")
+  public void setMirror(WebRTCGridView view, boolean mirror) {
+    view.setMirror(mirror);
+  }
+
+  @ReactProp(name = "objectFit")
+  public void setObjectFit(WebRTCGridView view, String objectFit) {
+    view.setObjectFit(objectFit);
+  }
+
+  @ReactProp(name = "spacing", defaultInt = 0)
+  public void setSpacing(WebRTCGridView view, int spacing) {
+    view.setSpacing(spacing);
+  }
+
+  @ReactProp(name = "streamURLs")
+  public void setStreamURLs(WebRTCGridView view, ReadableArray streamURLs) {
+    List<String> urls = new ArrayList<>();
+
+    if (streamURLs != null) {
+      for (int i = 0; i < streamURLs.size(); i++) {
+        urls.add(streamURLs.getString(i));
+      }
+    }
+    view.setStreamURLs(urls);
+  }
+}
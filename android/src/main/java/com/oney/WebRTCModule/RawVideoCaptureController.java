@@ -5,9 +5,15 @@ import org.webrtc.VideoCapturer;
 public class RawVideoCaptureController extends AbstractVideoCaptureController {
     private static final int DEFAULT_FPS = 30;
     protected RawVideoCapturer videoCapturer;
+    private final VideoCodecPolicy videoCodecPolicy;
 
     public RawVideoCaptureController(int width, int height) {
+        this(width, height, null);
+    }
+
+    public RawVideoCaptureController(int width, int height, VideoCodecPolicy videoCodecPolicy) {
         super(width, height, DEFAULT_FPS);
+        this.videoCodecPolicy = videoCodecPolicy;
     }
 
     public void sendFrame(byte[] videoBuffer) {
@@ -17,7 +23,7 @@ public class RawVideoCaptureController extends AbstractVideoCaptureController {
 
     @Override
     protected VideoCapturer createVideoCapturer() {
-        this.videoCapturer = new RawVideoCapturer();
+        this.videoCapturer = new RawVideoCapturer(videoCodecPolicy);
         return this.videoCapturer;
     }
 }
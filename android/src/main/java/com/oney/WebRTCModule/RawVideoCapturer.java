@@ -33,7 +33,20 @@ public class RawVideoCapturer implements VideoCapturer {
     private final ByteArrayOutputStream tmpBuffer = new ByteArrayOutputStream();
     private final ByteArrayOutputStream toBeProcessed = new ByteArrayOutputStream();
 
-    public RawVideoCapturer() {}
+    private final VideoCodecPolicy videoCodecPolicy;
+
+    public RawVideoCapturer() {
+        this(null);
+    }
+
+    /**
+     * @param videoCodecPolicy the quirks deciding whether the hardware decoder
+     * is used, the bundled ones if {@code null}
+     */
+    public RawVideoCapturer(VideoCodecPolicy videoCodecPolicy) {
+        this.videoCodecPolicy
+            = videoCodecPolicy != null ? videoCodecPolicy : new VideoCodecPolicy(null, false);
+    }
 
     public void sendFrame(byte[] videoBuffer) {
         try {
@@ -176,8 +189,9 @@ public class RawVideoCapturer implements VideoCapturer {
         try {
             String decoderName = new MediaCodecList(MediaCodecList.ALL_CODECS).findDecoderForFormat(format);
 
-            // Patch, hardware decoder for Pixel 7 not working, switch to software decoder.
-            if (decoderName.contains("c2.exynos.h264.decoder")) {
+            // Switch to the software decoder where the hardware one has a
+            // quirk, e.g. on the Pixel 7.
+            if (videoCodecPolicy.isHardwareDisabled(decoderName)) {
                 decoderName = "OMX.google.h264.decoder";
             }
 
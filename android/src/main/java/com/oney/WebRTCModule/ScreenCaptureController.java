@@ -3,12 +3,15 @@ package com.oney.WebRTCModule;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.RectF;
 import android.media.projection.MediaProjection;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.OrientationEventListener;
 
+import org.webrtc.CapturerObserver;
 import org.webrtc.ScreenCapturerAndroid;
+import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
 
 public class ScreenCaptureController extends AbstractVideoCaptureController {
@@ -21,21 +24,74 @@ public class ScreenCaptureController extends AbstractVideoCaptureController {
 
     private final Intent mediaProjectionPermissionResultData;
 
+    /**
+     * The region of the screen to capture in fractions of the display size or
+     * {@code null} to capture all of it.
+     */
+    private final RectF region;
+
+    /**
+     * The size the captured region is not to exceed, regardless of
+     * orientation, or 0 if not limited.
+     */
+    private final int maxLongSide;
+    private final int maxShortSide;
+
     private final OrientationEventListener orientatationListener;
 
+    /**
+     * The display rotation the capture format was last set for. Only
+     * accessed on the main thread.
+     */
+    private int lastRotation = -1;
+
     public ScreenCaptureController(Context context, int width, int height, Intent mediaProjectionPermissionResultData) {
+        this(context, width, height, mediaProjectionPermissionResultData, null, 0, 0);
+    }
+
+    /**
+     * @param width the width of the display
+     * @param height the height of the display
+     * @param region the region of the display to capture in fractions of its
+     *               size or {@code null} for all of it
+     * @param maxWidth the maximum width of the captured region or 0
+     * @param maxHeight the maximum height of the captured region or 0
+     */
+    public ScreenCaptureController(
+            Context context,
+            int width,
+            int height,
+            Intent mediaProjectionPermissionResultData,
+            RectF region,
+            int maxWidth,
+            int maxHeight) {
         super(width, height, DEFAULT_FPS);
 
         this.mediaProjectionPermissionResultData = mediaProjectionPermissionResultData;
+        this.region = region;
+        this.maxLongSide = Math.max(0, Math.max(maxWidth, maxHeight));
+        this.maxShortSide = maxWidth <= 0 || maxHeight <= 0 ? 0 : Math.min(maxWidth, maxHeight);
+
+        int[] captureSize = getCaptureSize(width, height);
+        setCaptureFormat(captureSize[0], captureSize[1], DEFAULT_FPS);
 
         this.orientatationListener = new OrientationEventListener(context) {
             @Override
             public void onOrientationChanged(int orientation) {
                 try {
-                    DisplayMetrics displayMetrics = DisplayUtils.getDisplayMetrics((Activity) context);
-                    int width = displayMetrics.widthPixels;
-                    int height = displayMetrics.heightPixels;
-                    videoCapturer.changeCaptureFormat(width, height, DEFAULT_FPS);
+                    // The sensor reports many times a second, only a rotation
+                    // of the display changes the capture format.
+                    Activity activity = (Activity) context;
+                    int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+                    if (rotation == lastRotation) {
+                        return;
+                    }
+                    lastRotation = rotation;
+
+                    DisplayMetrics displayMetrics = DisplayUtils.getDisplayMetrics(activity);
+                    int[] captureSize = getCaptureSize(displayMetrics.widthPixels, displayMetrics.heightPixels);
+                    ThreadUtils.runOnExecutor(
+                        () -> changeCaptureFormat(captureSize[0], captureSize[1], DEFAULT_FPS));
                 } catch (Exception ex) {
                     // We ignore exceptions here. The video capturer runs on its own
                     // thread and we cannot synchronize with it.
@@ -48,6 +104,45 @@ public class ScreenCaptureController extends AbstractVideoCaptureController {
         }
     }
 
+    /**
+     * Returns the size of the frames delivered by this controller: the
+     * captured region of the screen.
+     */
+    public int[] getOutputSize() {
+        if (region == null) {
+            return new int[] { getWidth(), getHeight() };
+        }
+
+        int[] crop = ScreenRegionCropper.getCroppedSize(region, getWidth(), getHeight());
+        return new int[] { crop[2], crop[3] };
+    }
+
+    /**
+     * Returns the size to capture the whole display in, such that the
+     * captured region doesn't exceed the maximum size. Downscaling is
+     * cheapest when the virtual display is rendered smaller to begin with,
+     * cropping is then done on the already scaled frames.
+     */
+    private int[] getCaptureSize(int displayWidth, int displayHeight) {
+        float regionWidth = displayWidth * (region == null ? 1f : region.width());
+        float regionHeight = displayHeight * (region == null ? 1f : region.height());
+        float regionLongSide = Math.max(regionWidth, regionHeight);
+        float regionShortSide = Math.min(regionWidth, regionHeight);
+        float scale = 1f;
+
+        if (maxLongSide > 0 && regionLongSide > 0) {
+            scale = Math.min(scale, maxLongSide / regionLongSide);
+        }
+        if (maxShortSide > 0 && regionShortSide > 0) {
+            scale = Math.min(scale, maxShortSide / regionShortSide);
+        }
+
+        return new int[] {
+            Math.max(2, Math.round(displayWidth * scale) & ~1),
+            Math.max(2, Math.round(displayHeight * scale) & ~1)
+        };
+    }
+
     @Override
     protected VideoCapturer createVideoCapturer() {
         VideoCapturer videoCapturer = new ScreenCapturerAndroid(
@@ -58,8 +153,22 @@ public class ScreenCaptureController extends AbstractVideoCaptureController {
                     Log.w(TAG, "Media projection stopped.");
                     orientatationListener.disable();
                 }
-            });
+            }) {
+            @Override
+            public synchronized void initialize(
+                    SurfaceTextureHelper surfaceTextureHelper,
+                    Context applicationContext,
+                    CapturerObserver capturerObserver) {
+                // Don't encode and send the same screen over and over.
+                CapturerObserver observer = new StaticFrameFilter(capturerObserver);
+
+                if (region != null) {
+                    observer = new ScreenRegionCropper(region, observer);
+                }
 
+                super.initialize(surfaceTextureHelper, applicationContext, observer);
+            }
+        };
 
         return videoCapturer;
     }
@@ -0,0 +1,69 @@
+package com.oney.WebRTCModule;
+
+import android.graphics.RectF;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.VideoFrame;
+
+/**
+ * Crops the captured screen frames to a region. The region is relative to the
+ * frame size, so that it keeps matching the same part of the screen whatever
+ * format the screen is captured in. Texture frames are cropped by adjusting
+ * their transform, the pixels are only touched by the GPU when the encoder or
+ * a renderer draws them.
+ */
+class ScreenRegionCropper implements CapturerObserver {
+    private final CapturerObserver capturerObserver;
+
+    /**
+     * The region to crop to, in fractions of the frame size.
+     */
+    private final RectF region;
+
+    ScreenRegionCropper(RectF region, CapturerObserver capturerObserver) {
+        this.region = region;
+        this.capturerObserver = capturerObserver;
+    }
+
+    /**
+     * Returns the size a frame of the given size is cropped to.
+     */
+    static int[] getCroppedSize(RectF region, int width, int height) {
+        int left = Math.round(region.left * width) & ~1;
+        int top = Math.round(region.top * height) & ~1;
+        int right = Math.min(width, Math.round(region.right * width));
+        int bottom = Math.min(height, Math.round(region.bottom * height));
+
+        // Encoders want even dimensions.
+        return new int[] {
+            left, top, Math.max(2, (right - left) & ~1), Math.max(2, (bottom - top) & ~1)
+        };
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        capturerObserver.onCapturerStarted(success);
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        capturerObserver.onCapturerStopped();
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        int[] crop = getCroppedSize(region, buffer.getWidth(), buffer.getHeight());
+
+        if (crop[2] == buffer.getWidth() && crop[3] == buffer.getHeight()) {
+            capturerObserver.onFrameCaptured(frame);
+            return;
+        }
+
+        VideoFrame.Buffer croppedBuffer = buffer.cropAndScale(crop[0], crop[1], crop[2], crop[3], crop[2], crop[3]);
+        VideoFrame croppedFrame = new VideoFrame(croppedBuffer, frame.getRotation(), frame.getTimestampNs());
+
+        capturerObserver.onFrameCaptured(croppedFrame);
+        croppedFrame.release();
+    }
+}
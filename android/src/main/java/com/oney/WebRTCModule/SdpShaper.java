@@ -0,0 +1,338 @@
+package com.oney.WebRTCModule;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
+import com.facebook.react.bridge.ReadableType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Applies codec preferences and bitrate limits to the media sections of the
+ * session descriptions created by libwebrtc, before they are handed to JS, so
+ * that JS doesn't have to parse and rewrite them.
+ *
+ * Codec preferences work like {@code RTCRtpTransceiver.setCodecPreferences}:
+ * the listed codecs are kept, in that order, and the others removed. The
+ * retransmission and FEC codecs are kept along with the codecs they protect
+ * unless listed explicitly. A preference matching none of the codecs of a
+ * section leaves it as is.
+ *
+ * The bitrate limit is signaled with {@code b=AS} and {@code b=TIAS}, i.e. it
+ * caps what the remote side sends.
+ */
+class SdpShaper {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final Set<String> RESILIENCY_CODECS
+        = new HashSet<>(Arrays.asList("rtx", "red", "ulpfec", "flexfec-03"));
+
+    /**
+     * A codec, as in {@code RTCRtpCodecCapability}.
+     */
+    static class CodecPreference {
+        final String name;
+        @Nullable
+        final Map<String, String> parameters;
+
+        CodecPreference(String mimeType, @Nullable String sdpFmtpLine) {
+            int slash = mimeType.indexOf('/');
+            this.name = (slash >= 0 ? mimeType.substring(slash + 1) : mimeType).toLowerCase(Locale.ROOT);
+            this.parameters = sdpFmtpLine != null ? parseFmtp(sdpFmtpLine) : null;
+        }
+
+        /**
+         * Parses a list of {@code RTCRtpCodecCapability}.
+         */
+        static List<CodecPreference> parse(ReadableArray codecs) {
+            List<CodecPreference> preferences = new ArrayList<>();
+
+            for (int i = 0; i < codecs.size(); i++) {
+                ReadableMap codec = codecs.getMap(i);
+                String sdpFmtpLine = codec.hasKey("sdpFmtpLine") && codec.getType("sdpFmtpLine") == ReadableType.String
+                    ? codec.getString("sdpFmtpLine")
+                    : null;
+                preferences.add(new CodecPreference(codec.getString("mimeType"), sdpFmtpLine));
+            }
+
+            return preferences;
+        }
+
+        boolean matches(String name, @Nullable String fmtp) {
+            if (!this.name.equals(name)) {
+                return false;
+            }
+
+            if (parameters == null) {
+                return true;
+            }
+
+            Map<String, String> other = fmtp != null ? parseFmtp(fmtp) : new HashMap<>();
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                if (!parameter.getValue().equalsIgnoreCase(other.get(parameter.getKey()))) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * The rules for the media sections of a kind.
+     */
+    static class Rules {
+        @Nullable
+        final List<CodecPreference> codecs;
+
+        /**
+         * In bits per second, 0 for none.
+         */
+        final int maxBitrate;
+
+        Rules(@Nullable List<CodecPreference> codecs, int maxBitrate) {
+            this.codecs = codecs;
+            this.maxBitrate = maxBitrate;
+        }
+
+        /**
+         * Parses {@code { codecs?: RTCRtpCodecCapability[], maxBitrate?: number }}.
+         */
+        static Rules parse(ReadableMap map) {
+            List<CodecPreference> codecs = map.hasKey("codecs") && map.getType("codecs") == ReadableType.Array
+                ? CodecPreference.parse(map.getArray("codecs"))
+                : null;
+            int maxBitrate = map.hasKey("maxBitrate") && map.getType("maxBitrate") == ReadableType.Number
+                ? map.getInt("maxBitrate")
+                : 0;
+
+            return new Rules(codecs, maxBitrate);
+        }
+    }
+
+    /**
+     * Provides the rules of a media section.
+     */
+    interface RulesProvider {
+        /**
+         * @param index the index of the section among the media sections
+         * @param kind {@code audio} or {@code video}
+         * @param mid the mid of the section, if any
+         * @return the rules or {@code null} for none
+         */
+        @Nullable
+        Rules getRules(int index, String kind, @Nullable String mid);
+    }
+
+    /**
+     * Returns the description with the rules applied to its audio and video
+     * sections. Rejected sections are left untouched.
+     */
+    static String shape(String sdp, RulesProvider rulesProvider) {
+        String[] lines = sdp.split("\r?\n");
+        List<String> output = new ArrayList<>(lines.length);
+        int index = 0;
+        int sectionStart = -1;
+
+        for (int i = 0; i <= lines.length; i++) {
+            if (i < lines.length && !lines[i].startsWith("m=")) {
+                if (sectionStart < 0 && !lines[i].isEmpty()) {
+                    output.add(lines[i]);
+                }
+                continue;
+            }
+
+            if (sectionStart >= 0) {
+                List<String> section = new ArrayList<>(Arrays.asList(lines).subList(sectionStart, i));
+                output.addAll(shapeSection(section, index++, rulesProvider));
+            }
+            sectionStart = i;
+        }
+
+        StringBuilder result = new StringBuilder(sdp.length());
+        for (String line : output) {
+            result.append(line).append("\r\n");
+        }
+
+        return result.toString();
+    }
+
+    private static List<String> shapeSection(List<String> section, int index, RulesProvider rulesProvider) {
+        for (Iterator<String> i = section.iterator(); i.hasNext();) {
+            if (i.next().isEmpty()) {
+                i.remove();
+            }
+        }
+
+        // m=<media> <port> <proto> <fmt> ...
+        String[] mLine = section.get(0).substring(2).split(" ");
+        String kind = mLine[0];
+
+        if (mLine.length < 4 || "0".equals(mLine[1]) || !("audio".equals(kind) || "video".equals(kind))) {
+            return section;
+        }
+
+        String mid = null;
+        for (String line : section) {
+            if (line.startsWith("a=mid:")) {
+                mid = line.substring(6);
+                break;
+            }
+        }
+
+        Rules rules = rulesProvider.getRules(index, kind, mid);
+        if (rules == null) {
+            return section;
+        }
+
+        if (rules.codecs != null && !rules.codecs.isEmpty()) {
+            applyCodecPreferences(section, mLine, rules.codecs);
+        }
+
+        if (rules.maxBitrate > 0) {
+            applyMaxBitrate(section, rules.maxBitrate);
+        }
+
+        return section;
+    }
+
+    private static void applyCodecPreferences(List<String> section, String[] mLine, List<CodecPreference> codecs) {
+        Map<String, String> names = new HashMap<>();
+        Map<String, String> fmtps = new HashMap<>();
+
+        for (String line : section) {
+            if (line.startsWith("a=rtpmap:")) {
+                // a=rtpmap:<pt> <name>/<clock rate>[/<channels>]
+                String[] parts = line.substring(9).split("[ /]");
+                if (parts.length >= 2) {
+                    names.put(parts[0], parts[1].toLowerCase(Locale.ROOT));
+                }
+            } else if (line.startsWith("a=fmtp:")) {
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    fmtps.put(line.substring(7, space), line.substring(space + 1));
+                }
+            }
+        }
+
+        List<String> payloadTypes = Arrays.asList(mLine).subList(3, mLine.length);
+        LinkedHashSet<String> kept = new LinkedHashSet<>();
+        boolean resiliencyListed = false;
+
+        for (CodecPreference codec : codecs) {
+            resiliencyListed |= RESILIENCY_CODECS.contains(codec.name);
+
+            for (String pt : payloadTypes) {
+                String name = names.get(pt);
+                if (name != null && codec.matches(name, fmtps.get(pt))) {
+                    kept.add(pt);
+                }
+            }
+        }
+
+        if (kept.isEmpty()) {
+            Log.w(TAG, "No codec matches the preferences, keeping them all");
+            return;
+        }
+
+        if (!resiliencyListed) {
+            for (String pt : payloadTypes) {
+                String name = names.get(pt);
+                if (name == null || !RESILIENCY_CODECS.contains(name)) {
+                    continue;
+                }
+
+                // Retransmission is kept for the kept codecs only.
+                if ("rtx".equals(name)) {
+                    String fmtp = fmtps.get(pt);
+                    Map<String, String> parameters = fmtp != null ? parseFmtp(fmtp) : new HashMap<>();
+                    if (!kept.contains(parameters.get("apt"))) {
+                        continue;
+                    }
+                }
+
+                kept.add(pt);
+            }
+        }
+
+        StringBuilder m = new StringBuilder("m=").append(mLine[0]).append(' ').append(mLine[1]).append(' ').append(mLine[2]);
+        for (String pt : kept) {
+            m.append(' ').append(pt);
+        }
+        section.set(0, m.toString());
+
+        for (Iterator<String> i = section.iterator(); i.hasNext();) {
+            String pt = getPayloadType(i.next());
+            if (pt != null && payloadTypes.contains(pt) && !kept.contains(pt)) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the payload type of an rtpmap, fmtp or rtcp-fb line.
+     */
+    @Nullable
+    private static String getPayloadType(String line) {
+        String prefix;
+
+        if (line.startsWith("a=rtpmap:")) {
+            prefix = "a=rtpmap:";
+        } else if (line.startsWith("a=fmtp:")) {
+            prefix = "a=fmtp:";
+        } else if (line.startsWith("a=rtcp-fb:")) {
+            prefix = "a=rtcp-fb:";
+        } else {
+            return null;
+        }
+
+        int end = line.indexOf(' ', prefix.length());
+        return end > 0 ? line.substring(prefix.length(), end) : null;
+    }
+
+    private static void applyMaxBitrate(List<String> section, int maxBitrate) {
+        for (Iterator<String> i = section.iterator(); i.hasNext();) {
+            String line = i.next();
+            if (line.startsWith("b=AS:") || line.startsWith("b=TIAS:")) {
+                i.remove();
+            }
+        }
+
+        // The bandwidth lines follow the connection line, if any.
+        int position = 1;
+        while (position < section.size()
+                && (section.get(position).startsWith("i=") || section.get(position).startsWith("c="))) {
+            position++;
+        }
+
+        section.add(position, "b=TIAS:" + maxBitrate);
+        section.add(position, "b=AS:" + (maxBitrate + 999) / 1000);
+    }
+
+    private static Map<String, String> parseFmtp(String fmtp) {
+        Map<String, String> parameters = new HashMap<>();
+
+        for (String parameter : fmtp.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals > 0) {
+                parameters.put(
+                    parameter.substring(0, equals).trim().toLowerCase(Locale.ROOT),
+                    parameter.substring(equals + 1).trim());
+            }
+        }
+
+        return parameters;
+    }
+}
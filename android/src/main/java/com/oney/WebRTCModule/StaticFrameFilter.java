@@ -0,0 +1,192 @@
+package com.oney.WebRTCModule;
+
+import android.opengl.EGL14;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.RendererCommon;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+
+/**
+ * Drops frames which don't differ from the previous one, e.g. while sharing a
+ * static document. At most every {@link #CHECK_INTERVAL_MS} a frame is drawn
+ * into a tiny thumbnail on the GPU, and the luma of the thumbnail compared
+ * with the one of the previously checked frame; the frames in between share
+ * the outcome of the last check. Once nothing changed for
+ * {@link #IDLE_DELAY_MS} only one frame per {@link #KEEP_ALIVE_INTERVAL_MS} is
+ * forwarded, which keeps the receivers from considering the track muted. The
+ * first frame found changed is forwarded right away.
+ *
+ * Changes smaller than a thumbnail pixel may go unnoticed, they are delivered
+ * with the next keep-alive frame at the latest.
+ *
+ * Frames are expected on the thread of the capturer's
+ * {@code SurfaceTextureHelper}, with its EGL context current.
+ */
+class StaticFrameFilter implements CapturerObserver {
+    private static final String TAG = WebRTCModule.TAG;
+
+    /**
+     * Small enough for the synchronous readback and the comparison to be
+     * negligible next to the capture, 4 KB per check.
+     */
+    private static final int THUMBNAIL_SIZE = 32;
+
+    /**
+     * The difference of luma above which a pixel is considered changed, to
+     * absorb dithering.
+     */
+    private static final int PIXEL_THRESHOLD = 2;
+
+    private static final long CHECK_INTERVAL_MS = 100;
+
+    private static final long IDLE_DELAY_MS = 500;
+
+    private static final long KEEP_ALIVE_INTERVAL_MS = 1000;
+
+    private final CapturerObserver capturerObserver;
+
+    private RendererCommon.GlDrawer drawer;
+    private VideoFrameDrawer frameDrawer;
+    private GlTextureFrameBuffer frameBuffer;
+    private ByteBuffer thumbnail;
+    private byte[] luma;
+    private byte[] previousLuma;
+
+    private long lastCheckNs;
+    private boolean changed;
+    private long lastChangeNs;
+    private long lastForwardNs;
+    private boolean idle;
+
+    StaticFrameFilter(CapturerObserver capturerObserver) {
+        this.capturerObserver = capturerObserver;
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        previousLuma = null;
+        idle = false;
+        capturerObserver.onCapturerStarted(success);
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        release();
+        capturerObserver.onCapturerStopped();
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        long timestampNs = frame.getTimestampNs();
+
+        if (previousLuma == null
+                || timestampNs - lastCheckNs >= TimeUnit.MILLISECONDS.toNanos(CHECK_INTERVAL_MS)) {
+            lastCheckNs = timestampNs;
+            changed = hasChanged(frame);
+        }
+
+        if (changed) {
+            lastChangeNs = timestampNs;
+            if (idle) {
+                idle = false;
+                Log.d(TAG, "Screen content changed, resuming full frame rate");
+            }
+        } else if (!idle && timestampNs - lastChangeNs > TimeUnit.MILLISECONDS.toNanos(IDLE_DELAY_MS)) {
+            idle = true;
+            Log.d(TAG, "Screen content is static, dropping to keep-alive frame rate");
+        }
+
+        if (!idle || timestampNs - lastForwardNs >= TimeUnit.MILLISECONDS.toNanos(KEEP_ALIVE_INTERVAL_MS)) {
+            lastForwardNs = timestampNs;
+            capturerObserver.onFrameCaptured(frame);
+        }
+    }
+
+    /**
+     * Compares the thumbnail of the given frame with the one of the previously
+     * checked frame. Frames which cannot be drawn are always considered
+     * changed.
+     */
+    private boolean hasChanged(VideoFrame frame) {
+        if (!(frame.getBuffer() instanceof VideoFrame.TextureBuffer)
+                || EGL14.eglGetCurrentContext() == EGL14.EGL_NO_CONTEXT) {
+            return true;
+        }
+
+        if (drawer == null) {
+            drawer = new GlRectDrawer();
+            frameDrawer = new VideoFrameDrawer();
+            frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+            frameBuffer.setSize(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        }
+
+        if (thumbnail == null) {
+            thumbnail = ByteBuffer.allocateDirect(THUMBNAIL_SIZE * THUMBNAIL_SIZE * 4)
+                .order(ByteOrder.nativeOrder());
+            luma = new byte[THUMBNAIL_SIZE * THUMBNAIL_SIZE];
+        }
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        frameDrawer.drawFrame(frame, drawer, null, 0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+        thumbnail.rewind();
+        GLES20.glReadPixels(
+            0, 0, THUMBNAIL_SIZE, THUMBNAIL_SIZE, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, thumbnail);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        toLuma(thumbnail, luma);
+        boolean changed = previousLuma == null || differs(luma, previousLuma);
+
+        // Swap, the previous array is overwritten by the next check.
+        byte[] tmp = previousLuma != null ? previousLuma : new byte[luma.length];
+        previousLuma = luma;
+        luma = tmp;
+
+        return changed;
+    }
+
+    /**
+     * Converts RGBA pixels to their luma, BT.601 in integer arithmetic.
+     */
+    private static void toLuma(ByteBuffer rgba, byte[] luma) {
+        for (int i = 0; i < luma.length; i++) {
+            int r = rgba.get(i * 4) & 0xff;
+            int g = rgba.get(i * 4 + 1) & 0xff;
+            int b = rgba.get(i * 4 + 2) & 0xff;
+            luma[i] = (byte) ((77 * r + 150 * g + 29 * b) >> 8);
+        }
+    }
+
+    private static boolean differs(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (Math.abs((a[i] & 0xff) - (b[i] & 0xff)) > PIXEL_THRESHOLD) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void release() {
+        if (drawer != null) {
+            drawer.release();
+            frameDrawer.release();
+            frameBuffer.release();
+            drawer = null;
+            frameDrawer = null;
+            frameBuffer = null;
+        }
+
+        thumbnail = null;
+        luma = null;
+        previousLuma = null;
+    }
+}
@@ -0,0 +1,380 @@
+package com.oney.WebRTCModule;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.EglBase;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSource;
+
+/**
+ * A running video capturer which can be shared by multiple local video tracks.
+ * The capturer feeds this instance, which fans the frames out to one
+ * {@link VideoSource} per track. Every such branch is adapted to the format its
+ * track asked for, so a lower resolution consumer is served by scaling instead
+ * of by a second capture session. A branch may additionally be limited to a
+ * smaller size, e.g. because its encoder cannot send more. The capturer runs
+ * at the largest format any branch needs and is stopped only when no branch
+ * is enabled anymore.
+ *
+ * All methods but the {@link CapturerObserver} ones are to be called on the
+ * WebRTC executor.
+ */
+class VideoCaptureSource implements CapturerObserver {
+    private static final String TAG = WebRTCModule.TAG;
+
+    /**
+     * A {@link VideoSource} fed by this capture source along with the format
+     * its track asked for.
+     */
+    private static class Branch {
+        final VideoSource videoSource;
+        final int width;
+        final int height;
+        final int frameRate;
+        volatile boolean enabled = true;
+
+        /**
+         * The size the long and the short side of this branch are currently
+         * limited to or 0 if not limited.
+         */
+        int maxLongSide;
+        int maxShortSide;
+
+        Branch(VideoSource videoSource, int width, int height, int frameRate) {
+            this.videoSource = videoSource;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+        }
+
+        /**
+         * Returns the requested format scaled down to fit the limit, if any,
+         * keeping the aspect ratio and the orientation.
+         */
+        int[] getFormat() {
+            int longSide = Math.max(width, height);
+            int shortSide = Math.min(width, height);
+
+            if (maxLongSide <= 0 || maxShortSide <= 0
+                    || (longSide <= maxLongSide && shortSide <= maxShortSide)) {
+                return new int[] { width, height, frameRate };
+            }
+
+            float scale = Math.min(maxLongSide / (float) longSide, maxShortSide / (float) shortSide);
+            // Encoders want even dimensions.
+            int scaledWidth = Math.max(2, Math.round(width * scale) & ~1);
+            int scaledHeight = Math.max(2, Math.round(height * scale) & ~1);
+
+            return new int[] { scaledWidth, scaledHeight, frameRate };
+        }
+    }
+
+    private final AbstractVideoCaptureController videoCaptureController;
+    private final SurfaceTextureHelper surfaceTextureHelper;
+    private final boolean isScreencast;
+
+    private final List<Branch> branches = new CopyOnWriteArrayList<>();
+
+    /**
+     * Whether the capturer was started by us.
+     */
+    private boolean capturing;
+
+    /**
+     * The last value reported through {@link #onCapturerStarted(boolean)}, so
+     * that branches added later get started as well.
+     */
+    private volatile boolean capturerStarted;
+
+    private VideoCaptureSource(
+            AbstractVideoCaptureController videoCaptureController,
+            SurfaceTextureHelper surfaceTextureHelper) {
+        this.videoCaptureController = videoCaptureController;
+        this.surfaceTextureHelper = surfaceTextureHelper;
+        this.isScreencast = videoCaptureController.getVideoCapturer().isScreencast();
+    }
+
+    /**
+     * Creates the capturer of the given controller and starts capturing.
+     *
+     * @return the running {@code VideoCaptureSource} or {@code null} on
+     * failure
+     */
+    static VideoCaptureSource create(AbstractVideoCaptureController videoCaptureController, Context context) {
+        videoCaptureController.initializeVideoCapturer();
+
+        VideoCapturer videoCapturer = videoCaptureController.getVideoCapturer();
+        if (videoCapturer == null) {
+            return null;
+        }
+
+        EglBase.Context eglContext = EglUtils.getRootEglBaseContext();
+        SurfaceTextureHelper surfaceTextureHelper =
+            SurfaceTextureHelper.create("CaptureThread", eglContext);
+
+        if (surfaceTextureHelper == null) {
+            Log.d(TAG, "Error creating SurfaceTextureHelper");
+            videoCaptureController.dispose();
+            return null;
+        }
+
+        VideoCaptureSource source = new VideoCaptureSource(videoCaptureController, surfaceTextureHelper);
+        videoCaptureController.attachVideoCapturer(surfaceTextureHelper, context, source);
+
+        videoCaptureController.startCapture();
+        source.capturing = true;
+
+        return source;
+    }
+
+    AbstractVideoCaptureController getVideoCaptureController() {
+        return videoCaptureController;
+    }
+
+    SurfaceTextureHelper getSurfaceTextureHelper() {
+        return surfaceTextureHelper;
+    }
+
+    int getBranchCount() {
+        return branches.size();
+    }
+
+    /**
+     * Creates a new {@code VideoSource} fed by this capture source. If the
+     * requested format is larger than the one being captured, the capture
+     * format is raised; otherwise frames are scaled down for this branch.
+     */
+    VideoSource addBranch(PeerConnectionFactory pcFactory, int width, int height, int frameRate) {
+        VideoSource videoSource = pcFactory.createVideoSource(isScreencast);
+        Branch branch = new Branch(videoSource, width, height, frameRate);
+
+        if (capturerStarted) {
+            videoSource.getCapturerObserver().onCapturerStarted(true);
+        }
+        branches.add(branch);
+        updateCaptureFormat();
+        adaptBranches();
+
+        if (!capturing) {
+            videoCaptureController.startCapture();
+            capturing = true;
+        }
+
+        return videoSource;
+    }
+
+    /**
+     * Stops feeding the given {@code VideoSource}. The caller still owns it and
+     * is responsible for disposing it.
+     */
+    void removeBranch(VideoSource videoSource) {
+        Branch branch = getBranch(videoSource);
+
+        if (branch != null) {
+            branches.remove(branch);
+            videoSource.getCapturerObserver().onCapturerStopped();
+            updateCapturing();
+
+            if (!branches.isEmpty()) {
+                updateCaptureFormat();
+                adaptBranches();
+            }
+        }
+    }
+
+    /**
+     * Enables or disables the given branch. The capturer is stopped while no
+     * branch is enabled.
+     */
+    void setBranchEnabled(VideoSource videoSource, boolean enabled) {
+        Branch branch = getBranch(videoSource);
+
+        if (branch != null) {
+            branch.enabled = enabled;
+            updateCapturing();
+        }
+    }
+
+    /**
+     * Limits the size the given branch is delivered in, or lifts the limit if
+     * either side is 0. The capture format follows the largest size still
+     * needed by any branch, except for screencasts whose capture format
+     * tracks the screen.
+     *
+     * @return {@code true} if the limit changed
+     */
+    boolean setBranchLimit(VideoSource videoSource, int maxWidth, int maxHeight) {
+        Branch branch = getBranch(videoSource);
+
+        if (branch == null) {
+            return false;
+        }
+
+        int maxLongSide = maxWidth <= 0 || maxHeight <= 0 ? 0 : Math.max(maxWidth, maxHeight);
+        int maxShortSide = maxLongSide == 0 ? 0 : Math.min(maxWidth, maxHeight);
+
+        if (maxLongSide == branch.maxLongSide && maxShortSide == branch.maxShortSide) {
+            return false;
+        }
+
+        branch.maxLongSide = maxLongSide;
+        branch.maxShortSide = maxShortSide;
+        updateCaptureFormat();
+        adaptBranches();
+
+        return true;
+    }
+
+    /**
+     * Returns the format the given branch is actually delivered in: the format
+     * its track asked for, bounded by its limit and by what is being captured.
+     */
+    int[] getBranchFormat(VideoSource videoSource) {
+        Branch branch = getBranch(videoSource);
+        int width = videoCaptureController.getWidth();
+        int height = videoCaptureController.getHeight();
+        int frameRate = videoCaptureController.getFrameRate();
+
+        if (branch != null) {
+            int[] format = branch.getFormat();
+            if (isSmallerThanCapture(format[0], format[1])) {
+                width = format[0];
+                height = format[1];
+            }
+            frameRate = Math.min(frameRate, format[2]);
+        }
+
+        return new int[] { width, height, frameRate };
+    }
+
+    void dispose() {
+        if (videoCaptureController.stopCapture()) {
+            videoCaptureController.dispose();
+        }
+        capturing = false;
+
+        /*
+         * As per webrtc library documentation - The caller still has ownership of {@code
+         * surfaceTextureHelper} and is responsible for making sure surfaceTextureHelper.dispose() is
+         * called. This also means that the caller can reuse the SurfaceTextureHelper to initialize a new
+         * VideoCapturer once the previous VideoCapturer has been disposed. */
+        surfaceTextureHelper.stopListening();
+        surfaceTextureHelper.dispose();
+        branches.clear();
+    }
+
+    private Branch getBranch(VideoSource videoSource) {
+        for (Branch branch : branches) {
+            if (branch.videoSource == videoSource) {
+                return branch;
+            }
+        }
+
+        return null;
+    }
+
+    private void updateCapturing() {
+        boolean anyEnabled = false;
+
+        for (Branch branch : branches) {
+            anyEnabled |= branch.enabled;
+        }
+
+        if (anyEnabled && !capturing) {
+            videoCaptureController.startCapture();
+            capturing = true;
+        } else if (!anyEnabled && capturing) {
+            capturing = !videoCaptureController.stopCapture();
+        }
+    }
+
+    /**
+     * Captures in the largest format needed by any branch, in the orientation
+     * the capturer is already in.
+     */
+    private void updateCaptureFormat() {
+        if (isScreencast) {
+            return;
+        }
+
+        int longSide = 0;
+        int shortSide = 0;
+        int frameRate = 0;
+
+        for (Branch branch : branches) {
+            int[] format = branch.getFormat();
+            longSide = Math.max(longSide, Math.max(format[0], format[1]));
+            shortSide = Math.max(shortSide, Math.min(format[0], format[1]));
+            frameRate = Math.max(frameRate, format[2]);
+        }
+
+        if (longSide == 0) {
+            return;
+        }
+
+        if (videoCaptureController.getWidth() >= videoCaptureController.getHeight()) {
+            videoCaptureController.changeCaptureFormat(longSide, shortSide, frameRate);
+        } else {
+            videoCaptureController.changeCaptureFormat(shortSide, longSide, frameRate);
+        }
+    }
+
+    /**
+     * Scales every branch which needs less than what is being captured.
+     */
+    private void adaptBranches() {
+        for (Branch branch : branches) {
+            int[] format = branch.getFormat();
+
+            if (isSmallerThanCapture(format[0], format[1])
+                    || format[2] < videoCaptureController.getFrameRate()) {
+                branch.videoSource.adaptOutputFormat(format[0], format[1], format[2]);
+            } else {
+                branch.videoSource.adaptOutputFormat(
+                    videoCaptureController.getWidth(),
+                    videoCaptureController.getHeight(),
+                    videoCaptureController.getFrameRate());
+            }
+        }
+    }
+
+    private boolean isSmallerThanCapture(int width, int height) {
+        return (long) width * height
+            < (long) videoCaptureController.getWidth() * videoCaptureController.getHeight();
+    }
+
+    @Override
+    public void onCapturerStarted(boolean success) {
+        capturerStarted = success;
+        for (Branch branch : branches) {
+            branch.videoSource.getCapturerObserver().onCapturerStarted(success);
+        }
+    }
+
+    @Override
+    public void onCapturerStopped() {
+        capturerStarted = false;
+        for (Branch branch : branches) {
+            branch.videoSource.getCapturerObserver().onCapturerStopped();
+        }
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        videoCaptureController.onFrameCaptured();
+
+        for (Branch branch : branches) {
+            if (branch.enabled) {
+                branch.videoSource.getCapturerObserver().onFrameCaptured(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.oney.WebRTCModule;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+
+import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoDecoderFactory;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.PlatformSoftwareVideoDecoderFactory;
+import org.webrtc.SoftwareVideoDecoderFactory;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoDecoder;
+import org.webrtc.VideoDecoderFactory;
+import org.webrtc.VideoDecoderFallback;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+
+/**
+ * Decides which hardware video codecs are used, from a list of quirks of
+ * specific devices: the bundled one, merged with the one the app sets through
+ * {@link WebRTCModule.Options#setVideoCodecQuirks}.
+ *
+ * The codec factories it creates work like libwebrtc's default ones, i.e. they
+ * use the hardware codecs and fall back to the software ones, but skip the
+ * hardware codecs with a quirk. H.264 High profile is offered unless disabled
+ * in the options or by a quirk of one of the hardware H.264 encoders.
+ */
+public class VideoCodecPolicy {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final String H264_MIME_TYPE = "video/avc";
+
+    public enum Action {
+        /**
+         * Don't use the codec, the software one is used instead.
+         */
+        DISABLE_HARDWARE,
+
+        /**
+         * Don't offer H.264 High profile if the device has the codec.
+         */
+        DISABLE_H264_HIGH_PROFILE
+    }
+
+    /**
+     * A codec to be avoided, on all devices or those with a given SoC.
+     */
+    public static class Quirk {
+        @Nullable
+        final String soc;
+        final String codecName;
+        final Action action;
+
+        /**
+         * @param soc the SoC, compared with {@link Build#HARDWARE} and
+         * {@link Build#BOARD} ignoring case, {@code null} for any
+         * @param codecName the name of the codec or a prefix of it, as listed
+         * by {@link MediaCodecList}, ignoring case
+         */
+        public Quirk(@Nullable String soc, String codecName, Action action) {
+            this.soc = soc;
+            this.codecName = codecName.toLowerCase(Locale.ROOT);
+            this.action = action;
+        }
+
+        boolean matches(String codecName, Action action) {
+            return this.action == action
+                && codecName.toLowerCase(Locale.ROOT).startsWith(this.codecName)
+                && (soc == null || soc.equalsIgnoreCase(Build.HARDWARE) || soc.equalsIgnoreCase(Build.BOARD));
+        }
+    }
+
+    static final List<Quirk> BUNDLED_QUIRKS = Collections.unmodifiableList(Arrays.asList(
+        // The H.264 decoder of the Tensor SoC of the Pixel 7 doesn't output
+        // the frames of some streams.
+        new Quirk(null, "c2.exynos.h264.decoder", Action.DISABLE_HARDWARE)
+    ));
+
+    private final List<Quirk> quirks;
+    private final boolean enableH264HighProfile;
+
+    VideoCodecPolicy(@Nullable List<Quirk> appQuirks, boolean enableH264HighProfile) {
+        quirks = new ArrayList<>(BUNDLED_QUIRKS);
+        if (appQuirks != null) {
+            quirks.addAll(appQuirks);
+        }
+
+        this.enableH264HighProfile = enableH264HighProfile;
+    }
+
+    /**
+     * Whether a hardware codec, encoder or decoder, is to be avoided.
+     */
+    boolean isHardwareDisabled(String codecName) {
+        return hasQuirk(codecName, Action.DISABLE_HARDWARE);
+    }
+
+    private boolean hasQuirk(String codecName, Action action) {
+        for (Quirk quirk : quirks) {
+            if (quirk.matches(codecName, action)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Whether to offer H.264 High profile, which the hardware encoder factory
+     * only does where the encoder supports it anyway.
+     */
+    boolean isH264HighProfileEnabled() {
+        if (!enableH264HighProfile) {
+            return false;
+        }
+
+        for (int i = 0, count = MediaCodecList.getCodecCount(); i < count; i++) {
+            MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
+            if (!info.isEncoder() || !Arrays.asList(info.getSupportedTypes()).contains(H264_MIME_TYPE)) {
+                continue;
+            }
+
+            if (hasQuirk(info.getName(), Action.DISABLE_H264_HIGH_PROFILE)) {
+                Log.d(TAG, "H.264 High profile disabled because of " + info.getName());
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    VideoEncoderFactory createVideoEncoderFactory(EglBase.Context eglContext) {
+        return new PolicyVideoEncoderFactory(
+            new HardwareVideoEncoderFactory(
+                eglContext,
+                /* enableIntelVp8Encoder */ true,
+                isH264HighProfileEnabled(),
+                info -> !isHardwareDisabled(info.getName())),
+            new SoftwareVideoEncoderFactory());
+    }
+
+    VideoDecoderFactory createVideoDecoderFactory(EglBase.Context eglContext) {
+        return new PolicyVideoDecoderFactory(
+            new HardwareVideoDecoderFactory(eglContext, info -> !isHardwareDisabled(info.getName())),
+            new SoftwareVideoDecoderFactory(),
+            new PlatformSoftwareVideoDecoderFactory(eglContext));
+    }
+
+    /**
+     * Whether the implementation name of a codec, as reported in the stats,
+     * is that of a hardware codec. The hardware codecs report the name of
+     * their {@code MediaCodec}.
+     */
+    static boolean isHardwareImplementation(@Nullable String implementation) {
+        if (implementation == null) {
+            return false;
+        }
+
+        String name = implementation.toLowerCase(Locale.ROOT);
+
+        return (name.startsWith("omx.") || name.startsWith("c2."))
+            && !name.startsWith("omx.google.")
+            && !name.startsWith("c2.android.");
+    }
+
+    /**
+     * Same as {@code DefaultVideoEncoderFactory}, with the given hardware
+     * factory.
+     */
+    private static class PolicyVideoEncoderFactory implements VideoEncoderFactory {
+        private final VideoEncoderFactory hardwareVideoEncoderFactory;
+        private final VideoEncoderFactory softwareVideoEncoderFactory;
+
+        PolicyVideoEncoderFactory(
+                VideoEncoderFactory hardwareVideoEncoderFactory, VideoEncoderFactory softwareVideoEncoderFactory) {
+            this.hardwareVideoEncoderFactory = hardwareVideoEncoderFactory;
+            this.softwareVideoEncoderFactory = softwareVideoEncoderFactory;
+        }
+
+        @Nullable
+        @Override
+        public VideoEncoder createEncoder(VideoCodecInfo info) {
+            VideoEncoder softwareEncoder = softwareVideoEncoderFactory.createEncoder(info);
+            VideoEncoder hardwareEncoder = hardwareVideoEncoderFactory.createEncoder(info);
+
+            if (hardwareEncoder != null && softwareEncoder != null) {
+                return new VideoEncoderFallback(softwareEncoder, hardwareEncoder);
+            }
+
+            return hardwareEncoder != null ? hardwareEncoder : softwareEncoder;
+        }
+
+        @Override
+        public VideoCodecInfo[] getSupportedCodecs() {
+            LinkedHashSet<VideoCodecInfo> supportedCodecs = new LinkedHashSet<>();
+
+            supportedCodecs.addAll(Arrays.asList(softwareVideoEncoderFactory.getSupportedCodecs()));
+            supportedCodecs.addAll(Arrays.asList(hardwareVideoEncoderFactory.getSupportedCodecs()));
+
+            return supportedCodecs.toArray(new VideoCodecInfo[0]);
+        }
+    }
+
+    /**
+     * Same as {@code DefaultVideoDecoderFactory}, with the given hardware
+     * factory.
+     */
+    private static class PolicyVideoDecoderFactory implements VideoDecoderFactory {
+        private final VideoDecoderFactory hardwareVideoDecoderFactory;
+        private final VideoDecoderFactory softwareVideoDecoderFactory;
+        private final VideoDecoderFactory platformSoftwareVideoDecoderFactory;
+
+        PolicyVideoDecoderFactory(
+                VideoDecoderFactory hardwareVideoDecoderFactory,
+                VideoDecoderFactory softwareVideoDecoderFactory,
+                VideoDecoderFactory platformSoftwareVideoDecoderFactory) {
+            this.hardwareVideoDecoderFactory = hardwareVideoDecoderFactory;
+            this.softwareVideoDecoderFactory = softwareVideoDecoderFactory;
+            this.platformSoftwareVideoDecoderFactory = platformSoftwareVideoDecoderFactory;
+        }
+
+        @Nullable
+        @Override
+        public VideoDecoder createDecoder(VideoCodecInfo codecType) {
+            VideoDecoder softwareDecoder = softwareVideoDecoderFactory.createDecoder(codecType);
+            VideoDecoder hardwareDecoder = hardwareVideoDecoderFactory.createDecoder(codecType);
+
+            if (softwareDecoder == null) {
+                softwareDecoder = platformSoftwareVideoDecoderFactory.createDecoder(codecType);
+            }
+
+            if (hardwareDecoder != null && softwareDecoder != null) {
+                return new VideoDecoderFallback(softwareDecoder, hardwareDecoder);
+            }
+
+            return hardwareDecoder != null ? hardwareDecoder : softwareDecoder;
+        }
+
+        @Override
+        public VideoCodecInfo[] getSupportedCodecs() {
+            LinkedHashSet<VideoCodecInfo> supportedCodecInfos = new LinkedHashSet<>();
+
+            supportedCodecInfos.addAll(Arrays.asList(softwareVideoDecoderFactory.getSupportedCodecs()));
+            supportedCodecInfos.addAll(Arrays.asList(hardwareVideoDecoderFactory.getSupportedCodecs()));
+            supportedCodecInfos.addAll(Arrays.asList(platformSoftwareVideoDecoderFactory.getSupportedCodecs()));
+
+            return supportedCodecInfos.toArray(new VideoCodecInfo[0]);
+        }
+    }
+}
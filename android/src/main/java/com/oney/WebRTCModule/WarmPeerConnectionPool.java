@@ -0,0 +1,343 @@
+package com.oney.WebRTCModule;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.facebook.react.bridge.ReadableMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.webrtc.CandidatePairChangeEvent;
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaStream;
+import org.webrtc.PeerConnection;
+import org.webrtc.RtcCertificatePem;
+import org.webrtc.RtpReceiver;
+import org.webrtc.RtpTransceiver;
+
+/**
+ * Keeps peer connections created ahead of time for the configurations the app
+ * expects to use, so {@code peerConnectionInit} doesn't pay for their creation
+ * and, if the configuration has an {@code iceCandidatePoolSize}, the ICE
+ * candidates are already gathered by the time the first offer is made.
+ *
+ * The connections are keyed by their configuration as received from JS. Each
+ * one taken out is replaced in the background for as long as the pool of its
+ * configuration is wanted. Connections left unused for {@link #MAX_AGE_MS} are
+ * closed without being replaced, their candidates may be stale by then and
+ * their TURN allocations shouldn't be held forever.
+ *
+ * All methods are called on the WebRTC executor.
+ */
+class WarmPeerConnectionPool {
+    private static final String TAG = WebRTCModule.TAG;
+
+    private static final long MAX_AGE_MS = 60000;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * A peer connection waiting to be handed out.
+     */
+    static class WarmPeerConnection {
+        final PeerConnection peerConnection;
+        final RtcCertificatePem certificate;
+        private final ForwardingObserver observer;
+        private final long createdAtMs = SystemClock.elapsedRealtime();
+
+        private WarmPeerConnection(
+                PeerConnection peerConnection, RtcCertificatePem certificate, ForwardingObserver observer) {
+            this.peerConnection = peerConnection;
+            this.certificate = certificate;
+            this.observer = observer;
+        }
+
+        /**
+         * Routes the events of the connection to its observer, starting with
+         * those which occurred while it was waiting.
+         */
+        void bind(PeerConnection.Observer delegate) {
+            observer.bind(delegate);
+        }
+    }
+
+    /**
+     * The connections of a configuration and how many of them are wanted.
+     */
+    private static class Pool {
+        final ReadableMap configuration;
+        final Deque<WarmPeerConnection> peerConnections = new ArrayDeque<>();
+        int size;
+
+        Pool(ReadableMap configuration) {
+            this.configuration = configuration;
+        }
+    }
+
+    private final WebRTCModule webRTCModule;
+    private final Map<Map<String, Object>, Pool> pools = new HashMap<>();
+
+    private final Runnable expireRunnable = () -> ThreadUtils.runOnExecutor(this::removeExpired);
+
+    WarmPeerConnectionPool(WebRTCModule webRTCModule) {
+        this.webRTCModule = webRTCModule;
+    }
+
+    /**
+     * Sets the number of connections kept for a configuration, creating the
+     * missing ones. 0 closes them.
+     */
+    void prewarm(ReadableMap configuration, int size) {
+        Map<String, Object> key = configuration.toHashMap();
+        Pool pool = pools.get(key);
+
+        if (pool == null) {
+            if (size <= 0) {
+                return;
+            }
+            pool = new Pool(configuration);
+            pools.put(key, pool);
+        }
+
+        pool.size = Math.max(size, 0);
+
+        while (pool.peerConnections.size() > pool.size) {
+            pool.peerConnections.pollLast().peerConnection.dispose();
+        }
+        fill(pool);
+
+        if (pool.size == 0) {
+            pools.remove(key);
+        }
+    }
+
+    /**
+     * Takes a connection created with the given configuration out of the pool
+     * and schedules its replacement.
+     *
+     * @return the connection or {@code null} if there is none
+     */
+    WarmPeerConnection take(ReadableMap configuration) {
+        Map<String, Object> key = configuration.toHashMap();
+        Pool pool = pools.get(key);
+
+        if (pool == null) {
+            return null;
+        }
+
+        removeExpired(pool);
+
+        WarmPeerConnection warmPeerConnection = pool.peerConnections.pollFirst();
+        if (warmPeerConnection == null) {
+            return null;
+        }
+
+        // Replace it after the current call, the caller is waiting.
+        ThreadUtils.runOnExecutor(() -> {
+            if (pools.get(key) == pool) {
+                fill(pool);
+            }
+        });
+
+        return warmPeerConnection;
+    }
+
+    /**
+     * Closes all the connections. Called before the factory they were created
+     * with may be disposed.
+     */
+    void dispose() {
+        mainHandler.removeCallbacks(expireRunnable);
+
+        for (Pool pool : pools.values()) {
+            for (WarmPeerConnection warmPeerConnection : pool.peerConnections) {
+                warmPeerConnection.peerConnection.dispose();
+            }
+        }
+        pools.clear();
+    }
+
+    private void fill(Pool pool) {
+        boolean created = false;
+
+        while (pool.peerConnections.size() < pool.size) {
+            PeerConnection.RTCConfiguration rtcConfiguration
+                = webRTCModule.createRTCConfiguration(pool.configuration);
+            ForwardingObserver observer = new ForwardingObserver();
+            PeerConnection peerConnection = webRTCModule.mFactory.createPeerConnection(rtcConfiguration, observer);
+
+            if (peerConnection == null) {
+                Log.w(TAG, "Failed to create a warm PeerConnection");
+                break;
+            }
+
+            pool.peerConnections.addLast(
+                new WarmPeerConnection(peerConnection, rtcConfiguration.certificate, observer));
+            created = true;
+        }
+
+        if (created) {
+            scheduleExpiry();
+        }
+    }
+
+    private void removeExpired() {
+        for (Iterator<Pool> i = pools.values().iterator(); i.hasNext();) {
+            Pool pool = i.next();
+
+            removeExpired(pool);
+            if (pool.peerConnections.isEmpty()) {
+                i.remove();
+            }
+        }
+
+        scheduleExpiry();
+    }
+
+    /**
+     * Schedules {@link #removeExpired()} for when the oldest connection
+     * expires, if there is any.
+     */
+    private void scheduleExpiry() {
+        long oldestCreatedAtMs = Long.MAX_VALUE;
+
+        for (Pool pool : pools.values()) {
+            WarmPeerConnection oldest = pool.peerConnections.peekFirst();
+            if (oldest != null) {
+                oldestCreatedAtMs = Math.min(oldestCreatedAtMs, oldest.createdAtMs);
+            }
+        }
+
+        mainHandler.removeCallbacks(expireRunnable);
+
+        if (oldestCreatedAtMs != Long.MAX_VALUE) {
+            long delayMs = oldestCreatedAtMs + MAX_AGE_MS - SystemClock.elapsedRealtime();
+            mainHandler.postDelayed(expireRunnable, Math.max(delayMs, 0));
+        }
+    }
+
+    private void removeExpired(Pool pool) {
+        long minCreatedAtMs = SystemClock.elapsedRealtime() - MAX_AGE_MS;
+
+        while (!pool.peerConnections.isEmpty() && pool.peerConnections.peekFirst().createdAtMs <= minCreatedAtMs) {
+            Log.d(TAG, "Closing an unused warm PeerConnection");
+            pool.peerConnections.pollFirst().peerConnection.dispose();
+        }
+    }
+
+    /**
+     * Holds the events of a warm connection, which are few if any as nothing
+     * is negotiated yet, until the observer of the connection it becomes is
+     * known. Events are raised on the signaling thread.
+     */
+    private static class ForwardingObserver implements PeerConnection.Observer {
+        private PeerConnection.Observer delegate;
+        private List<Runnable> pendingEvents = new ArrayList<>();
+
+        synchronized void bind(PeerConnection.Observer delegate) {
+            this.delegate = delegate;
+
+            for (Runnable event : pendingEvents) {
+                event.run();
+            }
+            pendingEvents = null;
+        }
+
+        private synchronized void forward(Runnable event) {
+            if (delegate != null) {
+                event.run();
+            } else {
+                pendingEvents.add(event);
+            }
+        }
+
+        @Override
+        public void onSignalingChange(PeerConnection.SignalingState newState) {
+            forward(() -> delegate.onSignalingChange(newState));
+        }
+
+        @Override
+        public void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
+            forward(() -> delegate.onIceConnectionChange(newState));
+        }
+
+        @Override
+        public void onStandardizedIceConnectionChange(PeerConnection.IceConnectionState newState) {
+            forward(() -> delegate.onStandardizedIceConnectionChange(newState));
+        }
+
+        @Override
+        public void onConnectionChange(PeerConnection.PeerConnectionState newState) {
+            forward(() -> delegate.onConnectionChange(newState));
+        }
+
+        @Override
+        public void onIceConnectionReceivingChange(boolean receiving) {
+            forward(() -> delegate.onIceConnectionReceivingChange(receiving));
+        }
+
+        @Override
+        public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
+            forward(() -> delegate.onIceGatheringChange(newState));
+        }
+
+        @Override
+        public void onIceCandidate(IceCandidate candidate) {
+            forward(() -> delegate.onIceCandidate(candidate));
+        }
+
+        @Override
+        public void onIceCandidatesRemoved(IceCandidate[] candidates) {
+            forward(() -> delegate.onIceCandidatesRemoved(candidates));
+        }
+
+        @Override
+        public void onSelectedCandidatePairChanged(CandidatePairChangeEvent event) {
+            forward(() -> delegate.onSelectedCandidatePairChanged(event));
+        }
+
+        @Override
+        public void onAddStream(MediaStream stream) {
+            forward(() -> delegate.onAddStream(stream));
+        }
+
+        @Override
+        public void onRemoveStream(MediaStream stream) {
+            forward(() -> delegate.onRemoveStream(stream));
+        }
+
+        @Override
+        public void onDataChannel(DataChannel dataChannel) {
+            forward(() -> delegate.onDataChannel(dataChannel));
+        }
+
+        @Override
+        public void onRenegotiationNeeded() {
+            forward(() -> delegate.onRenegotiationNeeded());
+        }
+
+        @Override
+        public void onAddTrack(RtpReceiver receiver, MediaStream[] mediaStreams) {
+            forward(() -> delegate.onAddTrack(receiver, mediaStreams));
+        }
+
+        @Override
+        public void onRemoveTrack(RtpReceiver receiver) {
+            forward(() -> delegate.onRemoveTrack(receiver));
+        }
+
+        @Override
+        public void onTrack(RtpTransceiver transceiver) {
+            forward(() -> delegate.onTrack(transceiver));
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package com.oney.WebRTCModule;
+
+import android.content.Context;
+import android.graphics.Matrix;
+import android.graphics.Point;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import com.facebook.react.bridge.ReactContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.MediaStream;
+import org.webrtc.RendererCommon;
+import org.webrtc.RendererCommon.ScalingType;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+
+/**
+ * Renders the video tracks of multiple {@link MediaStream}s into a single
+ * {@link SurfaceView}. Unlike {@link WebRTCView}, which needs one surface, one
+ * EGL context and one render thread per track, all the tiles of a
+ * {@code WebRTCGridView} are composited with GLES on one render thread into one
+ * window surface, so the overhead stays constant as the number of tracks grows.
+ */
+public class WebRTCGridView extends SurfaceView implements SurfaceHolder.Callback {
+    private static final String TAG = WebRTCModule.TAG;
+
+    /**
+     * The scaling type to be utilized by default. Same as {@link WebRTCView}.
+     */
+    private static final ScalingType DEFAULT_SCALING_TYPE
+        = ScalingType.SCALE_ASPECT_FIT;
+
+    /**
+     * The frame rate each tile is capped at by default.
+     */
+    private static final int DEFAULT_MAX_FRAME_RATE = 30;
+
+    /**
+     * The tiles, one per rendered {@link VideoTrack}, in layout order. Only
+     * accessed on the UI thread, the render thread gets a snapshot.
+     */
+    private final List<Tile> tiles = new ArrayList<>();
+
+    /**
+     * The stream URLs requested through {@link #setStreamURLs(List)}.
+     */
+    private List<String> streamURLs = new ArrayList<>();
+
+    /**
+     * The number of columns of the grid. If 0, the number of columns is
+     * derived from the number of tiles.
+     */
+    private int columns;
+
+    /**
+     * The spacing between tiles, in pixels.
+     */
+    private int spacing;
+
+    private int maxFrameRate = DEFAULT_MAX_FRAME_RATE;
+
+    private boolean mirror;
+
+    private volatile ScalingType scalingType = DEFAULT_SCALING_TYPE;
+
+    /**
+     * The render thread and its handler, {@code null} while no surface exists.
+     */
+    private HandlerThread renderThread;
+    private Handler renderHandler;
+
+    /**
+     * The GL state, only accessed on {@link #renderThread}.
+     */
+    private EglBase eglBase;
+    private RendererCommon.GlDrawer drawer;
+    private List<Tile> renderTiles = new ArrayList<>();
+
+    /**
+     * Whether a render request is already queued on {@link #renderHandler}.
+     * Guarded by {@link #renderLock} and used to coalesce requests from the
+     * tile sinks.
+     */
+    private boolean renderPending;
+    private final Object renderLock = new Object();
+
+    private final Runnable renderRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (renderLock) {
+                renderPending = false;
+            }
+            renderFrame();
+        }
+    };
+
+    public WebRTCGridView(Context context) {
+        super(context);
+
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * Sets the {@code MediaStream}s to be rendered by this view, one tile per
+     * stream, in order. The implementation renders the first
+     * {@link VideoTrack}, if any, of each stream.
+     *
+     * @param streamURLs The URLs of the streams to be rendered.
+     */
+    void setStreamURLs(List<String> streamURLs) {
+        if (Objects.equals(this.streamURLs, streamURLs)) {
+            return;
+        }
+        this.streamURLs = new ArrayList<>(streamURLs);
+
+        List<Tile> oldTiles = new ArrayList<>(tiles);
+        tiles.clear();
+
+        for (String streamURL : streamURLs) {
+            Tile tile = null;
+
+            // Keep the existing tile so it doesn't go black in between.
+            for (Tile oldTile : oldTiles) {
+                if (oldTile.streamURL.equals(streamURL)) {
+                    tile = oldTile;
+                    break;
+                }
+            }
+
+            if (tile != null) {
+                oldTiles.remove(tile);
+            } else {
+                tile = new Tile(streamURL, getVideoTrackForStreamURL(streamURL));
+                tile.setMaxFrameRate(maxFrameRate);
+                tile.attach();
+            }
+            tiles.add(tile);
+        }
+
+        for (Tile oldTile : oldTiles) {
+            oldTile.detach();
+        }
+
+        updateRenderTiles();
+    }
+
+    /**
+     * Sets the number of columns of the grid. The number of rows is derived
+     * from it and the number of tiles.
+     *
+     * @param columns The number of columns or 0 to pick the smallest square
+     * grid which fits all tiles.
+     */
+    void setColumns(int columns) {
+        this.columns = Math.max(0, columns);
+        requestRender();
+    }
+
+    void setSpacing(int spacing) {
+        this.spacing = Math.max(0, spacing);
+        requestRender();
+    }
+
+    /**
+     * Sets the maximum frame rate at which each tile is redrawn. Every tile is
+     * throttled independently, so a fast source doesn't make the grid redraw
+     * the slow ones more often than necessary.
+     *
+     * @param maxFrameRate The maximum frame rate per tile, 0 for uncapped.
+     */
+    void setMaxFrameRate(int maxFrameRate) {
+        this.maxFrameRate = Math.max(0, maxFrameRate);
+        for (Tile tile : tiles) {
+            tile.setMaxFrameRate(this.maxFrameRate);
+        }
+    }
+
+    void setMirror(boolean mirror) {
+        this.mirror = mirror;
+        requestRender();
+    }
+
+    /**
+     * Resembles the CSS style {@code object-fit}, applied to every tile. See
+     * {@link WebRTCView#setObjectFit(String)}.
+     */
+    void setObjectFit(String objectFit) {
+        scalingType
+            = "cover".equals(objectFit)
+                ? ScalingType.SCALE_ASPECT_FILL
+                : ScalingType.SCALE_ASPECT_FIT;
+        requestRender();
+    }
+
+    /**
+     * Stops rendering and releases all tiles. Called by the view manager when
+     * the view is dropped.
+     */
+    void release() {
+        for (Tile tile : tiles) {
+            tile.detach();
+        }
+        tiles.clear();
+        streamURLs = new ArrayList<>();
+        updateRenderTiles();
+    }
+
+    private WebRTCModule getWebRTCModule() {
+        ReactContext reactContext = (ReactContext) getContext();
+        return reactContext.getNativeModule(WebRTCModule.class);
+    }
+
+    private VideoTrack getVideoTrackForStreamURL(String streamURL) {
+        VideoTrack videoTrack = null;
+
+        if (streamURL != null) {
+            WebRTCModule module = getWebRTCModule();
+            MediaStream stream = module.getStreamForReactTag(streamURL);
+
+            if (stream != null) {
+                List<VideoTrack> videoTracks = stream.videoTracks;
+
+                if (!videoTracks.isEmpty()) {
+                    videoTrack = videoTracks.get(0);
+                }
+            }
+
+            if (videoTrack == null) {
+                Log.w(TAG, "No video stream for react tag: " + streamURL);
+            }
+        }
+
+        return videoTrack;
+    }
+
+    /**
+     * Hands a snapshot of {@link #tiles} over to the render thread.
+     */
+    private void updateRenderTiles() {
+        List<Tile> snapshot = new ArrayList<>(tiles);
+        Handler handler = renderHandler;
+
+        if (handler != null) {
+            handler.post(() -> {
+                for (Tile tile : renderTiles) {
+                    if (!snapshot.contains(tile)) {
+                        tile.releaseRenderState();
+                    }
+                }
+                renderTiles = snapshot;
+                renderFrame();
+            });
+        } else {
+            renderTiles = snapshot;
+        }
+    }
+
+    private void requestRender() {
+        synchronized (renderLock) {
+            if (renderHandler == null || renderPending) {
+                return;
+            }
+            renderPending = true;
+            renderHandler.post(renderRunnable);
+        }
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        EglBase.Context sharedContext = EglUtils.getRootEglBaseContext();
+
+        if (sharedContext == null) {
+            Log.e(TAG, "Failed to render a video grid!");
+            return;
+        }
+
+        HandlerThread thread = new HandlerThread("GridRenderThread");
+        thread.start();
+        Handler handler = new Handler(thread.getLooper());
+
+        handler.post(() -> {
+            try {
+                eglBase = EglBase.create(sharedContext, EglBase.CONFIG_PLAIN);
+                eglBase.createSurface(holder.getSurface());
+                eglBase.makeCurrent();
+                drawer = new GlRectDrawer();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to initialize the grid renderer", e);
+                releaseEgl();
+            }
+        });
+
+        synchronized (renderLock) {
+            renderThread = thread;
+            renderHandler = handler;
+            renderPending = false;
+        }
+        requestRender();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        requestRender();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        HandlerThread thread;
+        Handler handler;
+
+        synchronized (renderLock) {
+            thread = renderThread;
+            handler = renderHandler;
+            renderThread = null;
+            renderHandler = null;
+        }
+
+        if (handler != null) {
+            // The surface must not be used once this method returns.
+            handler.post(this::releaseEgl);
+            thread.quitSafely();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void releaseEgl() {
+        for (Tile tile : renderTiles) {
+            tile.releaseRenderState();
+        }
+        if (drawer != null) {
+            drawer.release();
+            drawer = null;
+        }
+        if (eglBase != null) {
+            eglBase.release();
+            eglBase = null;
+        }
+    }
+
+    /**
+     * Composites the latest frame of every tile into the window surface. Runs
+     * on {@link #renderThread}.
+     *
+     * The contents of the window surface are undefined after a swap, so every
+     * tile is drawn again. Only the tiles which received a new frame since
+     * upload it though, the others draw the textures they already have.
+     */
+    private void renderFrame() {
+        if (eglBase == null || !eglBase.hasSurface()) {
+            return;
+        }
+
+        int surfaceWidth = eglBase.surfaceWidth();
+        int surfaceHeight = eglBase.surfaceHeight();
+        List<Tile> tiles = renderTiles;
+        int count = tiles.size();
+
+        GLES20.glViewport(0, 0, surfaceWidth, surfaceHeight);
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        if (count > 0) {
+            int columns = this.columns > 0 ? this.columns : (int) Math.ceil(Math.sqrt(count));
+            int rows = (count + columns - 1) / columns;
+            int tileWidth = (surfaceWidth - spacing * (columns - 1)) / columns;
+            int tileHeight = (surfaceHeight - spacing * (rows - 1)) / rows;
+
+            if (tileWidth > 0 && tileHeight > 0) {
+                for (int i = 0; i < count; i++) {
+                    int x = (i % columns) * (tileWidth + spacing);
+                    // GL's origin is the bottom left corner.
+                    int y = surfaceHeight - (i / columns + 1) * tileHeight - (i / columns) * spacing;
+
+                    drawTile(tiles.get(i), x, y, tileWidth, tileHeight);
+                }
+            }
+        }
+
+        eglBase.swapBuffers();
+    }
+
+    private void drawTile(Tile tile, int x, int y, int width, int height) {
+        VideoFrame newFrame = tile.acquireFrame(/* onlyIfDirty */ tile.drawnFrame != null);
+        if (newFrame != null) {
+            if (tile.drawnFrame != null) {
+                tile.drawnFrame.release();
+            }
+            tile.drawnFrame = newFrame;
+        }
+
+        VideoFrame frame = tile.drawnFrame;
+        if (frame == null) {
+            return;
+        }
+        if (tile.frameDrawer == null) {
+            tile.frameDrawer = new VideoFrameDrawer();
+        }
+
+        try {
+            int frameWidth = frame.getRotatedWidth();
+            int frameHeight = frame.getRotatedHeight();
+            Matrix drawMatrix = new Matrix();
+
+            drawMatrix.preTranslate(0.5f, 0.5f);
+            if (mirror) {
+                drawMatrix.preScale(-1f, 1f);
+            }
+
+            if (scalingType == ScalingType.SCALE_ASPECT_FILL) {
+                // Crop the frame so that it covers the whole tile.
+                float frameAspectRatio = frameWidth / (float) frameHeight;
+                float tileAspectRatio = width / (float) height;
+
+                if (frameAspectRatio > tileAspectRatio) {
+                    drawMatrix.preScale(tileAspectRatio / frameAspectRatio, 1f);
+                } else {
+                    drawMatrix.preScale(1f, frameAspectRatio / tileAspectRatio);
+                }
+            } else {
+                // Letterbox the frame inside the tile.
+                Point size
+                    = RendererCommon.getDisplaySize(
+                        ScalingType.SCALE_ASPECT_FIT,
+                        frameWidth / (float) frameHeight,
+                        width, height);
+
+                x += (width - size.x) / 2;
+                y += (height - size.y) / 2;
+                width = size.x;
+                height = size.y;
+            }
+            drawMatrix.preTranslate(-0.5f, -0.5f);
+
+            // The tile's own drawer only uploads a frame it didn't draw last.
+            tile.frameDrawer.drawFrame(frame, drawer, drawMatrix, x, y, width, height);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to draw grid tile " + tile.streamURL, e);
+        }
+    }
+
+    /**
+     * A single cell of the grid. Receives the frames of one {@link VideoTrack},
+     * keeps the latest one and throttles them to its own maximum frame rate.
+     */
+    private class Tile implements VideoSink {
+        final String streamURL;
+        private final VideoTrack videoTrack;
+        private boolean attached;
+
+        /**
+         * The minimum interval between two accepted frames, 0 for uncapped.
+         */
+        private volatile long minFrameIntervalNs;
+        private long lastFrameTimeNs;
+
+        /**
+         * The latest accepted frame, retained. Guarded by {@code this}.
+         */
+        private VideoFrame pendingFrame;
+
+        /**
+         * Whether {@link #pendingFrame} wasn't acquired for drawing yet.
+         * Guarded by {@code this}.
+         */
+        private boolean dirty;
+
+        /**
+         * The frame drawn last, retained, and the drawer holding its uploaded
+         * textures. Only accessed on {@link #renderThread}.
+         */
+        VideoFrame drawnFrame;
+        VideoFrameDrawer frameDrawer;
+
+        Tile(String streamURL, VideoTrack videoTrack) {
+            this.streamURL = streamURL;
+            this.videoTrack = videoTrack;
+        }
+
+        void setMaxFrameRate(int maxFrameRate) {
+            minFrameIntervalNs
+                = maxFrameRate > 0 ? TimeUnit.SECONDS.toNanos(1) / maxFrameRate : 0;
+        }
+
+        void attach() {
+            if (videoTrack == null || attached) {
+                return;
+            }
+
+            // XXX If WebRTCModule#mediaStreamTrackRelease has already been
+            // invoked on videoTrack, then it is no longer safe to call addSink
+            // on the instance, it will throw IllegalStateException.
+            try {
+                getWebRTCModule().addVideoSink(videoTrack, this);
+                attached = true;
+            } catch (Throwable tr) {
+                Log.e(TAG, "Failed to add grid tile renderer", tr);
+            }
+        }
+
+        void detach() {
+            if (attached) {
+                try {
+                    getWebRTCModule().removeVideoSink(videoTrack, this);
+                } catch (Throwable tr) {
+                    // Releasing streams happens in the WebRTC thread, thus we
+                    // might (briefly) hold a reference to a released stream.
+                }
+                attached = false;
+            }
+
+            synchronized (this) {
+                if (pendingFrame != null) {
+                    pendingFrame.release();
+                    pendingFrame = null;
+                }
+            }
+        }
+
+        @Override
+        public void onFrame(VideoFrame frame) {
+            long now = SystemClock.elapsedRealtimeNanos();
+            long minFrameIntervalNs = this.minFrameIntervalNs;
+
+            synchronized (this) {
+                if (minFrameIntervalNs > 0 && now - lastFrameTimeNs < minFrameIntervalNs) {
+                    return;
+                }
+                lastFrameTimeNs = now;
+
+                if (pendingFrame != null) {
+                    pendingFrame.release();
+                }
+                frame.retain();
+                pendingFrame = frame;
+                dirty = true;
+            }
+
+            requestRender();
+        }
+
+        /**
+         * Returns a retained reference to the latest frame, or {@code null}.
+         * The caller must release it.
+         *
+         * @param onlyIfDirty Whether to return {@code null} as well if the
+         * latest frame was acquired before.
+         */
+        synchronized VideoFrame acquireFrame(boolean onlyIfDirty) {
+            if (pendingFrame == null || (onlyIfDirty && !dirty)) {
+                return null;
+            }
+            dirty = false;
+            pendingFrame.retain();
+            return pendingFrame;
+        }
+
+        /**
+         * Releases the frame and textures held for drawing, on
+         * {@link #renderThread}.
+         */
+        void releaseRenderState() {
+            if (drawnFrame != null) {
+                drawnFrame.release();
+                drawnFrame = null;
+            }
+            if (frameDrawer != null) {
+                frameDrawer.release();
+                frameDrawer = null;
+            }
+        }
+    }
+}
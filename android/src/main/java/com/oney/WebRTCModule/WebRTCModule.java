@@ -3,12 +3,16 @@ package com.oney.WebRTCModule;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import android.util.SparseArray;
 
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
+import com.facebook.react.bridge.Dynamic;
 import com.facebook.react.bridge.Promise;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
@@ -21,32 +25,88 @@ import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.module.annotations.ReactModule;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.oney.WebRTCModule.videoEffects.VideoEffectProcessor;
+import com.oney.WebRTCModule.videoEffects.VideoEffectSink;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.webrtc.*;
 import org.webrtc.audio.AudioDeviceModule;
-import org.webrtc.audio.JavaAudioDeviceModule;
 
 @ReactModule(name = "WebRTCModule")
 public class WebRTCModule extends ReactContextBaseJavaModule {
     static final String TAG = WebRTCModule.class.getCanonicalName();
 
+    private static final int DEFAULT_GATHERING_TIMEOUT_MS = 10000;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Created lazily, on the executor, by the first call which needs them.
     PeerConnectionFactory mFactory;
     VideoEncoderFactory mVideoEncoderFactory;
     VideoDecoderFactory mVideoDecoderFactory;
+    VideoCodecPolicy mVideoCodecPolicy;
 
     // Need to expose the peer connection codec factories here to get capabilities
     private final SparseArray<PeerConnectionObserver> mPeerConnectionObservers;
     final Map<String, MediaStream> localStreams;
 
-    private final GetUserMediaImpl getUserMediaImpl;
+    private final Options options;
+
+    /**
+     * Created on the executor by {@link #initialize}, like the factories
+     * above.
+     */
+    private volatile GetUserMediaImpl getUserMediaImpl;
+
+    private FrameSnapshotter frameSnapshotter;
+
+    private CaptureAdaptationController captureAdaptationController;
+
+    private Future<?> initialization;
+
+    /**
+     * Why the last initialization failed, {@code null} if it didn't. Only
+     * accessed on the executor.
+     */
+    private Throwable initializationError;
+
+    /**
+     * Read from the JS thread by the capability getters.
+     */
+    private volatile PeerConnectionFactoryHolder factoryHolder;
+
+    private WritableMap initializationTiming;
+
+    /**
+     * {@code null} unless enabled in the options.
+     */
+    private DtlsCertificatePool dtlsCertificatePool;
+
+    private WarmPeerConnectionPool warmPeerConnectionPool;
+
+    /**
+     * The sinks between remote video tracks and their renderers, by track id.
+     * Looked up from the UI thread when renderers attach.
+     */
+    final Map<String, VideoEffectSink> remoteVideoEffectSinks = new ConcurrentHashMap<>();
+
+    /**
+     * The thread video effects of remote tracks run on, shared by all of
+     * them. Created on first use, only accessed on the executor.
+     */
+    private SurfaceTextureHelper remoteVideoEffectsTextureHelper;
 
     public static class Options {
         private VideoEncoderFactory videoEncoderFactory = null;
@@ -54,6 +114,12 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         private AudioDeviceModule audioDeviceModule = null;
         private Loggable injectableLogger = null;
         private Logging.Severity loggingSeverity = null;
+        private boolean enableCaptureAdaptation = false;
+        private boolean audioOnly = false;
+        private int dtlsCertificatePoolSize = 0;
+        private int dtlsCertificatePoolLowWatermark = 0;
+        private List<VideoCodecPolicy.Quirk> videoCodecQuirks = null;
+        private boolean enableH264HighProfile = false;
 
         public Options() {}
 
@@ -76,6 +142,57 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         public void setLoggingSeverity(Logging.Severity severity) {
             this.loggingSeverity = severity;
         }
+
+        /**
+         * Lowers the capture format of local video tracks while their
+         * encoders are limited by bandwidth or CPU, and raises it back once
+         * they no longer are.
+         */
+        public void setEnableCaptureAdaptation(boolean enable) {
+            this.enableCaptureAdaptation = enable;
+        }
+
+        /**
+         * Sets up only what audio needs: unless factories are set, video uses
+         * the software codecs, which don't need an EGL context nor the
+         * enumeration of the hardware codecs. The EGL context and cameras
+         * are then only set up if a video track is created after all.
+         */
+        public void setAudioOnly(boolean audioOnly) {
+            this.audioOnly = audioOnly;
+        }
+
+        /**
+         * Generates DTLS certificates in the background, and persists them,
+         * so peer connections don't wait for one to be generated when they
+         * are created. Each pool is refilled to {@code size} once it drops
+         * to {@code lowWatermark}. A size of 0, the default, disables it.
+         * The certificates, private keys included, are kept in the app's
+         * no backup directory.
+         */
+        public void setDtlsCertificatePoolSize(int size, int lowWatermark) {
+            this.dtlsCertificatePoolSize = size;
+            this.dtlsCertificatePoolLowWatermark = lowWatermark;
+        }
+
+        /**
+         * Sets the hardware codecs to avoid on top of the bundled ones, see
+         * {@link VideoCodecPolicy}. Ignored if both codec factories are set.
+         */
+        public void setVideoCodecQuirks(List<VideoCodecPolicy.Quirk> quirks) {
+            this.videoCodecQuirks = quirks;
+        }
+
+        /**
+         * Whether to offer H.264 High profile where the hardware encoder
+         * supports it and has no quirk against it. Disabled by default, as
+         * some encoders which claim it produce broken streams; enable it
+         * along with quirks for the devices the app finds such encoders on.
+         * Ignored if both codec factories are set.
+         */
+        public void setEnableH264HighProfile(boolean enable) {
+            this.enableH264HighProfile = enable;
+        }
     }
 
     public WebRTCModule(ReactApplicationContext reactContext) {
@@ -88,61 +205,245 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         mPeerConnectionObservers = new SparseArray<>();
         localStreams = new HashMap<>();
 
-        AudioDeviceModule adm = null;
-        VideoEncoderFactory encoderFactory = null;
-        VideoDecoderFactory decoderFactory = null;
-        Loggable injectableLogger = null;
-        Logging.Severity loggingSeverity = null;
-
-        if (options != null) {
-            adm = options.audioDeviceModule;
-            encoderFactory = options.videoEncoderFactory;
-            decoderFactory = options.videoDecoderFactory;
-            injectableLogger = options.injectableLogger;
-            loggingSeverity = options.loggingSeverity;
+        this.options = options != null ? options : new Options();
+    }
+
+    /**
+     * Creates the PeerConnectionFactory and everything depending on it, on
+     * the executor, unless it's already done or underway. Tasks submitted to
+     * the executor afterwards run once it's done, so the calls made in the
+     * meantime are queued rather than failing.
+     */
+    private synchronized void initializeAsync() {
+        if (initialization == null) {
+            initialization = ThreadUtils.submitToExecutor(this::tryInitialize);
         }
+    }
 
-        PeerConnectionFactory.initialize(
-            PeerConnectionFactory.InitializationOptions.builder(reactContext)
-                .setNativeLibraryLoader(new LibraryLoader())
-                .setInjectableLogger(injectableLogger, loggingSeverity)
-                .createInitializationOptions());
-
-        if (encoderFactory == null || decoderFactory == null) {
-            // Initialize EGL context required for HW acceleration.
-            EglBase.Context eglContext = EglUtils.getRootEglBaseContext();
-
-            if (eglContext != null) {
-                encoderFactory
-                    = new DefaultVideoEncoderFactory(
-                    eglContext,
-                    /* enableIntelVp8Encoder */ true,
-                    /* enableH264HighProfile */ false);
-                decoderFactory = new DefaultVideoDecoderFactory(eglContext);
-            } else {
-                encoderFactory = new SoftwareVideoEncoderFactory();
-                decoderFactory = new SoftwareVideoDecoderFactory();
+    /**
+     * Initializes, or records why it failed and lets the next call try again.
+     * The calls queued in the meantime fail with the recorded error.
+     */
+    private void tryInitialize() {
+        try {
+            initialize();
+            initializationError = null;
+        } catch (Throwable tr) {
+            Log.e(TAG, "Failed to initialize", tr);
+            initializationError = tr;
+
+            if (factoryHolder != null) {
+                factoryHolder.release();
+                factoryHolder = null;
             }
-        }
+            mFactory = null;
+            initializationTiming = null;
 
-        if (adm == null) {
-            adm = JavaAudioDeviceModule.builder(reactContext)
-                .setEnableVolumeLogger(false)
-                .createAudioDeviceModule();
+            synchronized (this) {
+                initialization = null;
+            }
         }
+    }
+
+    /**
+     * Whether the last initialization succeeded. Called on the executor.
+     */
+    private boolean isInitialized() {
+        return initializationTiming != null;
+    }
+
+    private void initialize() {
+        ReactApplicationContext reactContext = getReactApplicationContext();
+        long startMs = SystemClock.elapsedRealtime();
+        boolean reused = PeerConnectionFactoryHolder.isCreated();
 
-        mFactory
-            = PeerConnectionFactory.builder()
-                .setAudioDeviceModule(adm)
-                .setVideoEncoderFactory(encoderFactory)
-                .setVideoDecoderFactory(decoderFactory)
-                .createPeerConnectionFactory();
+        factoryHolder = PeerConnectionFactoryHolder.acquire(reactContext, options);
+        mFactory = factoryHolder.factory;
 
         // Saving the encoder and decoder factories to get codec info later when needed
-        mVideoEncoderFactory = encoderFactory;
-        mVideoDecoderFactory = decoderFactory;
+        mVideoEncoderFactory = factoryHolder.videoEncoderFactory;
+        mVideoDecoderFactory = factoryHolder.videoDecoderFactory;
+        mVideoCodecPolicy = factoryHolder.videoCodecPolicy;
+
+        long factoryMs = SystemClock.elapsedRealtime();
+
+        if (options.dtlsCertificatePoolSize > 0) {
+            dtlsCertificatePool = DtlsCertificatePool.getInstance(
+                reactContext, options.dtlsCertificatePoolSize, options.dtlsCertificatePoolLowWatermark);
+        }
+
+        warmPeerConnectionPool = new WarmPeerConnectionPool(this);
 
         getUserMediaImpl = new GetUserMediaImpl(this, reactContext);
+        frameSnapshotter = new FrameSnapshotter(reactContext);
+
+        captureAdaptationController = new CaptureAdaptationController(this, getUserMediaImpl);
+        if (options.enableCaptureAdaptation) {
+            captureAdaptationController.start();
+        }
+
+        long endMs = SystemClock.elapsedRealtime();
+
+        WritableMap timing = factoryHolder.getTiming();
+        timing.putBoolean("reusedFactory", reused);
+        timing.putDouble("factoryMs", factoryMs - startMs);
+        timing.putDouble("mediaDevicesMs", endMs - factoryMs);
+        timing.putDouble("totalMs", endMs - startMs);
+        initializationTiming = timing;
+
+        Log.d(TAG, "Initialized in " + (endMs - startMs) + " ms: " + timing);
+    }
+
+    /**
+     * Closes the peer connections and disposes the streams and tracks of the
+     * React context going away, then lets go of the PeerConnectionFactory so
+     * the next context, e.g. after a reload, reuses it.
+     */
+    @Override
+    public void onCatalystInstanceDestroy() {
+        super.onCatalystInstanceDestroy();
+
+        synchronized (this) {
+            if (initialization == null) {
+                return;
+            }
+        }
+
+        ThreadUtils.runOnExecutor(() -> {
+            if (!isInitialized()) {
+                // It failed, there is nothing to dispose.
+                return;
+            }
+
+            Log.d(TAG, "Disposing the resources of the invalidated module");
+
+            for (int i = 0, size = mPeerConnectionObservers.size(); i < size; i++) {
+                PeerConnectionObserver pco = mPeerConnectionObservers.valueAt(i);
+                if (pco.getPeerConnection() != null) {
+                    pco.close();
+                }
+            }
+            mPeerConnectionObservers.clear();
+            warmPeerConnectionPool.dispose();
+
+            // The tracks are disposed separately, detach them from their
+            // streams first so they aren't disposed twice.
+            for (MediaStream stream : localStreams.values()) {
+                for (AudioTrack track : new ArrayList<>(stream.audioTracks)) {
+                    stream.removeTrack(track);
+                }
+                for (VideoTrack track : new ArrayList<>(stream.videoTracks)) {
+                    stream.removeTrack(track);
+                }
+                stream.dispose();
+            }
+            localStreams.clear();
+
+            getUserMediaImpl.dispose();
+            captureAdaptationController.stop();
+            frameSnapshotter.dispose();
+
+            if (remoteVideoEffectsTextureHelper != null) {
+                remoteVideoEffectsTextureHelper.dispose();
+                remoteVideoEffectsTextureHelper = null;
+            }
+
+            mFactory = null;
+            initializationTiming = null;
+            factoryHolder.release();
+            factoryHolder = null;
+        });
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the executor, once initialized. It is
+     * dropped if the initialization failed, so it's only for the calls JS
+     * doesn't wait for.
+     */
+    private void runOnExecutor(Runnable runnable) {
+        initializeAsync();
+        ThreadUtils.runOnExecutor(() -> {
+            if (!isInitialized()) {
+                Log.e(TAG, "Dropping a call, initialization failed", initializationError);
+                return;
+            }
+
+            runnable.run();
+        });
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the executor, once initialized. The
+     * promise it settles is rejected instead if the initialization failed.
+     */
+    private void runOnExecutor(Promise promise, Runnable runnable) {
+        initializeAsync();
+        ThreadUtils.runOnExecutor(() -> {
+            if (!isInitialized()) {
+                rejectInitializationFailed(promise);
+                return;
+            }
+
+            runnable.run();
+        });
+    }
+
+    /**
+     * Runs the given {@link Runnable} on the executor, once initialized. The
+     * callback it invokes is invoked with {@code (false, error)} instead if
+     * the initialization failed.
+     */
+    private void runOnExecutor(Callback callback, Runnable runnable) {
+        initializeAsync();
+        ThreadUtils.runOnExecutor(() -> {
+            if (!isInitialized()) {
+                callback.invoke(false, getInitializationErrorMessage());
+                return;
+            }
+
+            runnable.run();
+        });
+    }
+
+    private void rejectInitializationFailed(Promise promise) {
+        promise.reject("E_OPERATION_ERROR", getInitializationErrorMessage(), initializationError);
+    }
+
+    private String getInitializationErrorMessage() {
+        String message = initializationError != null ? initializationError.getMessage() : null;
+        return "Failed to initialize: " + message;
+    }
+
+    /**
+     * Submits the given {@link Callable} to be run on the executor, once
+     * initialized. The {@link Future} fails if the initialization failed.
+     */
+    private <T> Future<T> submitToExecutor(Callable<T> callable) {
+        initializeAsync();
+        return ThreadUtils.submitToExecutor(() -> {
+            if (!isInitialized()) {
+                throw new IllegalStateException("Initialization failed", initializationError);
+            }
+
+            return callable.call();
+        });
+    }
+
+    private Future<?> submitToExecutor(Runnable runnable) {
+        return submitToExecutor(() -> {
+            runnable.run();
+            return null;
+        });
+    }
+
+    /**
+     * Starts initializing ahead of the first use, e.g. while the user is on
+     * the screen preceding a call. Resolves with the time taken by each step,
+     * in milliseconds, once initialized.
+     */
+    @ReactMethod
+    public void preload(Promise promise) {
+        runOnExecutor(promise, () -> promise.resolve(initializationTiming.copy()));
     }
 
     @NonNull
@@ -151,6 +452,30 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         return "WebRTCModule";
     }
 
+    /**
+     * Starts rendering a video track into a sink. Renderers of remote tracks
+     * go through the track's {@link VideoEffectSink} so they get its effects.
+     */
+    void addVideoSink(VideoTrack videoTrack, VideoSink sink) {
+        VideoEffectSink videoEffectSink = remoteVideoEffectSinks.get(videoTrack.id());
+
+        if (videoEffectSink != null) {
+            videoEffectSink.addSink(sink);
+        } else {
+            videoTrack.addSink(sink);
+        }
+    }
+
+    void removeVideoSink(VideoTrack videoTrack, VideoSink sink) {
+        VideoEffectSink videoEffectSink = remoteVideoEffectSinks.get(videoTrack.id());
+
+        if (videoEffectSink != null) {
+            videoEffectSink.removeSink(sink);
+        } else {
+            videoTrack.removeSink(sink);
+        }
+    }
+
     private PeerConnection getPeerConnection(int id) {
         PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
         return (pco == null) ? null : pco.getPeerConnection();
@@ -205,6 +530,38 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         return iceServers;
     }
 
+    /**
+     * Parses a configuration and sets its DTLS certificate: the given one or,
+     * if {@code null}, one from the pool if ready. Called on the executor.
+     *
+     * @param certificate the certificate of the connection being configured,
+     * which can't change
+     */
+    private PeerConnection.RTCConfiguration parseRTCConfiguration(
+            ReadableMap map, @Nullable RtcCertificatePem certificate) {
+        PeerConnection.RTCConfiguration conf = parseRTCConfiguration(map);
+
+        if (certificate == null && dtlsCertificatePool != null) {
+            certificate = dtlsCertificatePool.take(conf.keyType);
+        }
+
+        if (certificate != null) {
+            conf.certificate = certificate;
+            // The key type only matters to generate a certificate, RSA would
+            // have one generated on top of the given one.
+            conf.keyType = PeerConnection.KeyType.ECDSA;
+        }
+
+        return conf;
+    }
+
+    /**
+     * Parses the configuration of a new connection. Called on the executor.
+     */
+    PeerConnection.RTCConfiguration createRTCConfiguration(ReadableMap map) {
+        return parseRTCConfiguration(map, null);
+    }
+
     private PeerConnection.RTCConfiguration parseRTCConfiguration(ReadableMap map) {
         ReadableArray iceServersArray = null;
         if (map != null && map.hasKey("iceServers")) {
@@ -405,13 +762,23 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod(isBlockingSynchronousMethod = true)
     public void peerConnectionInit(ReadableMap configuration, int id) {
-        PeerConnection.RTCConfiguration rtcConfiguration = parseRTCConfiguration(configuration);
-
         try {
-            ThreadUtils.submitToExecutor(() -> {
+            submitToExecutor(() -> {
                 PeerConnectionObserver observer = new PeerConnectionObserver(this, id);
-                PeerConnection peerConnection = mFactory.createPeerConnection(rtcConfiguration, observer);
-                observer.setPeerConnection(peerConnection);
+                WarmPeerConnectionPool.WarmPeerConnection warmPeerConnection
+                    = configuration != null ? warmPeerConnectionPool.take(configuration) : null;
+
+                if (warmPeerConnection != null) {
+                    Log.d(TAG, "peerConnectionInit() using a warm PeerConnection for " + id);
+                    observer.setCertificate(warmPeerConnection.certificate);
+                    observer.setPeerConnection(warmPeerConnection.peerConnection);
+                    warmPeerConnection.bind(observer);
+                } else {
+                    PeerConnection.RTCConfiguration rtcConfiguration = createRTCConfiguration(configuration);
+                    observer.setCertificate(rtcConfiguration.certificate);
+                    observer.setPeerConnection(mFactory.createPeerConnection(rtcConfiguration, observer));
+                }
+
                 mPeerConnectionObservers.put(id, observer);
             }).get();
         } catch (ExecutionException | InterruptedException e) {
@@ -420,12 +787,41 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         }
     }
 
+    /**
+     * Creates peer connections for the given configuration ahead of time, to
+     * be used by the next {@link #peerConnectionInit} calls with an equal
+     * configuration. With an {@code iceCandidatePoolSize}, they gather their
+     * candidates meanwhile. Unused ones are closed after a minute.
+     *
+     * @param size the number of connections kept ready, 0 to close them
+     */
+    @ReactMethod
+    public void peerConnectionPrewarm(ReadableMap configuration, int size) {
+        runOnExecutor(() -> warmPeerConnectionPool.prewarm(configuration, size));
+    }
+
+    /**
+     * Returns all the peer connections. To be called on the WebRTC executor.
+     */
+    List<PeerConnection> getPeerConnections() {
+        List<PeerConnection> peerConnections = new ArrayList<>();
+
+        for (int i = 0, size = mPeerConnectionObservers.size(); i < size; i++) {
+            PeerConnection peerConnection = mPeerConnectionObservers.valueAt(i).getPeerConnection();
+            if (peerConnection != null) {
+                peerConnections.add(peerConnection);
+            }
+        }
+
+        return peerConnections;
+    }
+
     MediaStream getStreamForReactTag(String streamReactTag) {
         // This function _only_ gets called from WebRTCView, in the UI thread.
         // Hence make sure we run this code in the executor or we run at the risk
         // of being out of sync.
         try {
-            return (MediaStream) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
+            return (MediaStream) submitToExecutor((Callable<Object>) () -> {
                 MediaStream stream = localStreams.get(streamReactTag);
 
                 if (stream != null) {
@@ -464,7 +860,8 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     }
 
     MediaStreamTrack getLocalTrack(String trackId) {
-        return getUserMediaImpl.getTrack(trackId);
+        GetUserMediaImpl getUserMediaImpl = this.getUserMediaImpl;
+        return getUserMediaImpl != null ? getUserMediaImpl.getTrack(trackId) : null;
     }
 
     /**
@@ -495,7 +892,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     @ReactMethod(isBlockingSynchronousMethod = true)
     public WritableMap peerConnectionAddTransceiver(int id, ReadableMap options) {
         try {
-            return (WritableMap) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
+            return (WritableMap) submitToExecutor((Callable<Object>) () -> {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
                 if (pco == null) {
                     Log.d(TAG, "peerConnectionAddTransceiver() peerConnection is null");
@@ -541,7 +938,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                               String trackId,
                                               ReadableMap options) {
         try {
-            return (WritableMap) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
+            return (WritableMap) submitToExecutor((Callable<Object>) () -> {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
                 if (pco == null) {
                     Log.d(TAG, "peerConnectionAddTrack() peerConnection is null");
@@ -585,7 +982,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     @ReactMethod(isBlockingSynchronousMethod = true)
     public boolean peerConnectionRemoveTrack(int id, String senderId) {
         try {
-            return (boolean) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
+            return (boolean) submitToExecutor((Callable<Object>) () -> {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
                 if (pco == null) {
                     Log.d(TAG, "peerConnectionRemoveTrack() peerConnection is null");
@@ -607,7 +1004,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void senderSetParameters(int id, String senderId, ReadableMap options, Promise promise) {
-        ThreadUtils.runOnExecutor(() ->{
+        runOnExecutor(promise, () ->{
             try {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
                 if (pco == null) {
@@ -636,7 +1033,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void transceiverStop(int id, String senderId, Promise promise) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             try {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
                 if (pco == null) {
@@ -665,7 +1062,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                    String senderId,
                                    String trackId,
                                    Promise promise) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             try {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
                 if (pco == null) {
@@ -697,7 +1094,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                         String direction,
                                         Promise promise) {
 
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             WritableMap identifier = Arguments.createMap();
             WritableMap params = Arguments.createMap();
             identifier.putInt("peerConnectionId", id);
@@ -727,26 +1124,44 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void getDisplayMedia(Promise promise) {
-        ThreadUtils.runOnExecutor(() -> getUserMediaImpl.getDisplayMedia(promise));
+    public void getDisplayMedia(ReadableMap options, Promise promise) {
+        runOnExecutor(promise, () -> getUserMediaImpl.getDisplayMedia(options, promise));
     }
 
     @ReactMethod
     public void getUserMedia(ReadableMap constraints,
                              Callback    successCallback,
                              Callback    errorCallback) {
-        ThreadUtils.runOnExecutor(() ->
-            getUserMediaImpl.getUserMedia(constraints, successCallback, errorCallback));
+        initializeAsync();
+        ThreadUtils.runOnExecutor(() -> {
+            if (!isInitialized()) {
+                errorCallback.invoke("DOMException", "NotReadableError");
+                return;
+            }
+
+            getUserMediaImpl.getUserMedia(constraints, successCallback, errorCallback);
+        });
+    }
+
+    @ReactMethod
+    public void prewarmCamera(ReadableMap videoConstraints, int idleTimeoutMs, Promise promise) {
+        runOnExecutor(promise, () ->
+            getUserMediaImpl.prewarmCamera(videoConstraints, idleTimeoutMs, promise));
+    }
+
+    @ReactMethod
+    public void releasePrewarmedCamera() {
+        runOnExecutor(() -> getUserMediaImpl.releasePrewarmedCamera());
     }
 
     @ReactMethod
     public void createRawStream(int width, int height, Promise promise) {
-        ThreadUtils.runOnExecutor(() -> getUserMediaImpl.createRawStream(width, height, promise));
+        runOnExecutor(promise, () -> getUserMediaImpl.createRawStream(width, height, promise));
     }
 
     @ReactMethod
     public void sendRawFrame(String videoBufferString, int size, int width, int height, Promise promise) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             try {
                 byte[] videoBuffer = Base64.decode(videoBufferString, Base64.NO_WRAP);
                 getUserMediaImpl.getRawVideoCaptureController().sendFrame(videoBuffer);
@@ -760,13 +1175,22 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void enumerateDevices(Callback callback) {
-        ThreadUtils.runOnExecutor(() ->
-            callback.invoke(getUserMediaImpl.enumerateDevices()));
+        initializeAsync();
+        ThreadUtils.runOnExecutor(() -> {
+            // JS only resolves with the devices, without the factory there
+            // are none to use.
+            if (!isInitialized()) {
+                callback.invoke(Arguments.createArray());
+                return;
+            }
+
+            callback.invoke(getUserMediaImpl.enumerateDevices());
+        });
     }
 
     @ReactMethod
     public void mediaStreamCreate(String id) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             MediaStream mediaStream = mFactory.createLocalMediaStream(id);
             localStreams.put(id, mediaStream);
         });
@@ -774,7 +1198,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamAddTrack(String streamId, String trackId) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             MediaStream stream = localStreams.get(streamId);
             MediaStreamTrack track = getTrack(trackId);
 
@@ -794,7 +1218,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamRemoveTrack(String streamId, String trackId) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             MediaStream stream = localStreams.get(streamId);
             MediaStreamTrack track = getTrack(trackId);
 
@@ -814,7 +1238,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamRelease(String id) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             MediaStream stream = localStreams.get(id);
             if (stream == null) {
                 Log.d(TAG, "mediaStreamRelease() stream is null");
@@ -827,7 +1251,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamTrackRelease(String id) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             MediaStreamTrack track = getLocalTrack(id);
             if (track == null) {
                 Log.d(TAG, "mediaStreamTrackRelease() track is null");
@@ -840,7 +1264,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void mediaStreamTrackSetEnabled(String id, boolean enabled) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             MediaStreamTrack track = getTrack(id);
             if (track == null) {
                 Log.d(TAG, "mediaStreamTrackSetEnabled() track is null");
@@ -854,12 +1278,52 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     }
 
     @ReactMethod
-    public void mediaStreamTrackSwitchCamera(String id) {
-        ThreadUtils.runOnExecutor(() -> {
+    public void mediaStreamTrackSwitchCamera(String id, @Nullable String deviceId, Promise promise) {
+        runOnExecutor(promise, () -> {
             MediaStreamTrack track = getLocalTrack(id);
-            if (track != null) {
-                getUserMediaImpl.switchCamera(id);
+            if (track == null) {
+                promise.reject(new RuntimeException("No local track with id " + id));
+                return;
+            }
+
+            getUserMediaImpl.switchCamera(id, deviceId, promise);
+        });
+    }
+
+    /**
+     * Takes a snapshot of the next frame of a local or remote video track. The
+     * frame is scaled down on the GPU, read back asynchronously and encoded
+     * off the render thread.
+     *
+     * @param id The id of the video track.
+     * @param maxWidth The maximum width of the snapshot, 0 for the frame's
+     * own width.
+     * @param options "format" ("jpeg" or "webp") and "quality" (0-100).
+     * @param promise Resolved with the snapshot's "path", "width" and
+     * "height".
+     */
+    @ReactMethod
+    public void mediaStreamTrackCaptureFrame(String id, int maxWidth, ReadableMap options, Promise promise) {
+        runOnExecutor(promise, () -> {
+            MediaStreamTrack track = getTrack(id);
+            if (!(track instanceof VideoTrack)) {
+                Log.d(TAG, "mediaStreamTrackCaptureFrame() video track is null");
+                promise.reject(new Exception("Video track not found"));
+                return;
+            }
+
+            String format = "jpeg";
+            int quality = 90;
+            if (options != null) {
+                if (options.hasKey("format") && options.getType("format") == ReadableType.String) {
+                    format = options.getString("format");
+                }
+                if (options.hasKey("quality") && options.getType("quality") == ReadableType.Number) {
+                    quality = options.getInt("quality");
+                }
             }
+
+            frameSnapshotter.captureFrame((VideoTrack) track, maxWidth, format, quality, promise);
         });
     }
 
@@ -894,23 +1358,152 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         return transceiverUpdates;
     }
 
+    /**
+     * Sets the video effects of a video track. Effects of remote tracks apply
+     * to their local rendering only.
+     *
+     * @param id The id of the video track.
+     * @param names The name of a single effect, an array of names of effects
+     * to apply in order, or null to remove the effects.
+     */
     @ReactMethod
-    public void mediaStreamTrackSetVideoEffect(String id, String name) {
-        ThreadUtils.runOnExecutor(() -> {
-                getUserMediaImpl.setVideoEffect(id, name);
+    public void mediaStreamTrackSetVideoEffect(String id, Dynamic names, @Nullable ReadableMap options) {
+        List<String> effectNames = new ArrayList<>();
+
+        if (names.getType() == ReadableType.String) {
+            effectNames.add(names.asString());
+        } else if (names.getType() == ReadableType.Array) {
+            ReadableArray array = names.asArray();
+            for (int i = 0; i < array.size(); i++) {
+                effectNames.add(array.getString(i));
+            }
+        }
+
+        runOnExecutor(() -> {
+            if (!getUserMediaImpl.setVideoEffects(id, effectNames, options)) {
+                setRemoteVideoEffects(id, effectNames, options);
+            }
+        });
+    }
+
+    private void setRemoteVideoEffects(String id, List<String> names, @Nullable ReadableMap options) {
+        VideoEffectSink videoEffectSink = remoteVideoEffectSinks.get(id);
+
+        if (videoEffectSink == null) {
+            Log.d(TAG, "setRemoteVideoEffects() no video track " + id);
+            return;
+        }
+
+        VideoEffectProcessor videoEffectProcessor = null;
+
+        if (!names.isEmpty()) {
+            if (remoteVideoEffectsTextureHelper == null) {
+                remoteVideoEffectsTextureHelper = SurfaceTextureHelper.create(
+                    "RemoteVideoEffectThread", EglUtils.getRootEglBaseContext());
+            }
+
+            videoEffectProcessor = GetUserMediaImpl.createVideoEffectProcessor(
+                names, options, remoteVideoEffectsTextureHelper);
+            if (videoEffectProcessor == null) {
+                return;
+            }
+        }
+
+        videoEffectSink.setVideoEffectProcessor(videoEffectProcessor, remoteVideoEffectsTextureHelper);
+    }
+
+    @ReactMethod
+    public void mediaStreamTrackGetVideoEffectStats(String id, Promise promise) {
+        runOnExecutor(promise, () -> {
+            ReadableMap stats = getUserMediaImpl.getVideoEffectStats(id);
+
+            if (stats == null) {
+                VideoEffectSink videoEffectSink = remoteVideoEffectSinks.get(id);
+                if (videoEffectSink != null && videoEffectSink.getVideoEffectProcessor() != null) {
+                    stats = GetUserMediaImpl.serializeVideoEffectStats(videoEffectSink.getVideoEffectProcessor());
+                }
+            }
+
+            if (stats == null) {
+                promise.reject("E_INVALID", "Track has no video effects");
+            } else {
+                promise.resolve(stats);
+            }
         });
     }
 
     @ReactMethod
     public void peerConnectionSetConfiguration(ReadableMap configuration,
                                                int id) {
-        ThreadUtils.runOnExecutor(() -> {
-            PeerConnection peerConnection = getPeerConnection(id);
-            if (peerConnection == null) {
+        runOnExecutor(() -> {
+            PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+            if (pco == null || pco.getPeerConnection() == null) {
                 Log.d(TAG, "peerConnectionSetConfiguration() peerConnection is null");
                 return;
             }
-            peerConnection.setConfiguration(parseRTCConfiguration(configuration));
+            pco.getPeerConnection().setConfiguration(parseRTCConfiguration(configuration, pco.getCertificate()));
+        });
+    }
+
+    /**
+     * Shapes a description just created according to the SDP rules and codec
+     * preferences of its connection and passes it to JS. Called on the
+     * executor.
+     */
+    private void onDescriptionCreated(int id, SessionDescription sdp, Callback callback) {
+        PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+        if (pco == null || pco.getPeerConnection() == null) {
+            callback.invoke(false, "peerConnection is null");
+            return;
+        }
+
+        SessionDescription shaped = pco.shapeDescription(sdp);
+        pco.setLastCreatedDescription(shaped);
+
+        WritableMap params = Arguments.createMap();
+        WritableMap sdpInfo = Arguments.createMap();
+        sdpInfo.putString("sdp", shaped.description);
+        sdpInfo.putString("type", shaped.type.canonicalForm());
+        params.putArray("transceiversInfo", getTransceiversInfo(id));
+        params.putMap("sdpInfo", sdpInfo);
+        callback.invoke(true, params);
+    }
+
+    /**
+     * Sets the rules applied to the media sections of the descriptions the
+     * connection creates, by media kind:
+     * {@code { audio?: { codecs?, maxBitrate? }, video?: { codecs?, maxBitrate? } }}.
+     * See {@link SdpShaper}. A kind missing removes its rules.
+     */
+    @ReactMethod
+    public void peerConnectionSetSdpRules(int id, ReadableMap rules) {
+        runOnExecutor(() -> {
+            PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+            if (pco == null) {
+                Log.d(TAG, "peerConnectionSetSdpRules() peerConnectionObserver is null");
+                return;
+            }
+
+            for (String kind : new String[] { "audio", "video" }) {
+                pco.setSdpRules(
+                    kind,
+                    rules.hasKey(kind) && rules.getType(kind) == ReadableType.Map
+                        ? SdpShaper.Rules.parse(rules.getMap(kind))
+                        : null);
+            }
+        });
+    }
+
+    @ReactMethod
+    public void transceiverSetCodecPreferences(int id, String senderId, ReadableArray codecs) {
+        runOnExecutor(() -> {
+            PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
+            if (pco == null) {
+                Log.d(TAG, "transceiverSetCodecPreferences() peerConnectionObserver is null");
+                return;
+            }
+
+            pco.setCodecPreferences(senderId, SdpShaper.CodecPreference.parse(codecs));
         });
     }
 
@@ -918,7 +1511,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionCreateOffer(int id,
                                           ReadableMap options,
                                           Callback callback) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(callback, () -> {
             PeerConnection peerConnection = getPeerConnection(id);
 
             if (peerConnection == null) {
@@ -935,13 +1528,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
                 @Override
                 public void onCreateSuccess(SessionDescription sdp) {
-                    WritableMap params = Arguments.createMap();
-                    WritableMap sdpInfo = Arguments.createMap();
-                    sdpInfo.putString("sdp", sdp.description);
-                    sdpInfo.putString("type", sdp.type.canonicalForm());
-                    params.putArray("transceiversInfo", getTransceiversInfo(id));
-                    params.putMap("sdpInfo", sdpInfo);
-                    callback.invoke(true, params);
+                    ThreadUtils.runOnExecutor(() -> onDescriptionCreated(id, sdp, callback));
                 }
 
                 @Override
@@ -957,7 +1544,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionCreateAnswer(int id,
                                            ReadableMap options,
                                            Callback callback) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(callback, () -> {
             PeerConnection peerConnection = getPeerConnection(id);
 
             if (peerConnection == null) {
@@ -974,13 +1561,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
                 @Override
                 public void onCreateSuccess(SessionDescription sdp) {
-                    WritableMap params = Arguments.createMap();
-                    WritableMap sdpInfo = Arguments.createMap();
-                    sdpInfo.putString("sdp", sdp.description);
-                    sdpInfo.putString("type", sdp.type.canonicalForm());
-                    params.putArray("transceiversInfo", getTransceiversInfo(id));
-                    params.putMap("sdpInfo", sdpInfo);
-                    callback.invoke(true, params);
+                    ThreadUtils.runOnExecutor(() -> onDescriptionCreated(id, sdp, callback));
                 }
 
                 @Override
@@ -996,7 +1577,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     public void peerConnectionSetLocalDescription(int pcId,
                                                   ReadableMap desc,
                                                   Promise promise) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             PeerConnection peerConnection = getPeerConnection(pcId);
             if (peerConnection == null) {
                 Log.d(TAG, "peerConnectionSetLocalDescription() peerConnection is null");
@@ -1004,6 +1585,27 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                 return;
             }
 
+            final SessionDescription description;
+
+            if (desc == null) {
+                description = null;
+            } else if (desc.hasKey("lastCreated") && desc.getBoolean("lastCreated")) {
+                // The last created description, which JS doesn't send back.
+                SessionDescription.Type type
+                    = SessionDescription.Type.fromCanonicalForm(Objects.requireNonNull(desc.getString("type")));
+                description = mPeerConnectionObservers.get(pcId).getLastCreatedDescription();
+
+                if (description == null || description.type != type) {
+                    promise.reject("E_INVALID", "No " + type.canonicalForm() + " was created");
+                    return;
+                }
+            } else {
+                description = new SessionDescription(
+                    SessionDescription.Type.fromCanonicalForm(Objects.requireNonNull(desc.getString("type"))),
+                    desc.getString("sdp")
+                );
+            }
+
             final SdpObserver observer = new SdpObserver() {
                 @Override
                 public void onCreateSuccess(SessionDescription sdp) {
@@ -1015,7 +1617,11 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                     WritableMap newSdpMap = Arguments.createMap();
                     WritableMap params = Arguments.createMap();
                     newSdpMap.putString("type", newSdp.type.canonicalForm());
-                    newSdpMap.putString("sdp", newSdp.description);
+                    // JS already has the description it set, unless it was
+                    // changed when applied.
+                    if (description == null || !description.description.equals(newSdp.description)) {
+                        newSdpMap.putString("sdp", newSdp.description);
+                    }
                     params.putMap("sdpInfo", newSdpMap);
                     params.putArray("transceiversInfo", getTransceiversInfo(pcId));
                     promise.resolve(params);
@@ -1031,24 +1637,225 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                 }
             };
 
-            if (desc != null) {
-                SessionDescription sdp = new SessionDescription(
-                    SessionDescription.Type.fromCanonicalForm(Objects.requireNonNull(desc.getString("type"))),
-                    desc.getString("sdp")
-                );
-
-                peerConnection.setLocalDescription(observer, sdp);
+            if (description != null) {
+                peerConnection.setLocalDescription(observer, description);
             } else {
                 peerConnection.setLocalDescription(observer);
             }
         });
     }
 
+    /**
+     * Creates an offer or an answer, applies the SDP rules to it, sets it as
+     * the local description and, optionally, waits for ICE gathering to
+     * complete, all without going back to JS. For signaling which doesn't
+     * trickle candidates, this replaces the successive calls and their copies
+     * of the SDP.
+     *
+     * Resolves once with the local description, including the candidates
+     * gathered, the transceivers, and whether gathering was waited for and
+     * completed.
+     *
+     * @param type {@code offer} or {@code answer}
+     * @param options {@code offerOptions}, as normalized for
+     * {@link #peerConnectionCreateOffer}, {@code waitForGathering}, true by
+     * default, and {@code timeoutMs} after which the description is resolved with the
+     * candidates gathered so far, 10 s by default and 0 for none
+     */
+    @ReactMethod
+    public void peerConnectionNegotiateLocal(int pcId, String type, @Nullable ReadableMap options, Promise promise) {
+        boolean waitForGathering
+            = options == null
+                || !options.hasKey("waitForGathering")
+                || options.getType("waitForGathering") != ReadableType.Boolean
+                || options.getBoolean("waitForGathering");
+        int timeoutMs
+            = options != null && options.hasKey("timeoutMs") && options.getType("timeoutMs") == ReadableType.Number
+                ? options.getInt("timeoutMs")
+                : DEFAULT_GATHERING_TIMEOUT_MS;
+
+        runOnExecutor(promise, () -> {
+            PeerConnectionObserver pco = mPeerConnectionObservers.get(pcId);
+            if (pco == null || pco.getPeerConnection() == null) {
+                Log.d(TAG, "peerConnectionNegotiateLocal() peerConnection is null");
+                promise.reject(new Exception("PeerConnection not found"));
+                return;
+            }
+
+            if (!"offer".equals(type) && !"answer".equals(type)) {
+                promise.reject("E_TYPE_ERROR", "Invalid type: " + type);
+                return;
+            }
+
+            PeerConnection peerConnection = pco.getPeerConnection();
+
+            // The ICE credentials of the current local description, if the
+            // new one keeps them no new gathering starts.
+            Set<String> previousIceUfrags = new HashSet<>();
+
+            SdpObserver setObserver = new SdpObserver() {
+                @Override
+                public void onCreateSuccess(SessionDescription sdp) {}
+
+                @Override
+                public void onSetSuccess() {
+                    new LocalDescriptionWaiter(pcId, pco, promise).start(waitForGathering, timeoutMs, previousIceUfrags);
+                }
+
+                @Override
+                public void onCreateFailure(String s) {}
+
+                @Override
+                public void onSetFailure(String s) {
+                    promise.reject("E_OPERATION_ERROR", s);
+                }
+            };
+
+            SdpObserver createObserver = new SdpObserver() {
+                @Override
+                public void onCreateSuccess(SessionDescription sdp) {
+                    ThreadUtils.runOnExecutor(() -> {
+                        if (mPeerConnectionObservers.get(pcId) != pco) {
+                            promise.reject("E_OPERATION_ERROR", "PeerConnection closed");
+                            return;
+                        }
+
+                        previousIceUfrags.addAll(getIceUfrags(peerConnection.getLocalDescription()));
+                        pco.resetIceGatheringComplete();
+                        peerConnection.setLocalDescription(setObserver, pco.shapeDescription(sdp));
+                    });
+                }
+
+                @Override
+                public void onSetSuccess() {}
+
+                @Override
+                public void onCreateFailure(String s) {
+                    promise.reject("E_OPERATION_ERROR", s);
+                }
+
+                @Override
+                public void onSetFailure(String s) {}
+            };
+
+            MediaConstraints constraints
+                = options != null && options.hasKey("offerOptions") && options.getType("offerOptions") == ReadableType.Map
+                    ? constraintsForOptions(options.getMap("offerOptions"))
+                    : new MediaConstraints();
+
+            if ("offer".equals(type)) {
+                peerConnection.createOffer(createObserver, constraints);
+            } else {
+                peerConnection.createAnswer(createObserver, constraints);
+            }
+        });
+    }
+
+    /**
+     * Resolves the promise of {@link #peerConnectionNegotiateLocal} once ICE
+     * gathering is complete or the timeout expires, whichever comes first.
+     */
+    private class LocalDescriptionWaiter implements Runnable {
+        private final int pcId;
+        private final PeerConnectionObserver pco;
+        private final Promise promise;
+        private final AtomicBoolean settled = new AtomicBoolean();
+        private final Runnable timeout = () -> finish(false);
+
+        LocalDescriptionWaiter(int pcId, PeerConnectionObserver pco, Promise promise) {
+            this.pcId = pcId;
+            this.pco = pco;
+            this.promise = promise;
+        }
+
+        /**
+         * Called once the local description is set, on the signaling thread.
+         *
+         * @param previousIceUfrags the ICE usernames of the local description
+         * it replaced
+         */
+        void start(boolean waitForGathering, int timeoutMs, Set<String> previousIceUfrags) {
+            if (!waitForGathering) {
+                finish(false);
+                return;
+            }
+
+            PeerConnection peerConnection = pco.getPeerConnection();
+
+            // Without an ICE restart or a new transport the description
+            // doesn't start a gathering, so a completed one stays complete
+            // and no new transition is coming.
+            if (peerConnection.iceGatheringState() == PeerConnection.IceGatheringState.COMPLETE
+                    && previousIceUfrags.containsAll(getIceUfrags(peerConnection.getLocalDescription()))) {
+                finish(true);
+                return;
+            }
+
+            if (timeoutMs > 0) {
+                mainHandler.postDelayed(timeout, timeoutMs);
+            }
+            pco.whenIceGatheringComplete(this);
+        }
+
+        /**
+         * Called when ICE gathering is complete.
+         */
+        @Override
+        public void run() {
+            finish(true);
+        }
+
+        private void finish(boolean iceGatheringComplete) {
+            if (!settled.compareAndSet(false, true)) {
+                return;
+            }
+
+            mainHandler.removeCallbacks(timeout);
+            pco.removeIceGatheringCompleteListener(this);
+
+            ThreadUtils.runOnExecutor(() -> {
+                if (mPeerConnectionObservers.get(pcId) != pco) {
+                    promise.reject("E_OPERATION_ERROR", "PeerConnection closed");
+                    return;
+                }
+
+                SessionDescription description = pco.getPeerConnection().getLocalDescription();
+                WritableMap sdpInfo = Arguments.createMap();
+                sdpInfo.putString("type", description.type.canonicalForm());
+                sdpInfo.putString("sdp", description.description);
+
+                WritableMap params = Arguments.createMap();
+                params.putMap("sdpInfo", sdpInfo);
+                params.putArray("transceiversInfo", getTransceiversInfo(pcId));
+                params.putBoolean("iceGatheringComplete", iceGatheringComplete);
+                promise.resolve(params);
+            });
+        }
+    }
+
+    /**
+     * Returns the ICE usernames of the media sections of a description, none
+     * for {@code null}.
+     */
+    private static Set<String> getIceUfrags(@Nullable SessionDescription description) {
+        Set<String> ufrags = new HashSet<>();
+
+        if (description != null) {
+            for (String line : description.description.split("\r?\n")) {
+                if (line.startsWith("a=ice-ufrag:")) {
+                    ufrags.add(line.substring(12).trim());
+                }
+            }
+        }
+
+        return ufrags;
+    }
+
     @ReactMethod
     public void peerConnectionSetRemoteDescription(ReadableMap sdpMap,
                                                    int id,
                                                    Callback callback) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(callback, () -> {
             PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
             PeerConnection peerConnection = pco.getPeerConnection();
             
@@ -1110,50 +1917,66 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     }
 
 
+    /**
+     * Returns the capabilities of the receivers. They are computed once per
+     * factory, right after its creation, so this only waits for the executor
+     * until then.
+     */
     @ReactMethod(isBlockingSynchronousMethod = true)
     public WritableMap receiverGetCapabilities() {
-        try {
-            return (WritableMap) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
-                VideoCodecInfo[] videoCodecInfos = mVideoDecoderFactory.getSupportedCodecs();
-                WritableMap params = Arguments.createMap();
-                WritableArray codecs = Arguments.createArray();
-                for(VideoCodecInfo codecInfo: videoCodecInfos) {
-                    codecs.pushMap(SerializeUtils.serializeVideoCodecInfo(codecInfo));
-                }
-                params.putArray("codecs", codecs);
-                return params;
-            }).get();
-        } catch (ExecutionException | InterruptedException e) {
-            Log.d(TAG, "receiverGetCapabilities() " + e.getMessage());
-            return null;
+        PeerConnectionFactoryHolder holder = factoryHolder;
+        List<VideoCodecInfo> codecs = holder != null ? holder.getCachedReceiverCodecs() : null;
+
+        if (codecs == null) {
+            try {
+                codecs = submitToExecutor(
+                    (Callable<List<VideoCodecInfo>>) () -> factoryHolder.getReceiverCodecs()).get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.d(TAG, "receiverGetCapabilities() " + e.getMessage());
+                return null;
+            }
         }
-    }
 
+        return serializeCapabilities(codecs);
+    }
 
+    /**
+     * Returns the capabilities of the senders, see
+     * {@link #receiverGetCapabilities}.
+     */
     @ReactMethod(isBlockingSynchronousMethod = true)
     public WritableMap senderGetCapabilities() {
-        try {
-            return (WritableMap) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
-                VideoCodecInfo[] videoCodecInfos = mVideoEncoderFactory.getSupportedCodecs();
-                WritableMap params = Arguments.createMap();
-                WritableArray codecs = Arguments.createArray();
-                for(VideoCodecInfo codecInfo: videoCodecInfos) {
-                    codecs.pushMap(SerializeUtils.serializeVideoCodecInfo(codecInfo));
-                }
-                params.putArray("codecs", codecs);
-                return params;
-            }).get();
-        } catch (ExecutionException | InterruptedException e) {
-            Log.d(TAG, "senderGetCapabilities() " + e.getMessage());
-            return null;
+        PeerConnectionFactoryHolder holder = factoryHolder;
+        List<VideoCodecInfo> codecs = holder != null ? holder.getCachedSenderCodecs() : null;
+
+        if (codecs == null) {
+            try {
+                codecs = submitToExecutor(
+                    (Callable<List<VideoCodecInfo>>) () -> factoryHolder.getSenderCodecs()).get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.d(TAG, "senderGetCapabilities() " + e.getMessage());
+                return null;
+            }
         }
+
+        return serializeCapabilities(codecs);
+    }
+
+    private static WritableMap serializeCapabilities(List<VideoCodecInfo> videoCodecInfos) {
+        WritableMap params = Arguments.createMap();
+        WritableArray codecs = Arguments.createArray();
+        for (VideoCodecInfo codecInfo : videoCodecInfos) {
+            codecs.pushMap(SerializeUtils.serializeVideoCodecInfo(codecInfo));
+        }
+        params.putArray("codecs", codecs);
+        return params;
     }
 
     @ReactMethod
     public void peerConnectionAddICECandidate(int pcId,
                                               ReadableMap candidateMap,
                                               Promise promise) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             PeerConnection peerConnection = getPeerConnection(pcId);
             if (peerConnection == null) {
                 Log.d(TAG, "peerConnectionAddICECandidate() peerConnection is null");
@@ -1192,7 +2015,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void peerConnectionGetStats(int peerConnectionId, Promise promise) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(promise, () -> {
             PeerConnectionObserver pco = mPeerConnectionObservers.get(peerConnectionId);
             if (pco == null || pco.getPeerConnection() == null) {
                 Log.d(TAG, "peerConnectionGetStats() peerConnection is null");
@@ -1203,9 +2026,22 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
         });
     }
 
+    @ReactMethod
+    public void peerConnectionGetCodecImplementations(int peerConnectionId, Promise promise) {
+        runOnExecutor(promise, () -> {
+            PeerConnectionObserver pco = mPeerConnectionObservers.get(peerConnectionId);
+            if (pco == null || pco.getPeerConnection() == null) {
+                Log.d(TAG, "peerConnectionGetCodecImplementations() peerConnection is null");
+                promise.reject(new Exception("PeerConnection ID not found"));
+            } else {
+                pco.getCodecImplementations(promise);
+            }
+        });
+    }
+
     @ReactMethod
     public void peerConnectionClose(int id) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             PeerConnectionObserver pco = mPeerConnectionObservers.get(id);
             if (pco == null || pco.getPeerConnection() == null) {
                 Log.d(TAG, "peerConnectionClose() peerConnection is null");
@@ -1218,7 +2054,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void peerConnectionRestartIce(int pcId) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             PeerConnection peerConnection = getPeerConnection(pcId);
             if (peerConnection == null) {
                 Log.w(TAG, "peerConnectionRestartIce() peerConnection is null");
@@ -1232,7 +2068,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
     @ReactMethod(isBlockingSynchronousMethod = true)
     public WritableMap createDataChannel(int peerConnectionId, String label, ReadableMap config) {
         try {
-            return (WritableMap) ThreadUtils.submitToExecutor((Callable<Object>) () -> {
+            return (WritableMap) submitToExecutor((Callable<Object>) () -> {
                 PeerConnectionObserver pco = mPeerConnectionObservers.get(peerConnectionId);
                 if (pco == null || pco.getPeerConnection() == null) {
                     Log.d(TAG, "createDataChannel() peerConnection is null");
@@ -1248,7 +2084,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void dataChannelClose(int peerConnectionId, String reactTag) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             // Forward to PeerConnectionObserver which deals with DataChannels
             // because DataChannel is owned by PeerConnection.
             PeerConnectionObserver pco = mPeerConnectionObservers.get(peerConnectionId);
@@ -1263,7 +2099,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
 
     @ReactMethod
     public void dataChannelDispose(int peerConnectionId, String reactTag) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             PeerConnectionObserver pco = mPeerConnectionObservers.get(peerConnectionId);
             if (pco == null || pco.getPeerConnection() == null) {
                 Log.d(TAG, "dataChannelDispose() peerConnection is null");
@@ -1279,7 +2115,7 @@ public class WebRTCModule extends ReactContextBaseJavaModule {
                                 String reactTag,
                                 String data,
                                 String type) {
-        ThreadUtils.runOnExecutor(() -> {
+        runOnExecutor(() -> {
             // Forward to PeerConnectionObserver which deals with DataChannels
             // because DataChannel is owned by PeerConnection.
             PeerConnectionObserver pco = mPeerConnectionObservers.get(peerConnectionId);
@@ -171,13 +171,16 @@ public class WebRTCView extends ViewGroup {
         surfaceViewRenderer.clearImage();
     }
 
+    private WebRTCModule getWebRTCModule() {
+        ReactContext reactContext = (ReactContext) getContext();
+        return reactContext.getNativeModule(WebRTCModule.class);
+    }
+
     private VideoTrack getVideoTrackForStreamURL(String streamURL) {
         VideoTrack videoTrack = null;
 
         if (streamURL != null) {
-            ReactContext reactContext = (ReactContext) getContext();
-            WebRTCModule module
-                = reactContext.getNativeModule(WebRTCModule.class);
+            WebRTCModule module = getWebRTCModule();
             MediaStream stream = module.getStreamForReactTag(streamURL);
 
             if (stream != null) {
@@ -343,7 +346,7 @@ public class WebRTCView extends ViewGroup {
                 // invoked on videoTrack, then it is no longer safe to call removeSink
                 // on the instance, it will throw IllegalStateException.
                 try {
-                    videoTrack.removeSink(surfaceViewRenderer);
+                    getWebRTCModule().removeVideoSink(videoTrack, surfaceViewRenderer);
                 } catch (Throwable tr) {
                     // Releasing streams happens in the WebRTC thread, thus we might (briefly) hold
                     // a reference to a released stream. Just ignore the error and move on.
@@ -552,7 +555,7 @@ public class WebRTCView extends ViewGroup {
             // invoked on videoTrack, then it is no longer safe to call addSink
             // on the instance, it will throw IllegalStateException.
             try {
-                videoTrack.addSink(surfaceViewRenderer);
+                getWebRTCModule().addVideoSink(videoTrack, surfaceViewRenderer);
             } catch (Throwable tr) {
                 // Releasing streams happens in the WebRTC thread, thus we might (briefly) hold
                 // a reference to a released stream.
@@ -0,0 +1,146 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoFrame;
+
+/**
+ * Runs an {@link AnalysisVideoFrameProcessor} as a {@link VideoFrameProcessor}.
+ *
+ * Every full rate frame is composited with the latest analysis result. At most
+ * {@code analysisFrameRate} times per second, a frame is also scaled down to
+ * fit {@code analysisSize} and converted to I420 on the capture thread, which
+ * at such sizes is cheap, and handed to the analysis on a worker thread. While
+ * an analysis is running, no other frame is handed over, so a slow analysis
+ * only makes the result older, it doesn't slow down the capture.
+ *
+ * The worker thread is started on the first frame and stopped on detach.
+ */
+public class AnalysisCompositeProcessor<T> implements VideoFrameProcessor, VideoFrameProcessorLifecycle {
+    private static final String TAG = AnalysisCompositeProcessor.class.getSimpleName();
+
+    public static final int DEFAULT_ANALYSIS_SIZE = 256;
+
+    public static final int DEFAULT_ANALYSIS_FRAME_RATE = 15;
+
+    private final AnalysisVideoFrameProcessor<T> processor;
+    private final int analysisSize;
+    private final long analysisIntervalNs;
+
+    private final AtomicBoolean analyzing = new AtomicBoolean();
+
+    private volatile T latestResult;
+
+    // Only accessed on the capture thread.
+    private HandlerThread workerThread;
+    private Handler workerHandler;
+    private long lastAnalysisTimestampNs = Long.MIN_VALUE;
+
+    public AnalysisCompositeProcessor(AnalysisVideoFrameProcessor<T> processor) {
+        this(processor, DEFAULT_ANALYSIS_SIZE, DEFAULT_ANALYSIS_FRAME_RATE);
+    }
+
+    /**
+     * @param analysisSize the maximum width and height of the analysed frames
+     * @param analysisFrameRate the maximum number of analyses per second
+     */
+    public AnalysisCompositeProcessor(
+            AnalysisVideoFrameProcessor<T> processor, int analysisSize, int analysisFrameRate) {
+        this.processor = processor;
+        this.analysisSize = analysisSize > 0 ? analysisSize : DEFAULT_ANALYSIS_SIZE;
+        this.analysisIntervalNs = TimeUnit.SECONDS.toNanos(1)
+            / (analysisFrameRate > 0 ? analysisFrameRate : DEFAULT_ANALYSIS_FRAME_RATE);
+    }
+
+    @Override
+    public VideoFrame process(VideoFrame frame, SurfaceTextureHelper textureHelper) {
+        if (workerThread == null) {
+            workerThread = new HandlerThread("VideoAnalysisThread");
+            workerThread.start();
+            workerHandler = new Handler(workerThread.getLooper());
+        }
+
+        long timestampNs = frame.getTimestampNs();
+
+        if ((lastAnalysisTimestampNs == Long.MIN_VALUE
+                    || timestampNs - lastAnalysisTimestampNs >= analysisIntervalNs)
+                && analyzing.compareAndSet(false, true)) {
+            lastAnalysisTimestampNs = timestampNs;
+
+            VideoFrame analysisFrame = downscale(frame);
+            workerHandler.post(() -> analyze(analysisFrame));
+        }
+
+        return processor.composite(frame, latestResult, textureHelper);
+    }
+
+    @Override
+    public void onInit() {
+        processor.onInit();
+    }
+
+    /**
+     * Stops the analysis worker, waiting for a running analysis to complete,
+     * and detaches the effect. The latest result is kept for the next
+     * attachment.
+     */
+    @Override
+    public void onDetach() {
+        if (workerThread != null) {
+            workerThread.quitSafely();
+
+            try {
+                workerThread.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted while waiting for the analysis to complete");
+                Thread.currentThread().interrupt();
+            }
+
+            workerThread = null;
+            workerHandler = null;
+        }
+
+        lastAnalysisTimestampNs = Long.MIN_VALUE;
+        processor.onDetach();
+    }
+
+    @Override
+    public void onRelease() {
+        latestResult = null;
+        processor.onRelease();
+    }
+
+    private void analyze(VideoFrame frame) {
+        try {
+            latestResult = processor.analyze(frame);
+        } catch (Exception e) {
+            Log.e(TAG, "Analysis failed", e);
+        } finally {
+            frame.release();
+            analyzing.set(false);
+        }
+    }
+
+    private VideoFrame downscale(VideoFrame frame) {
+        VideoFrame.Buffer buffer = frame.getBuffer();
+        int width = buffer.getWidth();
+        int height = buffer.getHeight();
+        float scale = Math.min(1f, (float) analysisSize / Math.max(width, height));
+        int scaledWidth = Math.max(2, Math.round(width * scale) & ~1);
+        int scaledHeight = Math.max(2, Math.round(height * scale) & ~1);
+
+        // Converting right away lets the capturer reuse its texture, instead
+        // of keeping it until the analysis is done.
+        VideoFrame.Buffer scaledBuffer = buffer.cropAndScale(0, 0, width, height, scaledWidth, scaledHeight);
+        VideoFrame.I420Buffer i420Buffer = scaledBuffer.toI420();
+        scaledBuffer.release();
+
+        return new VideoFrame(i420Buffer, frame.getRotation(), frame.getTimestampNs());
+    }
+}
@@ -0,0 +1,40 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoFrame;
+
+/**
+ * Interface for effects split in an expensive analysis, e.g. computing a
+ * segmentation mask, and a cheap compositing which applies the result of the
+ * analysis to the frames. The analysis runs on small frames at a reduced rate
+ * on a worker thread, the compositing on every frame on the capture thread.
+ *
+ * Wrap it in an {@link AnalysisCompositeProcessor} to register it with
+ * {@link ProcessorProvider}. {@link #onDetach} is called on the capture thread
+ * once the analysis worker has stopped.
+ *
+ * @param <T> the result of the analysis
+ */
+public interface AnalysisVideoFrameProcessor<T> extends VideoFrameProcessorLifecycle {
+    /**
+     * Analyses a downscaled frame, on the analysis worker thread.
+     * @param frame I420 frame, at most the configured analysis size; its
+     * rotation applies. The frame is released once this returns.
+     * @return the result to composite the next frames with
+     */
+    public T analyze(VideoFrame frame);
+
+    /**
+     * Applies the latest analysis result to a full size frame, on the capture
+     * thread with the capturer's GL context current. Same contract as
+     * {@link VideoFrameProcessor#process}.
+     * @param frame raw videoframe which need to be processed
+     * @param result the latest analysis result, {@code null} until the first
+     * analysis completed
+     * @param textureHelper
+     * @return processed videoframe which will rendered
+     */
+    public VideoFrame composite(VideoFrame frame, @Nullable T result, SurfaceTextureHelper textureHelper);
+}
@@ -0,0 +1,372 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.oney.WebRTCModule.EglUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.webrtc.EglBase;
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.RendererCommon;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.TextureBufferImpl;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.YuvConverter;
+
+/**
+ * Runs the chain of effects on a dedicated worker thread instead of the
+ * capture thread, so a slow effect lowers the frame rate of the processed
+ * frames but not the capture itself.
+ *
+ * Camera textures are only valid until the frame is released, and the camera
+ * can't deliver the next frame before that. Texture frames are therefore
+ * copied on the GPU, on the capture thread, into a texture the worker owns.
+ * Where both contexts are GLES 3 ones the worker's GPU commands wait for the
+ * copy through a fence, otherwise the capture thread waits for it to
+ * complete.
+ *
+ * At most {@code maxQueueSize} frames wait for the worker; when a frame
+ * arrives on a full queue, the oldest waiting one is dropped. A frame which
+ * isn't done with within {@code deadlineMs} of its capture is passed on
+ * without the effects instead.
+ */
+public class AsyncVideoEffectProcessor extends VideoEffectProcessor {
+    private static final String TAG = AsyncVideoEffectProcessor.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 1;
+
+    public static final int DEFAULT_DEADLINE_MS = 100;
+
+    /**
+     * A frame on its way through the worker. Guarded by the lock of
+     * {@link #queue}.
+     */
+    private static class Job {
+        final VideoFrame frame;
+
+        /**
+         * Whether the frame, processed or not, was passed on or dropped.
+         */
+        boolean done;
+
+        /**
+         * Whether the worker took the job, it then releases the frame.
+         */
+        boolean taken;
+
+        /**
+         * The GLES 3 sync object signaled once the copy is complete, 0 if
+         * none.
+         */
+        long fence;
+
+        Job(VideoFrame frame) {
+            this.frame = frame;
+        }
+    }
+
+    private final int maxQueueSize;
+    private final long deadlineMs;
+
+    private final Deque<Job> queue = new ArrayDeque<>();
+
+    /**
+     * Serializes passing frames on, separately from {@link #queue} so that the
+     * capture thread doesn't wait for the sink to queue a new frame.
+     */
+    private final Object deliveryLock = new Object();
+
+    /**
+     * The timestamp of the last frame passed on, so that a late frame never
+     * follows a newer one. Guarded by {@link #deliveryLock}.
+     */
+    private long lastTimestampNs = Long.MIN_VALUE;
+
+    private final HandlerThread workerThread;
+    private final Handler workerHandler;
+    private EglBase workerEglBase;
+
+    /**
+     * Whether the worker's context is a GLES 3 one, which can wait for fences.
+     */
+    private volatile boolean workerEs3;
+
+    // Only accessed on the capture thread.
+    private final Deque<GlTextureFrameBuffer> freeFrameBuffers = new ArrayDeque<>();
+    private RendererCommon.GlDrawer copyDrawer;
+    private YuvConverter yuvConverter;
+    private boolean released;
+
+    /**
+     * Whether the capture context is a GLES 3 one, which can create fences,
+     * {@code null} until checked.
+     */
+    private Boolean captureEs3;
+
+    public AsyncVideoEffectProcessor(
+            List<VideoFrameProcessor> processors,
+            SurfaceTextureHelper textureHelper,
+            int maxQueueSize,
+            int deadlineMs) {
+        super(processors, textureHelper);
+
+        this.maxQueueSize = maxQueueSize > 0 ? maxQueueSize : DEFAULT_MAX_QUEUE_SIZE;
+        this.deadlineMs = deadlineMs > 0 ? deadlineMs : DEFAULT_DEADLINE_MS;
+
+        workerThread = new HandlerThread("VideoEffectThread");
+        workerThread.start();
+        workerHandler = new Handler(workerThread.getLooper());
+        workerHandler.post(() -> {
+            // The effects need a GL context sharing textures with the capturer.
+            // A GLES 3 one can also wait for the copies without blocking.
+            EglBase.Context sharedContext = EglUtils.getRootEglBaseContext();
+            try {
+                workerEglBase = EglBase.create(sharedContext, EglUtils.CONFIG_PIXEL_BUFFER_ES3);
+                workerEglBase.createDummyPbufferSurface();
+                workerEglBase.makeCurrent();
+                workerEs3 = EglUtils.isCurrentContextEs3();
+            } catch (RuntimeException e) {
+                Log.d(TAG, "No GLES 3 context for the effects, copies aren't fenced", e);
+                if (workerEglBase != null) {
+                    workerEglBase.release();
+                }
+                workerEglBase = EglBase.create(sharedContext, EglBase.CONFIG_PIXEL_BUFFER);
+                workerEglBase.createDummyPbufferSurface();
+                workerEglBase.makeCurrent();
+            }
+        });
+    }
+
+    @Override
+    public void release() {
+        textureHelper.getHandler().post(() -> {
+            released = true;
+
+            for (GlTextureFrameBuffer frameBuffer : freeFrameBuffers) {
+                frameBuffer.release();
+            }
+            freeFrameBuffers.clear();
+
+            if (copyDrawer != null) {
+                copyDrawer.release();
+                copyDrawer = null;
+                yuvConverter.release();
+                yuvConverter = null;
+            }
+        });
+
+        // There is no context current here, the worker deletes the fences.
+        List<Long> fences = new ArrayList<>();
+
+        synchronized (queue) {
+            for (Job job : queue) {
+                job.done = true;
+                if (job.fence != 0) {
+                    fences.add(job.fence);
+                    job.fence = 0;
+                }
+                job.frame.release();
+            }
+            queue.clear();
+        }
+
+        workerHandler.post(() -> {
+            for (long fence : fences) {
+                GLES30.glDeleteSync(fence);
+            }
+            releaseEffects();
+            workerEglBase.release();
+            workerThread.quit();
+        });
+    }
+
+    @Override
+    public void onFrameCaptured(VideoFrame frame) {
+        Job job = copy(frame);
+
+        synchronized (queue) {
+            if (queue.size() >= maxQueueSize) {
+                Job oldest = queue.poll();
+                oldest.done = true;
+                destroyFence(oldest);
+                oldest.frame.release();
+                droppedFrames.incrementAndGet();
+            }
+            queue.add(job);
+        }
+
+        workerHandler.post(this::processNext);
+        textureHelper.getHandler().postDelayed(() -> expire(job), deadlineMs);
+    }
+
+    /**
+     * Processes the oldest waiting frame, on the worker thread.
+     */
+    private void processNext() {
+        Job job;
+
+        synchronized (queue) {
+            job = queue.poll();
+            if (job == null) {
+                // Dropped or expired in the meantime.
+                return;
+            }
+            job.taken = true;
+        }
+
+        if (job.fence != 0) {
+            // Makes the effects' GPU commands wait, not the worker thread.
+            GLES30.glWaitSync(job.fence, 0, GLES30.GL_TIMEOUT_IGNORED);
+            GLES30.glDeleteSync(job.fence);
+            job.fence = 0;
+        }
+
+        VideoFrame outputFrame = applyEffects(job.frame);
+        boolean deliver;
+
+        synchronized (queue) {
+            deliver = !job.done;
+            job.done = true;
+        }
+
+        if (deliver) {
+            deliver(outputFrame);
+        }
+
+        outputFrame.release();
+        job.frame.release();
+    }
+
+    /**
+     * Passes the frame on without the effects if the worker isn't done with
+     * it yet, on the capture thread.
+     */
+    private void expire(Job job) {
+        synchronized (queue) {
+            if (job.done) {
+                return;
+            }
+
+            job.done = true;
+            if (!job.taken) {
+                queue.remove(job);
+                destroyFence(job);
+            } else {
+                // The worker releases its reference once done with it.
+                job.frame.retain();
+            }
+        }
+
+        bypassedFrames.incrementAndGet();
+        deliver(job.frame);
+        job.frame.release();
+    }
+
+    /**
+     * Passes a frame on unless a newer one already was.
+     */
+    private void deliver(VideoFrame frame) {
+        synchronized (deliveryLock) {
+            if (frame.getTimestampNs() <= lastTimestampNs) {
+                droppedFrames.incrementAndGet();
+                return;
+            }
+
+            lastTimestampNs = frame.getTimestampNs();
+            getSink().onFrame(frame);
+        }
+    }
+
+    /**
+     * Deletes the fence of a job the worker won't take, on the capture thread.
+     * Called with the lock of {@link #queue} held.
+     */
+    private static void destroyFence(Job job) {
+        if (job.fence != 0) {
+            GLES30.glDeleteSync(job.fence);
+            job.fence = 0;
+        }
+    }
+
+    /**
+     * Copies a texture frame into a texture of its own, so the capturer's can
+     * be handed back right away. Other frames are retained as they are.
+     *
+     * @return the job of the copy, whose frame the caller is responsible for
+     * releasing
+     */
+    private Job copy(VideoFrame frame) {
+        if (released || !(frame.getBuffer() instanceof VideoFrame.TextureBuffer)) {
+            frame.retain();
+            return new Job(frame);
+        }
+
+        VideoFrame.TextureBuffer input = (VideoFrame.TextureBuffer) frame.getBuffer();
+        int width = input.getWidth();
+        int height = input.getHeight();
+
+        if (copyDrawer == null) {
+            copyDrawer = new GlRectDrawer();
+            yuvConverter = new YuvConverter();
+        }
+
+        GlTextureFrameBuffer frameBuffer = freeFrameBuffers.poll();
+        if (frameBuffer == null) {
+            frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+        }
+        frameBuffer.setSize(width, height);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        VideoFrameDrawer.drawTexture(copyDrawer, input, new Matrix(), width, height, 0, 0, width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        // The worker's context must see the complete copy.
+        if (captureEs3 == null) {
+            captureEs3 = EglUtils.isCurrentContextEs3();
+        }
+        long fence = captureEs3 && workerEs3
+            ? GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0)
+            : 0;
+        if (fence != 0) {
+            GLES20.glFlush();
+        } else {
+            GLES20.glFinish();
+        }
+
+        GlTextureFrameBuffer copyFrameBuffer = frameBuffer;
+        Handler captureHandler = textureHelper.getHandler();
+        VideoFrame.TextureBuffer copy = new TextureBufferImpl(
+            width,
+            height,
+            VideoFrame.TextureBuffer.Type.RGB,
+            copyFrameBuffer.getTextureId(),
+            new Matrix(),
+            captureHandler,
+            yuvConverter,
+            () -> captureHandler.post(() -> recycle(copyFrameBuffer)));
+
+        Job job = new Job(new VideoFrame(copy, frame.getRotation(), frame.getTimestampNs()));
+        job.fence = fence;
+
+        return job;
+    }
+
+    private void recycle(GlTextureFrameBuffer frameBuffer) {
+        if (released) {
+            frameBuffer.release();
+        } else {
+            freeFrameBuffers.push(frameBuffer);
+        }
+    }
+}
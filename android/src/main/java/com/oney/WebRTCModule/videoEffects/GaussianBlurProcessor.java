@@ -0,0 +1,347 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import org.webrtc.GlRectDrawer;
+import org.webrtc.GlShader;
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.GlUtil;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoFrame;
+
+/**
+ * Blurs the frames on the GPU with a separable Gaussian blur, or with a mask,
+ * only their background which it may also replace with an image.
+ *
+ * The frame is first drawn into an RGB texture, then blurred horizontally and
+ * vertically at a fraction of its size, which widens the blur for free, and
+ * finally composited with the original through the mask. Everything stays in
+ * textures, the frames are never read back.
+ *
+ * The mask is a single channel image in the orientation of the frame buffers,
+ * i.e. before their rotation is applied, where 255 keeps the original pixel
+ * and 0 takes the blurred or replaced one. It may be smaller than the frames,
+ * it's stretched to their size; typically it comes from the analysis of an
+ * {@link AnalysisVideoFrameProcessor}. The background image is upright, it is
+ * rotated along with the frames and stretched to their size.
+ */
+public class GaussianBlurProcessor extends GlVideoFrameProcessor {
+    public static final int DEFAULT_RADIUS = 16;
+
+    public static final int DEFAULT_DOWNSAMPLE = 4;
+
+    private static final String VERTEX_SHADER =
+        "attribute vec4 in_pos;\n"
+        + "attribute vec2 in_tc;\n"
+        + "varying vec2 tc;\n"
+        + "void main() {\n"
+        + "  gl_Position = in_pos;\n"
+        + "  tc = in_tc;\n"
+        + "}\n";
+
+    /**
+     * Nine taps of a Gaussian of sigma 2, sampled at multiples of
+     * {@code step}.
+     */
+    private static final String BLUR_FRAGMENT_SHADER =
+        "precision mediump float;\n"
+        + "varying vec2 tc;\n"
+        + "uniform sampler2D tex;\n"
+        + "uniform vec2 step;\n"
+        + "void main() {\n"
+        + "  vec4 color = texture2D(tex, tc) * 0.2270270270;\n"
+        + "  color += (texture2D(tex, tc + step) + texture2D(tex, tc - step)) * 0.1945945946;\n"
+        + "  color += (texture2D(tex, tc + 2.0 * step) + texture2D(tex, tc - 2.0 * step)) * 0.1216216216;\n"
+        + "  color += (texture2D(tex, tc + 3.0 * step) + texture2D(tex, tc - 3.0 * step)) * 0.0540540541;\n"
+        + "  color += (texture2D(tex, tc + 4.0 * step) + texture2D(tex, tc - 4.0 * step)) * 0.0162162162;\n"
+        + "  gl_FragColor = color;\n"
+        + "}\n";
+
+    private static final String COMPOSITE_FRAGMENT_SHADER =
+        "precision mediump float;\n"
+        + "varying vec2 tc;\n"
+        + "uniform sampler2D original;\n"
+        + "uniform sampler2D blurred;\n"
+        + "uniform sampler2D mask;\n"
+        + "uniform sampler2D background;\n"
+        + "uniform bool hasMask;\n"
+        + "uniform bool hasBackground;\n"
+        + "uniform mat3 backgroundMatrix;\n"
+        + "void main() {\n"
+        + "  vec4 back = hasBackground\n"
+        + "      ? texture2D(background, (backgroundMatrix * vec3(tc, 1.0)).xy)\n"
+        + "      : texture2D(blurred, tc);\n"
+        + "  float keep = hasMask ? texture2D(mask, tc).r : 0.0;\n"
+        + "  gl_FragColor = mix(back, texture2D(original, tc), keep);\n"
+        + "}\n";
+
+    private static final FloatBuffer FULL_RECTANGLE_BUFFER = GlUtil.createFloatBuffer(new float[] {
+        -1.0f, -1.0f,
+        1.0f, -1.0f,
+        -1.0f, 1.0f,
+        1.0f, 1.0f,
+    });
+
+    private static final FloatBuffer FULL_RECTANGLE_TEXTURE_BUFFER = GlUtil.createFloatBuffer(new float[] {
+        0.0f, 0.0f,
+        1.0f, 0.0f,
+        0.0f, 1.0f,
+        1.0f, 1.0f,
+    });
+
+    private final int radius;
+    private final int downsample;
+
+    // Handed over from any thread, uploaded on the next frame.
+    private ByteBuffer pendingMask;
+    private int pendingMaskWidth;
+    private int pendingMaskHeight;
+    private boolean maskChanged;
+    private Bitmap pendingBackground;
+    private boolean backgroundChanged;
+
+    // Only accessed on the thread the effect runs on.
+    private GlRectDrawer drawer;
+    private GlShader blurShader;
+    private GlShader compositeShader;
+    private GlTextureFrameBuffer originalFrameBuffer;
+    private GlTextureFrameBuffer horizontalFrameBuffer;
+    private GlTextureFrameBuffer verticalFrameBuffer;
+    private int maskTexture;
+    private int backgroundTexture;
+    private boolean hasMask;
+    private boolean hasBackground;
+    private int rotation;
+    private final int[] boundFrameBuffer = new int[1];
+
+    public GaussianBlurProcessor() {
+        this(DEFAULT_RADIUS, DEFAULT_DOWNSAMPLE);
+    }
+
+    /**
+     * @param radius the radius of the blur, in pixels of the frame
+     * @param downsample the factor by which the frame is scaled down before
+     * it is blurred
+     */
+    public GaussianBlurProcessor(int radius, int downsample) {
+        this.radius = radius > 0 ? radius : DEFAULT_RADIUS;
+        this.downsample = downsample > 0 ? downsample : DEFAULT_DOWNSAMPLE;
+    }
+
+    /**
+     * Sets the mask separating the foreground, which is kept sharp, from the
+     * background. {@code null} blurs the whole frame.
+     *
+     * @param mask {@code width * height} bytes, row by row, it must not be
+     * modified until the next mask is set
+     */
+    public synchronized void setMask(@Nullable ByteBuffer mask, int width, int height) {
+        pendingMask = mask;
+        pendingMaskWidth = width;
+        pendingMaskHeight = height;
+        maskChanged = true;
+    }
+
+    /**
+     * Sets the image replacing the background, {@code null} to blur it
+     * instead. Only used along with a mask.
+     */
+    public synchronized void setBackground(@Nullable Bitmap background) {
+        pendingBackground = background;
+        backgroundChanged = true;
+    }
+
+    @Override
+    public VideoFrame process(VideoFrame frame, SurfaceTextureHelper textureHelper) {
+        rotation = frame.getRotation();
+        return super.process(frame, textureHelper);
+    }
+
+    @Override
+    protected void draw(VideoFrame.TextureBuffer input, int width, int height) {
+        GLES20.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, boundFrameBuffer, 0);
+
+        if (drawer == null) {
+            drawer = new GlRectDrawer();
+            blurShader = new GlShader(VERTEX_SHADER, BLUR_FRAGMENT_SHADER);
+            compositeShader = new GlShader(VERTEX_SHADER, COMPOSITE_FRAGMENT_SHADER);
+            originalFrameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+            horizontalFrameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+            verticalFrameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+        }
+        uploadPendingInputs();
+
+        int blurWidth = Math.max(1, width / downsample);
+        int blurHeight = Math.max(1, height / downsample);
+        // The nine taps span four steps on each side.
+        float step = radius / 4f / downsample;
+
+        // Whatever its type, draw the input into a plain texture.
+        originalFrameBuffer.setSize(width, height);
+        bind(originalFrameBuffer, width, height);
+        drawInput(drawer, input, width, height);
+
+        horizontalFrameBuffer.setSize(blurWidth, blurHeight);
+        bind(horizontalFrameBuffer, blurWidth, blurHeight);
+        blur(originalFrameBuffer.getTextureId(), step / blurWidth, 0);
+
+        verticalFrameBuffer.setSize(blurWidth, blurHeight);
+        bind(verticalFrameBuffer, blurWidth, blurHeight);
+        blur(horizontalFrameBuffer.getTextureId(), 0, step / blurHeight);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, boundFrameBuffer[0]);
+        GLES20.glViewport(0, 0, width, height);
+        composite();
+    }
+
+    @Override
+    public void onDetach() {
+        if (drawer != null) {
+            drawer.release();
+            drawer = null;
+            blurShader.release();
+            blurShader = null;
+            compositeShader.release();
+            compositeShader = null;
+            originalFrameBuffer.release();
+            originalFrameBuffer = null;
+            horizontalFrameBuffer.release();
+            horizontalFrameBuffer = null;
+            verticalFrameBuffer.release();
+            verticalFrameBuffer = null;
+        }
+
+        if (maskTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[] { maskTexture }, 0);
+            maskTexture = 0;
+        }
+        if (backgroundTexture != 0) {
+            GLES20.glDeleteTextures(1, new int[] { backgroundTexture }, 0);
+            backgroundTexture = 0;
+        }
+
+        // Upload the current mask and background again on the next attachment.
+        synchronized (this) {
+            maskChanged = true;
+            backgroundChanged = true;
+        }
+
+        super.onDetach();
+    }
+
+    private void uploadPendingInputs() {
+        synchronized (this) {
+            if (maskChanged) {
+                maskChanged = false;
+                hasMask = pendingMask != null;
+
+                if (hasMask) {
+                    if (maskTexture == 0) {
+                        maskTexture = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+                    }
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, maskTexture);
+                    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+                    pendingMask.rewind();
+                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE,
+                        pendingMaskWidth, pendingMaskHeight, 0,
+                        GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, pendingMask);
+                    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+                }
+            }
+
+            if (backgroundChanged) {
+                backgroundChanged = false;
+                hasBackground = pendingBackground != null;
+
+                if (hasBackground) {
+                    if (backgroundTexture == 0) {
+                        backgroundTexture = GlUtil.generateTexture(GLES20.GL_TEXTURE_2D);
+                    }
+                    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, backgroundTexture);
+                    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, pendingBackground, 0);
+                }
+            }
+        }
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    private static void bind(GlTextureFrameBuffer frameBuffer, int width, int height) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        GLES20.glViewport(0, 0, width, height);
+    }
+
+    private void blur(int texture, float stepX, float stepY) {
+        blurShader.useProgram();
+        setVertexAttribs(blurShader);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(blurShader.getUniformLocation("tex"), 0);
+        GLES20.glUniform2f(blurShader.getUniformLocation("step"), stepX, stepY);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    private void composite() {
+        compositeShader.useProgram();
+        setVertexAttribs(compositeShader);
+
+        bindTexture(compositeShader, "original", 0, originalFrameBuffer.getTextureId());
+        bindTexture(compositeShader, "blurred", 1, verticalFrameBuffer.getTextureId());
+        bindTexture(compositeShader, "mask", 2, hasMask ? maskTexture : 0);
+        bindTexture(compositeShader, "background", 3, hasBackground ? backgroundTexture : 0);
+        GLES20.glUniform1i(compositeShader.getUniformLocation("hasMask"), hasMask ? 1 : 0);
+        GLES20.glUniform1i(
+            compositeShader.getUniformLocation("hasBackground"), hasMask && hasBackground ? 1 : 0);
+        GLES20.glUniformMatrix3fv(
+            compositeShader.getUniformLocation("backgroundMatrix"), 1, false, getBackgroundMatrix(rotation), 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        for (int unit = 3; unit >= 0; unit--) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+    }
+
+    private static void bindTexture(GlShader shader, String name, int unit, int texture) {
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + unit);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glUniform1i(shader.getUniformLocation(name), unit);
+    }
+
+    private static void setVertexAttribs(GlShader shader) {
+        shader.setVertexAttribArray("in_pos", 2, FULL_RECTANGLE_BUFFER);
+        shader.setVertexAttribArray("in_tc", 2, FULL_RECTANGLE_TEXTURE_BUFFER);
+    }
+
+    /**
+     * Maps texture coordinates of the frame buffer to those of the upright
+     * background image, column-major. Rotating the buffer clockwise by
+     * {@code rotation} degrees gives the upright frame.
+     */
+    private static float[] getBackgroundMatrix(int rotation) {
+        switch (rotation) {
+            case 90:
+                // (s, t) -> (1 - t, s)
+                return new float[] { 0, 1, 0, -1, 0, 0, 1, 0, 1 };
+            case 180:
+                // (s, t) -> (1 - s, 1 - t)
+                return new float[] { -1, 0, 0, 0, -1, 0, 1, 1, 1 };
+            case 270:
+                // (s, t) -> (t, 1 - s)
+                return new float[] { 0, -1, 0, 1, 0, 0, 0, 1, 1 };
+            default:
+                return new float[] { 1, 0, 0, 0, 1, 0, 0, 0, 1 };
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.webrtc.GlTextureFrameBuffer;
+import org.webrtc.RendererCommon;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.TextureBufferImpl;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoFrameDrawer;
+import org.webrtc.YuvConverter;
+
+/**
+ * Base class for effects which render on the GPU. The input texture is drawn
+ * by {@link #draw} into a framebuffer whose texture becomes the output frame,
+ * so chained effects pass textures to each other without reading pixels back.
+ * Framebuffers are recycled once the frame rendered into them is released.
+ *
+ * Frames which are not {@code TextureBuffer}s are passed through unchanged.
+ * All methods are called on the thread the effects run on, the capture thread
+ * or the worker of an {@link AsyncVideoEffectProcessor}, with a GL context
+ * sharing textures with the capturer's current. GL resources are created
+ * lazily and released in {@link #onDetach}, the effect may then be attached
+ * again on another thread.
+ */
+public abstract class GlVideoFrameProcessor implements VideoFrameProcessor, VideoFrameProcessorLifecycle {
+    private final Deque<GlTextureFrameBuffer> freeFrameBuffers = new ArrayDeque<>();
+    private YuvConverter yuvConverter;
+
+    /**
+     * The handler of the thread the effect runs on, where the output frames
+     * are converted if needed and their framebuffers recycled.
+     */
+    private Handler handler;
+
+    /**
+     * Incremented on every detach, so framebuffers of output frames released
+     * afterwards aren't recycled into the pool of the next attachment.
+     */
+    private volatile int generation;
+
+    /**
+     * Draws the input into the currently bound framebuffer, the viewport is
+     * already set to {@code width} x {@code height}.
+     *
+     * @param input the texture to draw, its transform matrix applies
+     */
+    protected abstract void draw(VideoFrame.TextureBuffer input, int width, int height);
+
+    /**
+     * Draws the input texture as is with the given drawer, e.g. a
+     * {@code GlRectDrawer} or a {@code GlGenericDrawer} with a custom shader,
+     * taking care of its type and transform matrix.
+     */
+    protected static void drawInput(
+            RendererCommon.GlDrawer drawer, VideoFrame.TextureBuffer input, int width, int height) {
+        VideoFrameDrawer.drawTexture(drawer, input, new Matrix(), width, height, 0, 0, width, height);
+    }
+
+    @Override
+    public void onInit() {
+
+    }
+
+    /**
+     * Releases the GL resources of the effect. Subclasses releasing GL
+     * resources of their own must call through.
+     */
+    @Override
+    public void onDetach() {
+        generation++;
+
+        for (GlTextureFrameBuffer frameBuffer : freeFrameBuffers) {
+            frameBuffer.release();
+        }
+        freeFrameBuffers.clear();
+
+        if (yuvConverter != null) {
+            yuvConverter.release();
+            yuvConverter = null;
+        }
+        handler = null;
+    }
+
+    @Override
+    public void onRelease() {
+
+    }
+
+    @Override
+    public VideoFrame process(VideoFrame frame, SurfaceTextureHelper textureHelper) {
+        if (!(frame.getBuffer() instanceof VideoFrame.TextureBuffer)) {
+            return null;
+        }
+
+        VideoFrame.TextureBuffer input = (VideoFrame.TextureBuffer) frame.getBuffer();
+        int width = input.getWidth();
+        int height = input.getHeight();
+
+        GlTextureFrameBuffer frameBuffer = freeFrameBuffers.poll();
+        if (frameBuffer == null) {
+            frameBuffer = new GlTextureFrameBuffer(GLES20.GL_RGBA);
+        }
+        frameBuffer.setSize(width, height);
+
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        GLES20.glViewport(0, 0, width, height);
+        draw(input, width, height);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        if (yuvConverter == null) {
+            yuvConverter = new YuvConverter();
+            handler = new Handler(Looper.myLooper());
+        }
+
+        GlTextureFrameBuffer outputFrameBuffer = frameBuffer;
+        Handler outputHandler = handler;
+        int outputGeneration = generation;
+        VideoFrame.TextureBuffer output = new TextureBufferImpl(
+            width,
+            height,
+            VideoFrame.TextureBuffer.Type.RGB,
+            outputFrameBuffer.getTextureId(),
+            new Matrix(),
+            outputHandler,
+            yuvConverter,
+            // The encoder may hold on to the frame, recycle the framebuffer
+            // only once it's done with it.
+            () -> outputHandler.post(() -> recycle(outputFrameBuffer, outputGeneration)));
+
+        return new VideoFrame(output, frame.getRotation(), frame.getTimestampNs());
+    }
+
+    private void recycle(GlTextureFrameBuffer frameBuffer, int frameBufferGeneration) {
+        if (frameBufferGeneration != generation) {
+            frameBuffer.release();
+        } else {
+            freeFrameBuffers.push(frameBuffer);
+        }
+    }
+}
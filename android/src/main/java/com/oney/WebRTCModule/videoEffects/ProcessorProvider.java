@@ -1,37 +1,159 @@
 package com.oney.WebRTCModule.videoEffects;
 
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Manages VideoFrameProcessorFactoryInterfaces corresponding to name using hashmap, and provides
  * get, add and remove functionality.
+ *
+ * Processors are built once and pooled: a processor which is no longer applied to a track is
+ * handed back with {@link #recycleProcessor} and reused by the next {@link #getProcessor} for
+ * the same name, so toggling an effect doesn't build it again. It is safe to use from any
+ * thread.
  */
 public class ProcessorProvider {
-    private static Map<String, VideoFrameProcessorFactoryInterface> methodMap = new HashMap<String, VideoFrameProcessorFactoryInterface>();
-    
+    private static final String TAG = ProcessorProvider.class.getSimpleName();
+
+    private static final Map<String, VideoFrameProcessorFactoryInterface> methodMap = new HashMap<>();
+
+    /**
+     * The built processors which are not in use, by name.
+     */
+    private static final Map<String, Deque<VideoFrameProcessor>> idleProcessors = new HashMap<>();
+
+    /**
+     * The factory which built each processor, in use or not.
+     */
+    private static final Map<VideoFrameProcessor, VideoFrameProcessorFactoryInterface> owners =
+        new IdentityHashMap<>();
+
     public static VideoFrameProcessor getProcessor(String name) {
-        if (methodMap.containsKey(name)) {
-            return methodMap.get(name).build();
-        } else{
+        VideoFrameProcessorFactoryInterface factory;
+
+        synchronized (ProcessorProvider.class) {
+            factory = methodMap.get(name);
+            if (factory == null) {
+                return null;
+            }
+
+            Deque<VideoFrameProcessor> idle = idleProcessors.get(name);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+
+        VideoFrameProcessor processor = factory.build();
+        if (processor == null) {
             return null;
-        } 
+        }
+
+        if (processor instanceof VideoFrameProcessorLifecycle) {
+            ((VideoFrameProcessorLifecycle) processor).onInit();
+        }
+
+        synchronized (ProcessorProvider.class) {
+            owners.put(processor, factory);
+        }
+
+        return processor;
+    }
+
+    /**
+     * Hands back a processor obtained from {@link #getProcessor} once it's no longer applied to
+     * a track, and detached. It is released if its factory was removed or replaced meanwhile.
+     * Processors which were not built by the provider are ignored.
+     */
+    public static void recycleProcessor(VideoFrameProcessor processor) {
+        synchronized (ProcessorProvider.class) {
+            VideoFrameProcessorFactoryInterface factory = owners.get(processor);
+            if (factory == null) {
+                return;
+            }
+
+            for (Map.Entry<String, VideoFrameProcessorFactoryInterface> entry : methodMap.entrySet()) {
+                if (entry.getValue() == factory) {
+                    Deque<VideoFrameProcessor> idle = idleProcessors.get(entry.getKey());
+                    if (idle == null) {
+                        idle = new ArrayDeque<>();
+                        idleProcessors.put(entry.getKey(), idle);
+                    }
+                    idle.push(processor);
+                    return;
+                }
+            }
+
+            owners.remove(processor);
+        }
+
+        release(processor);
     }
 
     public static void addProcessor(String name,
             VideoFrameProcessorFactoryInterface videoFrameProcessorFactoryInterface) {
         if (name != null && videoFrameProcessorFactoryInterface != null) {
-            methodMap.put(name, videoFrameProcessorFactoryInterface);
+            List<VideoFrameProcessor> released;
+
+            synchronized (ProcessorProvider.class) {
+                methodMap.put(name, videoFrameProcessorFactoryInterface);
+                released = removeIdleProcessors(name);
+            }
+
+            release(released);
         } else{
              throw new NullPointerException("Name or VideoFrameProcessorFactry can not be null");
         }
     }
 
     public static void removeProcessor(String name) {
-        if (name != null && methodMap.containsKey(name)) {
-            methodMap.remove(name);
-        } else{
-            throw new RuntimeException("VideoFrameProcessorFactry with " + name + " does not exist");
+        List<VideoFrameProcessor> released;
+
+        synchronized (ProcessorProvider.class) {
+            if (name != null && methodMap.containsKey(name)) {
+                methodMap.remove(name);
+                released = removeIdleProcessors(name);
+            } else{
+                throw new RuntimeException("VideoFrameProcessorFactry with " + name + " does not exist");
+            }
+        }
+
+        release(released);
+    }
+
+    private static List<VideoFrameProcessor> removeIdleProcessors(String name) {
+        List<VideoFrameProcessor> removed = new ArrayList<>();
+        Deque<VideoFrameProcessor> idle = idleProcessors.remove(name);
+
+        if (idle != null) {
+            for (VideoFrameProcessor processor : idle) {
+                owners.remove(processor);
+                removed.add(processor);
+            }
+        }
+
+        return removed;
+    }
+
+    private static void release(List<VideoFrameProcessor> processors) {
+        for (VideoFrameProcessor processor : processors) {
+            release(processor);
+        }
+    }
+
+    private static void release(VideoFrameProcessor processor) {
+        if (processor instanceof VideoFrameProcessorLifecycle) {
+            try {
+                ((VideoFrameProcessorLifecycle) processor).onRelease();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to release processor", e);
+            }
         }
     }
 }
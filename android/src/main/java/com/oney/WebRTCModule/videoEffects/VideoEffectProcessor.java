@@ -1,5 +1,10 @@
 package com.oney.WebRTCModule.videoEffects;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoProcessor;
@@ -8,15 +13,33 @@ import org.webrtc.VideoSink;
 /**
  * Lightweight abstraction for an object that can receive video frames, process and add effects in
  * them, and pass them on to another object.
+ *
+ * The effects are applied as a chain, in order, each one receiving the output of the previous one.
+ * All of them run on the capture thread, where the frames are {@code TextureBuffer}s on the
+ * {@code SurfaceTextureHelper}'s GL context, so stages which stay on the GPU (see
+ * {@link GlVideoFrameProcessor}) hand textures to each other without any readback. See
+ * {@link AsyncVideoEffectProcessor} for running slow effects off the capture thread.
  */
 public class VideoEffectProcessor implements VideoProcessor {
     private VideoSink mSink;
-    final private SurfaceTextureHelper textureHelper;
-    final private VideoFrameProcessor videoFrameProcessor;
+    final protected SurfaceTextureHelper textureHelper;
+    final protected List<VideoFrameProcessor> videoFrameProcessors;
+
+    /**
+     * The number of frames which went through the effects, which were dropped
+     * and which were passed on without the effects.
+     */
+    final protected AtomicLong processedFrames = new AtomicLong();
+    final protected AtomicLong droppedFrames = new AtomicLong();
+    final protected AtomicLong bypassedFrames = new AtomicLong();
 
     public VideoEffectProcessor(VideoFrameProcessor processor, SurfaceTextureHelper textureHelper) {
+        this(Collections.singletonList(processor), textureHelper);
+    }
+
+    public VideoEffectProcessor(List<VideoFrameProcessor> processors, SurfaceTextureHelper textureHelper) {
         this.textureHelper = textureHelper;
-        this.videoFrameProcessor = processor;
+        this.videoFrameProcessors = new ArrayList<>(processors);
     }
 
     @Override
@@ -34,24 +57,75 @@ public class VideoEffectProcessor implements VideoProcessor {
         mSink = sink;
     }
 
+    protected VideoSink getSink() {
+        return mSink;
+    }
+
+    /**
+     * Returns the number of frames processed, dropped and bypassed so far.
+     */
+    public long[] getCounters() {
+        return new long[] { processedFrames.get(), droppedFrames.get(), bypassedFrames.get() };
+    }
+
+    /**
+     * Releases the effects, on the capture thread. The processor must not be
+     * used afterwards.
+     */
+    public void release() {
+        textureHelper.getHandler().post(this::releaseEffects);
+    }
+
+    /**
+     * Detaches the effects, on the thread they run on, and hands them back to
+     * {@link ProcessorProvider} for reuse.
+     */
+    protected void releaseEffects() {
+        for (VideoFrameProcessor processor : videoFrameProcessors) {
+            if (processor instanceof VideoFrameProcessorLifecycle) {
+                ((VideoFrameProcessorLifecycle) processor).onDetach();
+            }
+            ProcessorProvider.recycleProcessor(processor);
+        }
+    }
+
     /**
      * Called just after the frame is captured.
-     * Will process the VideoFrame with the help of VideoFrameProcessor and send the processed
-     * VideoFrame back to webrtc using onFrame method in VideoSink.
+     * Will process the VideoFrame with each VideoFrameProcessor in turn and send the processed
+     * VideoFrame back to webrtc using onFrame method in VideoSink. A processor returning
+     * {@code null} is skipped.
      * @param frame raw VideoFrame received from webrtc.
      */
     @Override
     public void onFrameCaptured(VideoFrame frame) {
-        frame.retain();
-        VideoFrame outputFrame = videoFrameProcessor.process(frame, textureHelper);
+        VideoFrame outputFrame = applyEffects(frame);
 
-        if (outputFrame == null) {
-            mSink.onFrame(frame);
-            frame.release();
-            return;
-        }
         mSink.onFrame(outputFrame);
         outputFrame.release();
-        frame.release();
+    }
+
+    /**
+     * Runs the chain of effects over a frame.
+     *
+     * @return the resulting frame, which the caller is responsible for
+     * releasing
+     */
+    protected VideoFrame applyEffects(VideoFrame frame) {
+        frame.retain();
+        VideoFrame currentFrame = frame;
+
+        for (VideoFrameProcessor processor : videoFrameProcessors) {
+            VideoFrame outputFrame = processor.process(currentFrame, textureHelper);
+
+            if (outputFrame != null && outputFrame != currentFrame) {
+                // The intermediate frame was consumed by this stage.
+                currentFrame.release();
+                currentFrame = outputFrame;
+            }
+        }
+
+        processedFrames.incrementAndGet();
+
+        return currentFrame;
     }
 }
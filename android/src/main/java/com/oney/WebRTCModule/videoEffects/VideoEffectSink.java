@@ -0,0 +1,145 @@
+package com.oney.WebRTCModule.videoEffects;
+
+import android.os.Handler;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+
+/**
+ * Sits between a remote video track and its local renderers so effects can be
+ * applied to the received frames before they are rendered.
+ *
+ * Renderers add themselves to the sink instead of the track. The sink only
+ * attaches to the track while it has renderers, and passes the frames through
+ * directly while it has no effects. Effects run on the thread of a
+ * {@code SurfaceTextureHelper} which may be shared by several sinks, as the
+ * decoder's thread must not be held up. A frame arriving while the previous
+ * one is still being processed is dropped.
+ */
+public class VideoEffectSink implements VideoSink {
+    private final VideoTrack videoTrack;
+    private final List<VideoSink> sinks = new CopyOnWriteArrayList<>();
+    private final AtomicInteger pendingFrames = new AtomicInteger();
+
+    private volatile VideoEffectProcessor videoEffectProcessor;
+    private volatile Handler handler;
+    private boolean attached;
+    private boolean disposed;
+
+    public VideoEffectSink(VideoTrack videoTrack) {
+        this.videoTrack = videoTrack;
+    }
+
+    public synchronized void addSink(VideoSink sink) {
+        if (disposed) {
+            return;
+        }
+
+        sinks.add(sink);
+
+        if (!attached) {
+            videoTrack.addSink(this);
+            attached = true;
+        }
+    }
+
+    public synchronized void removeSink(VideoSink sink) {
+        sinks.remove(sink);
+
+        if (attached && sinks.isEmpty()) {
+            videoTrack.removeSink(this);
+            attached = false;
+        }
+    }
+
+    /**
+     * Sets the effects applied to the frames, {@code null} to remove them. The
+     * previous ones are released.
+     *
+     * @param textureHelper the helper {@code videoEffectProcessor} was created
+     * with, the effects run on its thread
+     */
+    public synchronized void setVideoEffectProcessor(
+            VideoEffectProcessor videoEffectProcessor, SurfaceTextureHelper textureHelper) {
+        VideoEffectProcessor previous = this.videoEffectProcessor;
+
+        if (videoEffectProcessor != null) {
+            videoEffectProcessor.setSink(this::deliver);
+            handler = textureHelper.getHandler();
+        }
+        this.videoEffectProcessor = videoEffectProcessor;
+
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    public VideoEffectProcessor getVideoEffectProcessor() {
+        return videoEffectProcessor;
+    }
+
+    /**
+     * Detaches from the track and releases the effects. Called when the track
+     * is gone, before it is disposed.
+     */
+    public synchronized void dispose() {
+        disposed = true;
+
+        if (attached) {
+            try {
+                videoTrack.removeSink(this);
+            } catch (Throwable tr) {
+                // The track may already be disposed.
+            }
+            attached = false;
+        }
+        sinks.clear();
+
+        if (videoEffectProcessor != null) {
+            videoEffectProcessor.release();
+            videoEffectProcessor = null;
+        }
+    }
+
+    @Override
+    public void onFrame(VideoFrame frame) {
+        VideoEffectProcessor processor = videoEffectProcessor;
+
+        if (processor == null) {
+            deliver(frame);
+            return;
+        }
+
+        if (pendingFrames.incrementAndGet() > 1) {
+            pendingFrames.decrementAndGet();
+            processor.droppedFrames.incrementAndGet();
+            return;
+        }
+
+        frame.retain();
+        handler.post(() -> {
+            // The effects may have been changed or removed meanwhile.
+            VideoEffectProcessor currentProcessor = videoEffectProcessor;
+            if (currentProcessor != null) {
+                currentProcessor.onFrameCaptured(frame);
+            } else {
+                deliver(frame);
+            }
+
+            frame.release();
+            pendingFrames.decrementAndGet();
+        });
+    }
+
+    private void deliver(VideoFrame frame) {
+        for (VideoSink sink : sinks) {
+            sink.onFrame(frame);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.oney.WebRTCModule.videoEffects;
+
+/**
+ * Optional lifecycle callbacks for a VideoFrameProcessor.
+ *
+ * Processors built through {@link ProcessorProvider} are kept and reused when
+ * the effect is toggled, so expensive state, e.g. a model, should be loaded
+ * once in {@link #onInit} and only released in {@link #onRelease}.
+ */
+public interface VideoFrameProcessorLifecycle {
+    /**
+     * Called once, after the processor is built and before it processes any
+     * frame.
+     */
+    public void onInit();
+
+    /**
+     * Called when the processor is removed from a track, on the thread it
+     * processed frames on. Resources tied to that thread, e.g. GL objects,
+     * must be released here. The processor may be used again afterwards,
+     * possibly on another thread.
+     */
+    public void onDetach();
+
+    /**
+     * Called once the processor will not be used anymore, e.g. when its
+     * factory is removed from {@link ProcessorProvider}.
+     */
+    public void onRelease();
+}
@@ -0,0 +1,28 @@
+import RTCEvent from './RTCEvent';
+
+/**
+ * Non-standard event dispatched by {@code mediaDevices} when the camera
+ * capture feeding a local video track stalls ('capturestalled') and when it
+ * recovers or recovery is given up on ('capturerecovered').
+ */
+export default class CaptureStallEvent extends RTCEvent {
+    readonly trackId: string;
+    readonly recovered: boolean;
+    readonly stallDurationMs: number;
+    readonly recoveryDurationMs: number;
+    readonly attempts: number;
+    constructor(type: string, eventInitDict: {
+        trackId: string,
+        recovered?: boolean,
+        stallDurationMs?: number,
+        recoveryDurationMs?: number,
+        attempts?: number
+    }) {
+        super(type);
+        this.trackId = eventInitDict.trackId;
+        this.recovered = Boolean(eventInitDict.recovered);
+        this.stallDurationMs = eventInitDict.stallDurationMs || 0;
+        this.recoveryDurationMs = eventInitDict.recoveryDurationMs || 0;
+        this.attempts = eventInitDict.attempts || 0;
+    }
+}
@@ -2,14 +2,30 @@
 import { defineCustomEventTarget } from 'event-target-shim';
 import { NativeModules } from 'react-native';
 
-import getDisplayMedia from './getDisplayMedia';
+import CaptureStallEvent from './CaptureStallEvent';
+import { addListener } from './EventEmitter';
+import getDisplayMedia, { DisplayMediaOptions } from './getDisplayMedia';
 import getUserMedia from './getUserMedia';
+import permissions from './Permissions';
+import * as RTCUtil from './RTCUtil';
 
 const { WebRTCModule } = NativeModules;
 
-const MEDIA_DEVICES_EVENTS = [ 'devicechange' ];
+const MEDIA_DEVICES_EVENTS = [ 'devicechange', 'capturestalled', 'capturerecovered' ];
 
 class MediaDevices extends defineCustomEventTarget(...MEDIA_DEVICES_EVENTS) {
+    constructor() {
+        super();
+
+        // Non-standard camera stall reporting, see CaptureStallEvent.
+        addListener(this, 'mediaStreamTrackCaptureStalled', (ev: any) => {
+            this.dispatchEvent(new CaptureStallEvent('capturestalled', ev));
+        });
+        addListener(this, 'mediaStreamTrackCaptureRecovered', (ev: any) => {
+            this.dispatchEvent(new CaptureStallEvent('capturerecovered', ev));
+        });
+    }
+
     /**
      * W3C "Media Capture and Streams" compatible {@code enumerateDevices}
      * implementation.
@@ -22,10 +38,14 @@ class MediaDevices extends defineCustomEventTarget(...MEDIA_DEVICES_EVENTS) {
      * W3C "Screen Capture" compatible {@code getDisplayMedia} implementation.
      * See: https://w3c.github.io/mediacapture-screen-share/
      *
+     * On Android, {@code video} may specify a region of the screen to capture
+     * and a maximum size for it.
+     *
+     * @param {*} options
      * @returns {Promise}
      */
-    getDisplayMedia() {
-        return getDisplayMedia();
+    getDisplayMedia(options?: DisplayMediaOptions) {
+        return getDisplayMedia(options);
     }
 
     /**
@@ -39,6 +59,44 @@ class MediaDevices extends defineCustomEventTarget(...MEDIA_DEVICES_EVENTS) {
     getUserMedia(constraints) {
         return getUserMedia(constraints);
     }
+
+    /**
+     * Non-standard API which opens the camera ahead of time, for example while
+     * a call is ringing. A following {@code getUserMedia} call with the same
+     * video constraints adopts the already running camera, which cuts its
+     * time to first frame. The camera is released if it's not adopted within
+     * {@code idleTimeoutMs}.
+     *
+     * Only available on Android.
+     *
+     * @param {*} videoConstraints the video constraints the camera will be
+     * requested with.
+     * @param {number} idleTimeoutMs how long to keep the camera open, 0 for the default.
+     * @returns {Promise}
+     */
+    async prewarmCamera(videoConstraints: boolean | object = true, idleTimeoutMs = 0): Promise<void> {
+        const { video } = RTCUtil.normalizeConstraints({ video: videoConstraints });
+
+        if (!video) {
+            return;
+        }
+
+        const granted = await permissions.request({ name: 'camera' });
+
+        if (!granted) {
+            throw new Error('Permission denied.');
+        }
+
+        await WebRTCModule.prewarmCamera(video, idleTimeoutMs);
+    }
+
+    /**
+     * Releases the camera opened by {@link prewarmCamera}, if it wasn't
+     * adopted by {@code getUserMedia} yet.
+     */
+    releasePrewarmedCamera(): void {
+        WebRTCModule.releasePrewarmedCamera();
+    }
 }
 
 export default new MediaDevices();
@@ -1,6 +1,6 @@
 
 import { defineCustomEventTarget, Event } from 'event-target-shim';
-import { NativeModules } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
 
 import { deepClone } from './RTCUtil';
 
@@ -70,8 +70,17 @@ class MediaStreamTrack extends defineCustomEventTarget(...MEDIA_STREAM_TRACK_EVE
      *
      * This is how the reference application (AppRTCMobile) implements camera
      * switching.
+     *
+     * On Android a specific camera can be switched to directly, by the
+     * deviceId reported by {@code enumerateDevices}, and the promise resolves
+     * once the switch is done, with the time it took.
+     *
+     * @param deviceId The camera to switch to, by default the first camera
+     * facing the other way. Only supported on Android.
      */
-    _switchCamera(): void {
+    _switchCamera(
+        deviceId?: string
+    ): Promise<{ deviceId: string, facingMode: string, switchLatencyMs: number } | void> {
         if (this.remote) {
             throw new Error('Not implemented for remote tracks');
         }
@@ -80,11 +89,33 @@ class MediaStreamTrack extends defineCustomEventTarget(...MEDIA_STREAM_TRACK_EVE
             throw new Error('Only implemented for video tracks');
         }
 
+        if (Platform.OS === 'android') {
+            return WebRTCModule.mediaStreamTrackSwitchCamera(this.id, typeof deviceId === 'string' ? deviceId : null);
+        }
+
         WebRTCModule.mediaStreamTrackSwitchCamera(this.id);
+
+        return Promise.resolve();
     }
 
-    _setVideoEffect(name:string) {
-        if (this.remote) {
+    /**
+     * Private / custom API for applying video effects registered natively
+     * through {@code ProcessorProvider}. A list of names is applied as a chain,
+     * in order. Passing null removes the effects.
+     *
+     * On Android, effects can also be applied to remote tracks, for their
+     * local rendering only.
+     *
+     * Lists of effects and options are only supported on Android. With
+     * {@code async} the effects run on a worker thread: at most
+     * {@code maxQueueSize} frames wait for it, the oldest being dropped, and
+     * frames not done within {@code deadlineMs} are sent without the effects.
+     */
+    _setVideoEffect(
+        name: string | string[] | null,
+        options: { async?: boolean, maxQueueSize?: number, deadlineMs?: number } = {}
+    ) {
+        if (this.remote && Platform.OS !== 'android') {
             throw new Error('Not implemented for remote tracks');
         }
 
@@ -92,7 +123,46 @@ class MediaStreamTrack extends defineCustomEventTarget(...MEDIA_STREAM_TRACK_EVE
             throw new Error('Only implemented for video tracks');
         }
 
-        WebRTCModule.mediaStreamTrackSetVideoEffect(this.id, name);
+        if (Platform.OS === 'android') {
+            WebRTCModule.mediaStreamTrackSetVideoEffect(this.id, name, options);
+        } else {
+            WebRTCModule.mediaStreamTrackSetVideoEffect(this.id, name);
+        }
+    }
+
+    /**
+     * Private / custom API for the frame counters of the video effects of the
+     * track: how many frames went through them, were dropped, and were sent
+     * without them because the deadline passed.
+     *
+     * Only available on Android.
+     */
+    _getVideoEffectStats(): Promise<{ processed: number, dropped: number, bypassed: number }> {
+        return WebRTCModule.mediaStreamTrackGetVideoEffectStats(this.id);
+    }
+
+    /**
+     * Private / custom API for taking a still snapshot of the next frame of a
+     * video track. The frame is scaled on the GPU and encoded natively, the
+     * result is written to a file instead of being sent over the bridge.
+     *
+     * Only available on Android.
+     *
+     * @param maxWidth Maximum width of the snapshot, 0 to keep the frame's width.
+     * @param options The image format ('jpeg' or 'webp') and quality (0-100).
+     * @returns The path and dimensions of the written image. The file is the
+     * caller's to delete; any left over are deleted on the next app start or
+     * reload.
+     */
+    _captureFrame(
+        maxWidth = 0,
+        options: { format?: 'jpeg' | 'webp', quality?: number } = {}
+    ): Promise<{ path: string, width: number, height: number }> {
+        if (this.kind !== 'video') {
+            throw new Error('Only implemented for video tracks');
+        }
+
+        return WebRTCModule.mediaStreamTrackCaptureFrame(this.id, maxWidth, options);
     }
 
     /**
@@ -0,0 +1,57 @@
+import { requireNativeComponent, ViewProps } from 'react-native';
+
+/**
+ * Renders multiple streams into a single native surface. Each stream gets a
+ * tile of the grid and all tiles are composited on one render thread, so the
+ * cost stays constant as the number of participants grows.
+ *
+ * Only available on Android.
+ */
+
+interface RTCVideoGridViewProps extends ViewProps {
+  /**
+   * The number of columns of the grid. When 0 or not specified, the smallest
+   * square grid which fits all the streams is used.
+   *
+   * columns: number
+   */
+  columns?: number;
+
+  /**
+   * The maximum frame rate at which each tile is redrawn. Tiles are capped
+   * independently of each other. 0 means uncapped.
+   *
+   * maxFrameRate: number
+   */
+  maxFrameRate?: number;
+
+  /**
+   * Indicates whether the videos should be mirrored during rendering.
+   *
+   * mirror: boolean
+   */
+  mirror?: boolean;
+
+  /**
+   * Resembles the CSS style object-fit, applied to every tile.
+   *
+   * objectFit: 'contain' | 'cover'
+   */
+  objectFit?: 'contain' | 'cover';
+
+  /**
+   * The spacing between tiles, in pixels.
+   *
+   * spacing: number
+   */
+  spacing?: number;
+
+  /**
+   * URLs / ids of the streams that should be rendered, in layout order.
+   *
+   * streamURLs: string[]
+   */
+  streamURLs: string[];
+}
+
+export default requireNativeComponent<RTCVideoGridViewProps>('RTCVideoGridView');
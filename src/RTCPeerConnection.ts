@@ -1,6 +1,6 @@
 
 import { defineCustomEventTarget } from 'event-target-shim';
-import { NativeModules } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
 
 import { addListener, removeListener } from './EventEmitter';
 import Logger from './Logger';
@@ -73,6 +73,7 @@ export default class RTCPeerConnection extends defineCustomEventTarget(...PEER_C
     _pcId: number;
     _transceivers: { order: number, transceiver: RTCRtpTransceiver }[] = [];
     _remoteStreams: Map<string, MediaStream> = new Map<string, MediaStream>();
+    _lastCreatedDescription: RTCSessionDescriptionInit | null = null;
 
     constructor(configuration) {
         super();
@@ -95,6 +96,7 @@ export default class RTCPeerConnection extends defineCustomEventTarget(...PEER_C
                         log.debug(`${this._pcId} createOffer OK`);
 
                         this._updateTransceivers(data.transceiversInfo);
+                        this._lastCreatedDescription = data.sdpInfo;
                         resolve(data.sdpInfo);
                     } else {
                         log.debug(`${this._pcId} createOffer ERROR`);
@@ -118,6 +120,7 @@ export default class RTCPeerConnection extends defineCustomEventTarget(...PEER_C
                         log.debug(`${this._pcId} createAnswer OK`);
 
                         this._updateTransceivers(data.transceiversInfo);
+                        this._lastCreatedDescription = data.sdpInfo;
                         resolve(data.sdpInfo);
                     } else {
                         log.debug(`${this._pcId} createAnswer ERROR`);
@@ -151,17 +154,67 @@ export default class RTCPeerConnection extends defineCustomEventTarget(...PEER_C
             desc = null;
         }
 
+        // On Android the description last created is kept natively, it
+        // doesn't need to be sent back unless it was modified.
+        const lastCreated = this._lastCreatedDescription;
+        const nativeDesc = Platform.OS === 'android' && desc && lastCreated
+            && desc.type === lastCreated.type && desc.sdp === lastCreated.sdp
+            ? { type: desc.type, lastCreated: true }
+            : desc;
+
         const {
             sdpInfo,
             transceiversInfo
-        } = await WebRTCModule.peerConnectionSetLocalDescription(this._pcId, desc);
+        } = await WebRTCModule.peerConnectionSetLocalDescription(this._pcId, nativeDesc);
 
-        this.localDescription = new RTCSessionDescription(sdpInfo);
+        // The SDP is omitted when it is the one given.
+        this.localDescription = new RTCSessionDescription({
+            type: sdpInfo.type,
+            sdp: sdpInfo.sdp ?? desc?.sdp ?? ''
+        });
         this._updateTransceivers(transceiversInfo);
 
         log.debug(`${this._pcId} setLocalDescription OK`);
     }
 
+    /**
+     * Private / custom API for signaling which doesn't trickle candidates:
+     * creates an offer or an answer, sets it as the local description and
+     * waits for ICE gathering to complete, natively, in one call. The SDP rules
+     * and codec preferences apply as with `createOffer` and `createAnswer`.
+     *
+     * Resolves with the local description, including the gathered candidates.
+     * If gathering doesn't complete within `timeoutMs` (10 s by default, 0 for
+     * no timeout), it includes the candidates gathered so far.
+     *
+     * Only available on Android.
+     */
+    async _negotiateLocal(
+        type: 'offer' | 'answer',
+        options: { offerOptions?: object, waitForGathering?: boolean, timeoutMs?: number } = {}
+    ): Promise<RTCSessionDescription> {
+        log.debug(`${this._pcId} negotiateLocal ${type}`);
+
+        if (Platform.OS !== 'android') {
+            throw new Error('Not implemented');
+        }
+
+        const {
+            sdpInfo,
+            transceiversInfo
+        } = await WebRTCModule.peerConnectionNegotiateLocal(this._pcId, type, {
+            ...options,
+            offerOptions: type === 'offer' ? RTCUtil.normalizeOfferOptions(options.offerOptions) : undefined
+        });
+
+        this.localDescription = new RTCSessionDescription(sdpInfo);
+        this._updateTransceivers(transceiversInfo);
+
+        log.debug(`${this._pcId} negotiateLocal OK`);
+
+        return this.localDescription;
+    }
+
     setRemoteDescription(sessionDescription: RTCSessionDescription | RTCSessionDescriptionInit): Promise<void> {
         log.debug(`${this._pcId} setRemoteDescription`);
 
@@ -396,6 +449,48 @@ export default class RTCPeerConnection extends defineCustomEventTarget(...PEER_C
         );
     }
 
+    /**
+     * Private / custom API for shaping the descriptions created by
+     * `createOffer` and `createAnswer` natively, instead of munging their SDP.
+     * For each media kind, `codecs` are the preferred codecs, applied like
+     * `RTCRtpTransceiver.setCodecPreferences` to the transceivers which have
+     * none, and `maxBitrate` the bitrate in bps the remote side is asked not to
+     * exceed. A kind left out has no rules.
+     *
+     * Only available on Android.
+     */
+    _setSdpRules(rules: {
+        audio?: { codecs?: { mimeType: string, sdpFmtpLine?: string }[], maxBitrate?: number },
+        video?: { codecs?: { mimeType: string, sdpFmtpLine?: string }[], maxBitrate?: number }
+    }): void {
+        if (Platform.OS !== 'android') {
+            throw new Error('Not implemented');
+        }
+
+        WebRTCModule.peerConnectionSetSdpRules(this._pcId, rules);
+    }
+
+    /**
+     * Private / custom API for the codec implementation each video stream
+     * actually uses, as the stats report it, and whether it is a hardware
+     * codec. Streams which haven't encoded or decoded a frame yet are omitted.
+     *
+     * Only available on Android.
+     */
+    async _getCodecImplementations(): Promise<{
+        direction: 'inbound' | 'outbound',
+        trackId: string | null,
+        mimeType: string | null,
+        implementation: string,
+        hardware: boolean
+    }[]> {
+        if (Platform.OS !== 'android') {
+            throw new Error('Not implemented');
+        }
+
+        return WebRTCModule.peerConnectionGetCodecImplementations(this._pcId);
+    }
+
     getTransceivers(): RTCRtpTransceiver[] {
         return this._transceivers.map(e => e.transceiver);
     }
@@ -592,8 +687,13 @@ export default class RTCPeerConnection extends defineCustomEventTarget(...PEER_C
 
             this.iceGatheringState = ev.iceGatheringState;
 
-            if (this.iceGatheringState === 'complete') {
+            // The description is left out when _negotiateLocal resolves with
+            // it instead.
+            if (this.iceGatheringState === 'complete' && ev.sdp) {
                 this.localDescription = new RTCSessionDescription(ev.sdp);
+            }
+
+            if (this.iceGatheringState === 'complete') {
                 // @ts-ignore
                 this.dispatchEvent(new RTCIceCandidateEvent('icecandidate', { candidate: null }));
             }
@@ -1,4 +1,4 @@
-import { NativeModules } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
 
 import RTCRtpReceiver from './RTCRtpReceiver';
 import RTCRtpSender from './RTCRtpSender';
@@ -88,6 +88,34 @@ export default class RTCRtpTransceiver {
         return this._receiver;
     }
 
+    /**
+     * Sets the codecs to negotiate, in order of preference, an empty list
+     * restoring the default ones. The retransmission and FEC codecs are kept
+     * for the codecs listed unless listed themselves. Applied to the next
+     * offer or answer.
+     *
+     * Only implemented on Android, where the codecs are applied to the SDP
+     * created natively, as this WebRTC version doesn't expose codec
+     * preferences.
+     */
+    setCodecPreferences(codecs: { mimeType: string, sdpFmtpLine?: string }[]) {
+        if (Platform.OS !== 'android') {
+            throw new Error('Not implemented');
+        }
+
+        if (this._stopped) {
+            throw new Error('Transceiver Stopped');
+        }
+
+        WebRTCModule.transceiverSetCodecPreferences(
+            this._peerConnectionId,
+            this.id,
+            codecs.map(codec => (codec.sdpFmtpLine === undefined
+                ? { mimeType: codec.mimeType }
+                : { mimeType: codec.mimeType, sdpFmtpLine: codec.sdpFmtpLine }))
+        );
+    }
+
     stop() {
         if (this._stopped) {
             return;
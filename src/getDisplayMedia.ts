@@ -1,14 +1,39 @@
 
-import { NativeModules } from 'react-native';
+import { NativeModules, Platform } from 'react-native';
 
 import MediaStream from './MediaStream';
 import MediaStreamError from './MediaStreamError';
 
 const { WebRTCModule } = NativeModules;
 
-export default function getDisplayMedia(): Promise<MediaStream> {
+export interface DisplayMediaOptions {
+    video?: boolean | {
+        /**
+         * The region of the screen to capture, in physical pixels of the
+         * display in its current orientation. Only supported on Android.
+         */
+        region?: { x?: number, y?: number, width?: number, height?: number },
+
+        /**
+         * The maximum size of the captured region, regardless of orientation.
+         * Only supported on Android.
+         */
+        maxWidth?: number,
+        maxHeight?: number
+    };
+}
+
+export default function getDisplayMedia(options: DisplayMediaOptions = {}): Promise<MediaStream> {
     return new Promise((resolve, reject) => {
-        WebRTCModule.getDisplayMedia().then(
+        let promise;
+
+        if (Platform.OS === 'android') {
+            promise = WebRTCModule.getDisplayMedia(typeof options.video === 'object' ? options.video : {});
+        } else {
+            promise = WebRTCModule.getDisplayMedia();
+        }
+
+        promise.then(
             data => {
                 const { streamId, track } = data;
 
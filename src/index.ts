@@ -5,6 +5,7 @@ import MediaStreamTrack from './MediaStreamTrack';
 import MediaStreamTrackEvent from './MediaStreamTrackEvent';
 import permissions from './Permissions';
 import RTCErrorEvent from './RTCErrorEvent';
+import RTCGridView from './RTCGridView';
 import RTCIceCandidate from './RTCIceCandidate';
 import RTCPeerConnection from './RTCPeerConnection';
 import RTCRtpReceiver from './RTCRtpReceiver';
@@ -15,6 +16,8 @@ import RTCView from './RTCView';
 import ScreenCapturePickerView from './ScreenCapturePickerView';
 
 import { getRawMedia, sendRawFrame } from './RawMedia';
+import preload from './preload';
+import prewarmPeerConnections from './prewarmPeerConnections';
 
 Logger.enable('*');
 // Logger.enable(`*,-${Logger.ROOT_PREFIX}:*:DEBUG`);
@@ -24,6 +27,7 @@ export {
     RTCPeerConnection,
     RTCSessionDescription,
     RTCView,
+    RTCGridView,
     ScreenCapturePickerView,
     RTCRtpTransceiver,
     RTCRtpReceiver,
@@ -36,6 +40,8 @@ export {
     registerGlobals,
     getRawMedia,
     sendRawFrame,
+    preload,
+    prewarmPeerConnections,
 };
 
 declare const global: any;
@@ -0,0 +1,34 @@
+import { NativeModules, Platform } from 'react-native';
+
+const { WebRTCModule } = NativeModules;
+
+/**
+ * The time taken by each step of the native initialization, in milliseconds.
+ * The factory is shared across reloads, when it was reused the times of its
+ * creation are those of the first initialization.
+ */
+export type PreloadTiming = {
+    reusedFactory: boolean;
+    initializeMs: number;
+    videoFactoriesMs: number;
+    audioDeviceModuleMs: number;
+    peerConnectionFactoryMs: number;
+    factoryMs: number;
+    mediaDevicesMs: number;
+    totalMs: number;
+};
+
+/**
+ * Starts the native initialization ahead of the first use of the WebRTC APIs,
+ * which otherwise triggers it, e.g. while the user is on the screen preceding a
+ * call. Calls made before it completes are queued.
+ *
+ * Only has an effect on Android, resolves with null on other platforms.
+ */
+export default function preload(): Promise<PreloadTiming | null> {
+    if (Platform.OS === 'android') {
+        return WebRTCModule.preload();
+    }
+
+    return Promise.resolve(null);
+}
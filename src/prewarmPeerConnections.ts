@@ -0,0 +1,24 @@
+import { NativeModules, Platform } from 'react-native';
+
+const { WebRTCModule } = NativeModules;
+
+/**
+ * Creates peer connections for the given configuration ahead of time, e.g.
+ * while a call is ringing, which the next `RTCPeerConnection`s constructed with
+ * an equal configuration then use. When the configuration has an
+ * `iceCandidatePoolSize`, they also gather their ICE candidates meanwhile so
+ * the first offer doesn't wait for them.
+ *
+ * Each connection used is replaced in the background. Connections left unused
+ * for a minute are closed and not replaced.
+ *
+ * Only has an effect on Android.
+ *
+ * @param configuration - The configuration, as passed to `RTCPeerConnection`.
+ * @param count - The number of connections kept ready, 0 to close them.
+ */
+export default function prewarmPeerConnections(configuration: object, count = 1): void {
+    if (Platform.OS === 'android') {
+        WebRTCModule.peerConnectionPrewarm(configuration, count);
+    }
+}